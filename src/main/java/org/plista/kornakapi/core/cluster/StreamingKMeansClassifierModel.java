@@ -25,14 +25,12 @@ public class StreamingKMeansClassifierModel {
 	private UpdatableSearcher centroids = null;
 	private double maxWeight = 0;
 	private double meanVolume=0;
-	private HashMap<Long, FastIDSet> userItemIds = null;
-	private FastIDSet userids = null;
+	private StreamingKMeansDataObject data = null;
 	private int dim=0;
 	private HashMap<Long, WeightedThing<Vector>> itemID2Centroid = new HashMap<Long, WeightedThing<Vector>>();
 	private static final Logger log = LoggerFactory.getLogger(StreamingKMeansClassifierModel.class);
 	private StorageConfiguration conf;
 	private FastIDSet allItems;
-	private int initialDim = 300;
 	private String label;
 	private BasicDataSource dataSource;
 	
@@ -43,8 +41,7 @@ public class StreamingKMeansClassifierModel {
 	}
 	
 	public void setData(StreamingKMeansDataObject data){
-		this.userItemIds = data.getUserItemIDs();		
-		this.userids = data.getUserIDs();
+		this.data = data;
 		this.dim = data.getDim();
 		this.allItems = data.getAllItems();
 	}
@@ -100,22 +97,15 @@ public class StreamingKMeansClassifierModel {
 	 * @throws IOException 
 	 */
 	public SequentialAccessSparseVector createVector(long itemId) throws IOException{
-		SequentialAccessSparseVector itemVector = new SequentialAccessSparseVector(dim, initialDim);
-		int i = 0;
-		boolean isRated = false;
- 		for(long userid : userids.toArray()){ 			
- 			FastIDSet itemIds = userItemIds.get(userid);
- 			if(itemIds.contains(itemId)){
- 				itemVector.set(i, 1);
- 				isRated = true;
- 			}
- 			i++;
- 		}	
- 		if(isRated){
- 			return itemVector;
- 		}else{
- 			throw new IOException("Item unknown");
- 		}
+		int[] users = data.getUsersOfItem(itemId);
+		if (users == null || users.length == 0) {
+			throw new IOException("Item unknown");
+		}
+		SequentialAccessSparseVector itemVector = new SequentialAccessSparseVector(dim, users.length);
+		for (int user : users) {
+			itemVector.set(user, 1);
+		}
+		return itemVector;
 	}
 	
 	
@@ -140,14 +130,20 @@ public class StreamingKMeansClassifierModel {
 	 */
 	public List<Centroid> getNewData(){
 		MySqlKMeansDataFilter extractor = new MySqlKMeansDataFilter(conf, label,dataSource);
-		StreamingKMeansDataObject data = extractor.getNewData(userids, dim);
+		StreamingKMeansDataObject data;
 		try {
-			extractor.close();
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			data = extractor.getNewData(this.data.getUserIDs());
+		} catch (IOException e) {
+			log.error("Unable to read new data", e);
+			return new ArrayList<Centroid>();
+		} finally {
+			try {
+				extractor.close();
+			} catch (IOException e1) {
+				log.warn("Unable to close the k-means data filter", e1);
+			}
 		}
-		this.userItemIds = data.getUserItemIDs();
+		this.data = data;
 		
 		/**
 		 * new items might only exist in the new userspace/coordinate system
@@ -185,12 +181,18 @@ public class StreamingKMeansClassifierModel {
 	 */
 	public ArrayList<Centroid> getData(){
 		MySqlKMeansDataFilter extractor = new MySqlKMeansDataFilter(conf, label,dataSource);
-		StreamingKMeansDataObject data = extractor.getData();
+		StreamingKMeansDataObject data;
 		try {
-			extractor.close();
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+			data = extractor.getData();
+		} catch (IOException e) {
+			log.error("Unable to read data", e);
+			return new ArrayList<Centroid>();
+		} finally {
+			try {
+				extractor.close();
+			} catch (IOException e1) {
+				log.warn("Unable to close the k-means data filter", e1);
+			}
 		}
 		this.setData(data);
 
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.config;
+
+/** sizing of a database connection pool */
+public class ConnectionPoolConfiguration {
+
+  /** maximum number of connections in use at the same time */
+  private int maxActive;
+  /** number of idle connections kept open */
+  private int minIdle;
+  /** number of connections opened on startup */
+  private int initialSize;
+  /** time to wait for a free connection before giving up */
+  private int maxWaitMillis;
+
+  public static final int DEFAULT_MAX_ACTIVE = 10;
+  public static final int DEFAULT_MIN_IDLE = 5;
+  public static final int DEFAULT_INITIAL_SIZE = 5;
+  public static final int DEFAULT_MAX_WAIT_MILLIS = 10000;
+
+  public int getMaxActive() {
+    return maxActive > 0 ? maxActive : DEFAULT_MAX_ACTIVE;
+  }
+
+  public void setMaxActive(int maxActive) {
+    this.maxActive = maxActive;
+  }
+
+  public int getMinIdle() {
+    return minIdle > 0 ? minIdle : Math.min(DEFAULT_MIN_IDLE, getMaxActive());
+  }
+
+  public void setMinIdle(int minIdle) {
+    this.minIdle = minIdle;
+  }
+
+  public int getInitialSize() {
+    return initialSize > 0 ? initialSize : Math.min(DEFAULT_INITIAL_SIZE, getMaxActive());
+  }
+
+  public void setInitialSize(int initialSize) {
+    this.initialSize = initialSize;
+  }
+
+  public int getMaxWaitMillis() {
+    return maxWaitMillis > 0 ? maxWaitMillis : DEFAULT_MAX_WAIT_MILLIS;
+  }
+
+  public void setMaxWaitMillis(int maxWaitMillis) {
+    this.maxWaitMillis = maxWaitMillis;
+  }
+}
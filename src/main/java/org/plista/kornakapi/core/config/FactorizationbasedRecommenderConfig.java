@@ -22,9 +22,20 @@ public class FactorizationbasedRecommenderConfig extends RecommenderConfig {
   private int numberOfFeatures;
   private int numberOfIterations;
   private int numberOfThreadsForEstimation;
+  /** number of estimation slices that may wait for a free estimation thread */
+  private int estimationQueueSize;
+  /** maximum time to wait for the estimation slices of a single request */
+  private long estimationTimeoutMillis;
+  /** number of partitions of the inner product index over the item features, 0 to scan all candidates */
+  private int numberOfIndexClusters;
+  /** maximum number of index partitions to visit per request, 0 for exact results */
+  private int numberOfIndexProbes;
   private double lambda;
   private double alpha;
 
+  public static final int DEFAULT_ESTIMATION_QUEUE_SIZE = 1000;
+  public static final long DEFAULT_ESTIMATION_TIMEOUT_MILLIS = 5000;
+
   public int getNumberOfThreadsForEstimation() {
     return numberOfThreadsForEstimation;
   }
@@ -33,6 +44,38 @@ public class FactorizationbasedRecommenderConfig extends RecommenderConfig {
     this.numberOfThreadsForEstimation = numberOfThreadsForEstimation;
   }
 
+  public int getEstimationQueueSize() {
+    return estimationQueueSize > 0 ? estimationQueueSize : DEFAULT_ESTIMATION_QUEUE_SIZE;
+  }
+
+  public void setEstimationQueueSize(int estimationQueueSize) {
+    this.estimationQueueSize = estimationQueueSize;
+  }
+
+  public long getEstimationTimeoutMillis() {
+    return estimationTimeoutMillis > 0 ? estimationTimeoutMillis : DEFAULT_ESTIMATION_TIMEOUT_MILLIS;
+  }
+
+  public void setEstimationTimeoutMillis(long estimationTimeoutMillis) {
+    this.estimationTimeoutMillis = estimationTimeoutMillis;
+  }
+
+  public int getNumberOfIndexClusters() {
+    return numberOfIndexClusters;
+  }
+
+  public void setNumberOfIndexClusters(int numberOfIndexClusters) {
+    this.numberOfIndexClusters = numberOfIndexClusters;
+  }
+
+  public int getNumberOfIndexProbes() {
+    return numberOfIndexProbes;
+  }
+
+  public void setNumberOfIndexProbes(int numberOfIndexProbes) {
+    this.numberOfIndexProbes = numberOfIndexProbes;
+  }
+
   public boolean isUsesImplicitFeedback() {
     return usesImplicitFeedback;
   }
@@ -34,6 +34,67 @@ public class StorageConfiguration {
 
   private String purgePreferencesCronExpression;
   private int purgePreferencesOlderThanHours;
+  /** maximum number of candidate sets cached per storage */
+  private int candidateCacheSize;
+  /** time after which cached candidate sets are reloaded, 0 to keep them until they are evicted */
+  private int candidateCacheExpireAfterSeconds;
+
+  /** number of parallel connections used to import preferences in batches */
+  private int importWriterThreads;
+
+  /** maximum number of users whose histories are cached, 0 to always read them from the database */
+  private int userHistoryCacheSize;
+  /** time during which trainers share one export of all labels, 0 to export every label on its own */
+  private int trainingExportWindowSeconds;
+  /** number of parallel connections used to export the training data of a label, 1 to stream it over one */
+  private int trainingExportReaderThreads;
+  /** number of rows fetched per query by the parallel training export */
+  private int trainingExportPageSize;
+  /** local directory for the snapshots of the training data, null to export all preferences for every training */
+  private String trainingSnapshotDirectory;
+  /** number of written preferences remembered for the snapshots */
+  private int trainingSnapshotDeltaLogCapacity;
+  /** time after which a snapshot is replaced by a full export, to catch up with writes of other instances */
+  private int trainingSnapshotMaxAgeMinutes;
+  /** maximum number of items without a label that the index of the labels of the items remembers */
+  private int unlabeledItemCacheSize;
+  /** time after which the label of an item without a label is looked up again */
+  private int unlabeledItemCacheExpireAfterSeconds;
+  /** interval in which the counts of the labels kept in memory are reconciled with the database */
+  private int labelStatisticsReconcileMinutes;
+  /** directory of the embedded storage that replaces MySQL, null to keep the preferences in MySQL */
+  private String embeddedStorageDirectory;
+  /** interval in which the log of the embedded storage is checked for compaction */
+  private int embeddedStorageCompactionIntervalMinutes;
+  /** number of recently changed users whose changes are tracked to fold them in between trainings */
+  private int userChangeTrackerSize;
+  /** pool for the reads of the recommenders and the candidate lookups */
+  private ConnectionPoolConfiguration readConnectionPool;
+  /** pool for writes, imports and training exports */
+  private ConnectionPoolConfiguration writeConnectionPool;
+  /** maximum number of distinct preferences buffered before they are written, 0 to write them immediately */
+  private int writeBehindCapacity;
+  /** number of buffered preferences that triggers a write */
+  private int writeBehindFlushSize;
+  /** interval in which buffered preferences are written */
+  private int writeBehindFlushIntervalMillis;
+  /** time a request waits for free buffer capacity before it writes its preference itself */
+  private int writeBehindMaxBlockMillis;
+
+  public static final int DEFAULT_CANDIDATE_CACHE_SIZE = 100;
+  public static final int DEFAULT_WRITE_BEHIND_FLUSH_SIZE = 1000;
+  public static final int DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS = 1000;
+  public static final int DEFAULT_WRITE_BEHIND_MAX_BLOCK_MILLIS = 100;
+  public static final int DEFAULT_IMPORT_WRITER_THREADS = 4;
+  public static final int DEFAULT_TRAINING_EXPORT_READER_THREADS = 1;
+  public static final int DEFAULT_TRAINING_EXPORT_PAGE_SIZE = 10000;
+  public static final int DEFAULT_UNLABELED_ITEM_CACHE_SIZE = 10000;
+  public static final int DEFAULT_UNLABELED_ITEM_CACHE_EXPIRE_AFTER_SECONDS = 300;
+  public static final int DEFAULT_TRAINING_SNAPSHOT_DELTA_LOG_CAPACITY = 1000000;
+  public static final int DEFAULT_TRAINING_SNAPSHOT_MAX_AGE_MINUTES = 1440;
+  public static final int DEFAULT_LABEL_STATISTICS_RECONCILE_MINUTES = 60;
+  public static final int DEFAULT_EMBEDDED_STORAGE_COMPACTION_INTERVAL_MINUTES = 10;
+  public static final int DEFAULT_USER_CHANGE_TRACKER_SIZE = 100000;
 
   public String getJdbcDriverClass() {
     return jdbcDriverClass;
@@ -83,6 +144,187 @@ public class StorageConfiguration {
     this.purgePreferencesOlderThanHours = purgePreferencesOlderThanHours;
   }
   
+  public int getCandidateCacheSize() {
+    return candidateCacheSize > 0 ? candidateCacheSize : DEFAULT_CANDIDATE_CACHE_SIZE;
+  }
+
+  public void setCandidateCacheSize(int candidateCacheSize) {
+    this.candidateCacheSize = candidateCacheSize;
+  }
+
+  public int getCandidateCacheExpireAfterSeconds() {
+    return candidateCacheExpireAfterSeconds;
+  }
+
+  public void setCandidateCacheExpireAfterSeconds(int candidateCacheExpireAfterSeconds) {
+    this.candidateCacheExpireAfterSeconds = candidateCacheExpireAfterSeconds;
+  }
+
+  public int getImportWriterThreads() {
+    return importWriterThreads > 0 ? importWriterThreads : DEFAULT_IMPORT_WRITER_THREADS;
+  }
+
+  public void setImportWriterThreads(int importWriterThreads) {
+    this.importWriterThreads = importWriterThreads;
+  }
+
+  public int getWriteBehindCapacity() {
+    return writeBehindCapacity;
+  }
+
+  public void setWriteBehindCapacity(int writeBehindCapacity) {
+    this.writeBehindCapacity = writeBehindCapacity;
+  }
+
+  public int getWriteBehindFlushSize() {
+    return writeBehindFlushSize > 0 ? writeBehindFlushSize : DEFAULT_WRITE_BEHIND_FLUSH_SIZE;
+  }
+
+  public void setWriteBehindFlushSize(int writeBehindFlushSize) {
+    this.writeBehindFlushSize = writeBehindFlushSize;
+  }
+
+  public int getWriteBehindFlushIntervalMillis() {
+    return writeBehindFlushIntervalMillis > 0 ?
+        writeBehindFlushIntervalMillis : DEFAULT_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS;
+  }
+
+  public void setWriteBehindFlushIntervalMillis(int writeBehindFlushIntervalMillis) {
+    this.writeBehindFlushIntervalMillis = writeBehindFlushIntervalMillis;
+  }
+
+  public int getWriteBehindMaxBlockMillis() {
+    return writeBehindMaxBlockMillis > 0 ? writeBehindMaxBlockMillis : DEFAULT_WRITE_BEHIND_MAX_BLOCK_MILLIS;
+  }
+
+  public void setWriteBehindMaxBlockMillis(int writeBehindMaxBlockMillis) {
+    this.writeBehindMaxBlockMillis = writeBehindMaxBlockMillis;
+  }
+
+  public int getUserHistoryCacheSize() {
+    return userHistoryCacheSize;
+  }
+
+  public void setUserHistoryCacheSize(int userHistoryCacheSize) {
+    this.userHistoryCacheSize = userHistoryCacheSize;
+  }
+
+  public int getTrainingExportWindowSeconds() {
+    return trainingExportWindowSeconds;
+  }
+
+  public void setTrainingExportWindowSeconds(int trainingExportWindowSeconds) {
+    this.trainingExportWindowSeconds = trainingExportWindowSeconds;
+  }
+
+  public int getTrainingExportReaderThreads() {
+    return trainingExportReaderThreads > 0 ? trainingExportReaderThreads : DEFAULT_TRAINING_EXPORT_READER_THREADS;
+  }
+
+  public void setTrainingExportReaderThreads(int trainingExportReaderThreads) {
+    this.trainingExportReaderThreads = trainingExportReaderThreads;
+  }
+
+  public int getTrainingExportPageSize() {
+    return trainingExportPageSize > 0 ? trainingExportPageSize : DEFAULT_TRAINING_EXPORT_PAGE_SIZE;
+  }
+
+  public void setTrainingExportPageSize(int trainingExportPageSize) {
+    this.trainingExportPageSize = trainingExportPageSize;
+  }
+
+  public String getTrainingSnapshotDirectory() {
+    return trainingSnapshotDirectory;
+  }
+
+  public void setTrainingSnapshotDirectory(String trainingSnapshotDirectory) {
+    this.trainingSnapshotDirectory = trainingSnapshotDirectory;
+  }
+
+  public int getTrainingSnapshotDeltaLogCapacity() {
+    return trainingSnapshotDeltaLogCapacity > 0 ?
+        trainingSnapshotDeltaLogCapacity : DEFAULT_TRAINING_SNAPSHOT_DELTA_LOG_CAPACITY;
+  }
+
+  public void setTrainingSnapshotDeltaLogCapacity(int trainingSnapshotDeltaLogCapacity) {
+    this.trainingSnapshotDeltaLogCapacity = trainingSnapshotDeltaLogCapacity;
+  }
+
+  public int getTrainingSnapshotMaxAgeMinutes() {
+    return trainingSnapshotMaxAgeMinutes > 0 ? trainingSnapshotMaxAgeMinutes : DEFAULT_TRAINING_SNAPSHOT_MAX_AGE_MINUTES;
+  }
+
+  public void setTrainingSnapshotMaxAgeMinutes(int trainingSnapshotMaxAgeMinutes) {
+    this.trainingSnapshotMaxAgeMinutes = trainingSnapshotMaxAgeMinutes;
+  }
+
+  public int getUnlabeledItemCacheSize() {
+    return unlabeledItemCacheSize > 0 ? unlabeledItemCacheSize : DEFAULT_UNLABELED_ITEM_CACHE_SIZE;
+  }
+
+  public void setUnlabeledItemCacheSize(int unlabeledItemCacheSize) {
+    this.unlabeledItemCacheSize = unlabeledItemCacheSize;
+  }
+
+  public int getUnlabeledItemCacheExpireAfterSeconds() {
+    return unlabeledItemCacheExpireAfterSeconds > 0 ?
+        unlabeledItemCacheExpireAfterSeconds : DEFAULT_UNLABELED_ITEM_CACHE_EXPIRE_AFTER_SECONDS;
+  }
+
+  public void setUnlabeledItemCacheExpireAfterSeconds(int unlabeledItemCacheExpireAfterSeconds) {
+    this.unlabeledItemCacheExpireAfterSeconds = unlabeledItemCacheExpireAfterSeconds;
+  }
+
+  public int getLabelStatisticsReconcileMinutes() {
+    return labelStatisticsReconcileMinutes > 0 ?
+        labelStatisticsReconcileMinutes : DEFAULT_LABEL_STATISTICS_RECONCILE_MINUTES;
+  }
+
+  public void setLabelStatisticsReconcileMinutes(int labelStatisticsReconcileMinutes) {
+    this.labelStatisticsReconcileMinutes = labelStatisticsReconcileMinutes;
+  }
+
+  public String getEmbeddedStorageDirectory() {
+    return embeddedStorageDirectory;
+  }
+
+  public void setEmbeddedStorageDirectory(String embeddedStorageDirectory) {
+    this.embeddedStorageDirectory = embeddedStorageDirectory;
+  }
+
+  public int getEmbeddedStorageCompactionIntervalMinutes() {
+    return embeddedStorageCompactionIntervalMinutes > 0 ?
+        embeddedStorageCompactionIntervalMinutes : DEFAULT_EMBEDDED_STORAGE_COMPACTION_INTERVAL_MINUTES;
+  }
+
+  public void setEmbeddedStorageCompactionIntervalMinutes(int embeddedStorageCompactionIntervalMinutes) {
+    this.embeddedStorageCompactionIntervalMinutes = embeddedStorageCompactionIntervalMinutes;
+  }
+
+  public int getUserChangeTrackerSize() {
+    return userChangeTrackerSize > 0 ? userChangeTrackerSize : DEFAULT_USER_CHANGE_TRACKER_SIZE;
+  }
+
+  public void setUserChangeTrackerSize(int userChangeTrackerSize) {
+    this.userChangeTrackerSize = userChangeTrackerSize;
+  }
+
+  public ConnectionPoolConfiguration getReadConnectionPool() {
+    return readConnectionPool != null ? readConnectionPool : new ConnectionPoolConfiguration();
+  }
+
+  public void setReadConnectionPool(ConnectionPoolConfiguration readConnectionPool) {
+    this.readConnectionPool = readConnectionPool;
+  }
+
+  public ConnectionPoolConfiguration getWriteConnectionPool() {
+    return writeConnectionPool != null ? writeConnectionPool : new ConnectionPoolConfiguration();
+  }
+
+  public void setWriteConnectionPool(ConnectionPoolConfiguration writeConnectionPool) {
+    this.writeConnectionPool = writeConnectionPool;
+  }
+
   public int getTimeWindow(){
 	  return timeWindow;
   }
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+
+/**
+ * caches the folded in features of anonymous sessions, whose item lists grow with every page view. The sum of the
+ * item features is cached before its normalisation, so a later request only adds the features of the items behind
+ * the cached prefix. A session is found by its client-supplied token or, without one, by hashes of the prefixes of
+ * its items. Each model generation has its own cache.
+ */
+final class AnonymousSessions {
+
+  static final int DEFAULT_MAX_SESSIONS = 10000;
+  /** number of prefixes, starting with the complete item list, that are looked up for a session without token */
+  static final int MAX_PREFIX_PROBES = 4;
+
+  private final FoldingFactorization foldingFactorization;
+  /** keyed by the token of the session or by the hash of its items */
+  private final Cache<Object, Session> sessions;
+
+  AnonymousSessions(FoldingFactorization foldingFactorization, int maxSessions) {
+    this.foldingFactorization = foldingFactorization;
+    sessions = CacheBuilder.newBuilder().maximumSize(maxSessions).recordStats().build();
+  }
+
+  /**
+   * folds in an anonymous user like {@link FoldingFactorization#foldInAnonymousUser(long[])}, the average of the
+   * features of the known items
+   *
+   * @param sessionID token of the session, null to look the session up by its items
+   * @throws NoSuchItemException if none of the items are known
+   */
+  double[] foldIn(String sessionID, long[] itemIDs) throws NoSuchItemException {
+    return foldIn(sessionID, itemIDs, true);
+  }
+
+  /**
+   * folds in an anonymous user like {@link #foldIn(String, long[])}, starting from a cached prefix of the items if
+   * there is one, but without caching the result. Meant for one-off item lists like the rows of a batch, which would
+   * only evict live sessions.
+   *
+   * @throws NoSuchItemException if none of the items are known
+   */
+  double[] foldInWithoutCaching(long[] itemIDs) throws NoSuchItemException {
+    return foldIn(null, itemIDs, false);
+  }
+
+  private double[] foldIn(String sessionID, long[] itemIDs, boolean cacheResult) throws NoSuchItemException {
+    long[] prefixHashes = null;
+    Session cached;
+    if (sessionID != null) {
+      cached = sessions.getIfPresent(sessionID);
+      if (cached != null && !isPrefix(cached.itemIDs, itemIDs)) {
+        /* the session started over */
+        cached = null;
+      }
+    } else {
+      prefixHashes = prefixHashes(itemIDs);
+      cached = lookup(itemIDs, prefixHashes);
+    }
+
+    int numFeatures = foldingFactorization.factorization().numFeatures();
+    double[] sum;
+    int numKnownItems;
+    int from;
+    if (cached != null) {
+      sum = cached.sum.clone();
+      numKnownItems = cached.numKnownItems;
+      from = cached.itemIDs.length;
+    } else {
+      sum = new double[numFeatures];
+      numKnownItems = 0;
+      from = 0;
+    }
+
+    PackedItemFeatures packedItemFeatures = foldingFactorization.itemFeatures();
+    double[][] itemFeatures = foldingFactorization.factorization().allItemFeatures();
+    for (int n = from; n < itemIDs.length; n++) {
+      int row = packedItemFeatures.row(itemIDs[n]);
+      if (row >= 0) {
+        for (int feature = 0; feature < numFeatures; feature++) {
+          sum[feature] += itemFeatures[row][feature];
+        }
+        numKnownItems++;
+      }
+    }
+
+    if (numKnownItems == 0) {
+      throw new NoSuchItemException("At least one item must be known");
+    }
+
+    if (cacheResult && from < itemIDs.length) {
+      Session session = new Session(itemIDs.clone(), sum.clone(), numKnownItems);
+      sessions.put(sessionID != null ? sessionID : prefixHashes[itemIDs.length], session);
+    }
+
+    double l1Norm = 0;
+    for (int feature = 0; feature < numFeatures; feature++) {
+      l1Norm += Math.abs(sum[feature]);
+    }
+    for (int feature = 0; feature < numFeatures; feature++) {
+      sum[feature] /= l1Norm;
+    }
+    return sum;
+  }
+
+  /** @return the session of the longest cached prefix of the items or null */
+  private Session lookup(long[] itemIDs, long[] prefixHashes) {
+    for (int length = itemIDs.length; length > 0 && length > itemIDs.length - MAX_PREFIX_PROBES; length--) {
+      Session session = sessions.getIfPresent(prefixHashes[length]);
+      if (session != null && session.itemIDs.length == length && isPrefix(session.itemIDs, itemIDs)) {
+        return session;
+      }
+    }
+    return null;
+  }
+
+  private static boolean isPrefix(long[] prefix, long[] itemIDs) {
+    if (prefix.length > itemIDs.length) {
+      return false;
+    }
+    for (int n = 0; n < prefix.length; n++) {
+      if (prefix[n] != itemIDs[n]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return at index n the hash of the first n items */
+  static long[] prefixHashes(long[] itemIDs) {
+    long[] hashes = new long[itemIDs.length + 1];
+    long hash = 17;
+    hashes[0] = hash;
+    for (int n = 0; n < itemIDs.length; n++) {
+      hash = 31 * hash + itemIDs[n];
+      hashes[n + 1] = hash;
+    }
+    return hashes;
+  }
+
+  CacheStats stats() {
+    return sessions.stats();
+  }
+
+  long size() {
+    return sessions.size();
+  }
+
+  private static final class Session {
+
+    private final long[] itemIDs;
+    /** sum of the features of the known items, not normalised */
+    private final double[] sum;
+    private final int numKnownItems;
+
+    Session(long[] itemIDs, double[] sum, int numKnownItems) {
+      this.itemIDs = itemIDs;
+      this.sum = sum;
+      this.numKnownItems = numKnownItems;
+    }
+  }
+}
@@ -21,60 +21,156 @@ import com.google.common.collect.Lists;
 import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.recommender.ByValueRecommendedItemComparator;
-import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.recommender.TopItems;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 
-import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
 
 public class ArrayTopItems {
 
+  /** number of candidates scored at once, small enough for the scores to stay in the L1 cache */
+  static final int SCORE_BLOCK_SIZE = 256;
+
   public static List<RecommendedItem> getTopItems(int howMany, long[] possibleItemIDs, int fromIndex, int toIndex,
     IDRescorer rescorer, TopItems.Estimator<Long> estimator) throws TasteException {
+    Preconditions.checkArgument(estimator != null, "estimator is null");
+    return topItems(howMany, possibleItemIDs, fromIndex, toIndex, rescorer, adapt(estimator)).toList();
+  }
+
+  public static List<RecommendedItem> getTopItems(int howMany, long[] possibleItemIDs, int fromIndex, int toIndex,
+      IDRescorer rescorer, ItemEstimator estimator) throws TasteException {
+    return topItems(howMany, possibleItemIDs, fromIndex, toIndex, rescorer, estimator).toList();
+  }
+
+  /** estimates the items in [fromIndex, toIndex) of possibleItemIDs */
+  static TopItemsQueue topItems(int howMany, long[] possibleItemIDs, int fromIndex, int toIndex,
+      IDRescorer rescorer, ItemEstimator estimator) throws TasteException {
 
     Preconditions.checkArgument(possibleItemIDs != null, "possibleItemIDs is null");
     Preconditions.checkArgument(estimator != null, "estimator is null");
 
-    Queue<RecommendedItem> topItems = new PriorityQueue<RecommendedItem>(howMany + 1,
-        Collections.reverseOrder(ByValueRecommendedItemComparator.getInstance()));
-    boolean full = false;
-    double lowestTopValue = Double.NEGATIVE_INFINITY;
+    TopItemsQueue topItems = new TopItemsQueue(howMany);
     for (int index = fromIndex; index < toIndex; index++) {
       long itemID = possibleItemIDs[index];
       if (rescorer == null || !rescorer.isFiltered(itemID)) {
-        double preference;
+        double preference = estimator.estimate(itemID);
+        if (Double.isNaN(preference)) {
+          continue;
+        }
+        topItems.offer(itemID, rescorer == null ? preference : rescorer.rescore(itemID, preference));
+      }
+    }
+    return topItems;
+  }
+
+  /** @return an estimator that maps the exceptions for unknown items and users to NaN */
+  static ItemEstimator adapt(final TopItems.Estimator<Long> estimator) {
+    return new ItemEstimator() {
+      @Override
+      public double estimate(long itemID) throws TasteException {
         try {
-          preference = estimator.estimate(itemID);
+          return estimator.estimate(itemID);
         } catch (NoSuchItemException nsie) {
-          continue;
-        } catch (NoSuchUserException nsue){
+          return Double.NaN;
+        } catch (NoSuchUserException nsue) {
+          return Double.NaN;
+        }
+      }
+    };
+  }
+
+  /** computes the top items from the rows in [fromIndex, toIndex), which are scored in blocks */
+  public static List<RecommendedItem> getTopItems(int howMany, PackedItemFeatures itemFeatures, float[] userFeatures,
+      int[] rows, int fromIndex, int toIndex, IDRescorer rescorer) {
+    return topItems(howMany, itemFeatures, userFeatures, rows, fromIndex, toIndex, rescorer).toList();
+  }
+
+  static TopItemsQueue topItems(int howMany, PackedItemFeatures itemFeatures, float[] userFeatures,
+      int[] rows, int fromIndex, int toIndex, IDRescorer rescorer) {
+
+    Preconditions.checkArgument(itemFeatures != null, "itemFeatures is null");
+    Preconditions.checkArgument(userFeatures != null, "userFeatures is null");
+    Preconditions.checkArgument(rows != null, "rows is null");
+
+    TopItemsQueue topItems = new TopItemsQueue(howMany);
+    float[] scores = new float[Math.min(SCORE_BLOCK_SIZE, Math.max(0, toIndex - fromIndex))];
+    for (int blockStart = fromIndex; blockStart < toIndex; blockStart += SCORE_BLOCK_SIZE) {
+      int blockEnd = Math.min(blockStart + SCORE_BLOCK_SIZE, toIndex);
+      itemFeatures.score(userFeatures, rows, blockStart, blockEnd, scores);
+      for (int index = blockStart; index < blockEnd; index++) {
+        double preference = scores[index - blockStart];
+        if (rescorer == null && !topItems.accepts(preference)) {
           continue;
         }
-        double rescoredPref = rescorer == null ? preference : rescorer.rescore(itemID, preference);
-        if (!Double.isNaN(rescoredPref) && (!full || rescoredPref > lowestTopValue)) {
-          topItems.add(new GenericRecommendedItem(itemID, (float) rescoredPref));
-          if (full) {
-            topItems.poll();
-          } else if (topItems.size() > howMany) {
-            full = true;
-            topItems.poll();
+        long itemID = itemFeatures.itemID(rows[index]);
+        if (rescorer != null) {
+          preference = rescorer.rescore(itemID, preference);
+        }
+        topItems.offer(itemID, preference);
+      }
+    }
+    return topItems;
+  }
+
+  /**
+   * computes the top items for several users at once, the rows are scored as a blocked product of the user matrix
+   * with the item matrix
+   *
+   * @param userFeatures the features of the users, null entries yield no recommendations
+   * @param excludedItemIDs per user, the items that must not be recommended, entries may be null
+   */
+  public static List<List<RecommendedItem>> getTopItems(int howMany, PackedItemFeatures itemFeatures,
+      float[][] userFeatures, FastIDSet[] excludedItemIDs, int[] rows, IDRescorer rescorer) {
+
+    Preconditions.checkArgument(userFeatures.length == excludedItemIDs.length, "need exclusions for every user");
+
+    int numUsers = 0;
+    for (float[] features : userFeatures) {
+      if (features != null) {
+        numUsers++;
+      }
+    }
+    /* compact the users we can score */
+    float[][] knownUsers = new float[numUsers][];
+    TopItemsQueue[] topItems = new TopItemsQueue[userFeatures.length];
+    int[] knownUserIndexes = new int[numUsers];
+    for (int user = 0, knownUser = 0; user < userFeatures.length; user++) {
+      topItems[user] = new TopItemsQueue(howMany);
+      if (userFeatures[user] != null) {
+        knownUsers[knownUser] = userFeatures[user];
+        knownUserIndexes[knownUser++] = user;
+      }
+    }
+
+    float[][] scores = new float[numUsers][SCORE_BLOCK_SIZE];
+    for (int blockStart = 0; blockStart < rows.length && numUsers > 0; blockStart += SCORE_BLOCK_SIZE) {
+      int blockEnd = Math.min(blockStart + SCORE_BLOCK_SIZE, rows.length);
+      itemFeatures.score(knownUsers, rows, blockStart, blockEnd, scores);
+      for (int knownUser = 0; knownUser < numUsers; knownUser++) {
+        int user = knownUserIndexes[knownUser];
+        for (int index = blockStart; index < blockEnd; index++) {
+          double preference = scores[knownUser][index - blockStart];
+          if (rescorer == null && !topItems[user].accepts(preference)) {
+            continue;
+          }
+          long itemID = itemFeatures.itemID(rows[index]);
+          if (excludedItemIDs[user] != null && excludedItemIDs[user].contains(itemID)) {
+            continue;
           }
-          lowestTopValue = topItems.peek().getValue();
+          if (rescorer != null) {
+            preference = rescorer.rescore(itemID, preference);
+          }
+          topItems[user].offer(itemID, preference);
         }
       }
     }
-    int size = topItems.size();
-    if (size == 0) {
-      return Collections.emptyList();
+
+    List<List<RecommendedItem>> result = Lists.newArrayListWithCapacity(userFeatures.length);
+    for (TopItemsQueue queue : topItems) {
+      result.add(queue.toList());
     }
-    List<RecommendedItem> result = Lists.newArrayListWithCapacity(size);
-    result.addAll(topItems);
-    Collections.sort(result, ByValueRecommendedItemComparator.getInstance());
     return result;
   }
 }
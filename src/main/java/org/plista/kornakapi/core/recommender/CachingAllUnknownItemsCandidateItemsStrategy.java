@@ -48,6 +48,24 @@ public class CachingAllUnknownItemsCandidateItemsStrategy implements CandidateIt
     return possibleItemIDs;
   }
 
+  /**
+   * intersects a (usually small) candidate set with all known items and removes the items of the user, without
+   * copying the set of all known items
+   */
+  public FastIDSet getCandidateItems(FastIDSet candidates, long[] itemIDsFromUser) {
+    FastIDSet knownItemIDs = allItemIDs;
+    FastIDSet possibleItemIDs = new FastIDSet(candidates.size());
+    LongPrimitiveIterator candidatesIterator = candidates.iterator();
+    while (candidatesIterator.hasNext()) {
+      long itemID = candidatesIterator.nextLong();
+      if (knownItemIDs.contains(itemID)) {
+        possibleItemIDs.add(itemID);
+      }
+    }
+    possibleItemIDs.removeAll(itemIDsFromUser);
+    return possibleItemIDs;
+  }
+
   private FastIDSet loadAllItemIDs(DataModel dataModel) throws TasteException {
 
     int numItems = dataModel.getNumItems();
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.base.Preconditions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a long-lived, bounded thread pool for the parallel estimation of recommendations, shared by all recommenders
+ * created from the same configuration
+ */
+public class EstimationExecutor implements Closeable {
+
+  private final String name;
+  private final int numThreads;
+  private final long timeoutMillis;
+  private final ThreadPoolExecutor executor;
+
+  private final AtomicLong submittedTasks = new AtomicLong(0);
+  private final AtomicLong rejectedTasks = new AtomicLong(0);
+  private final AtomicLong timedOutTasks = new AtomicLong(0);
+
+  private static final Logger log = LoggerFactory.getLogger(EstimationExecutor.class);
+
+  public EstimationExecutor(final String name, int numThreads, int queueSize, long timeoutMillis) {
+    Preconditions.checkArgument(numThreads > 0, "need at least one estimation thread");
+    Preconditions.checkArgument(queueSize > 0, "queueSize must be positive");
+    Preconditions.checkArgument(timeoutMillis > 0, "timeoutMillis must be positive");
+
+    this.name = name;
+    this.numThreads = numThreads;
+    this.timeoutMillis = timeoutMillis;
+
+    final AtomicInteger threadNumber = new AtomicInteger(0);
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "estimation-" + name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    executor.prestartAllCoreThreads();
+
+    log.info("Started estimation executor [{}] with {} threads and a queue of {} tasks",
+        new Object[] { name, numThreads, queueSize });
+  }
+
+  /**
+   * submits a task for execution
+   *
+   * @return the future of the task or null if the queue is full, in which case the caller is expected to run the
+   *         task itself
+   */
+  <T> Future<T> trySubmit(Callable<T> task) {
+    try {
+      Future<T> future = executor.submit(task);
+      submittedTasks.incrementAndGet();
+      return future;
+    } catch (RejectedExecutionException e) {
+      rejectedTasks.incrementAndGet();
+      return null;
+    }
+  }
+
+  void taskTimedOut() {
+    timedOutTasks.incrementAndGet();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  public int getActiveThreads() {
+    return executor.getActiveCount();
+  }
+
+  public long getSubmittedTasks() {
+    return submittedTasks.get();
+  }
+
+  public long getRejectedTasks() {
+    return rejectedTasks.get();
+  }
+
+  public long getTimedOutTasks() {
+    return timedOutTasks.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+  }
+}
@@ -27,6 +27,11 @@ public class FixedCandidatesIDRescorer implements IDRescorer {
     this.candidates = candidates;
   }
 
+  /** the candidate set itself, which must not be modified */
+  public FastIDSet candidates() {
+    return candidates;
+  }
+
   public long numCandidates() {
 	  return candidates.size();
   }
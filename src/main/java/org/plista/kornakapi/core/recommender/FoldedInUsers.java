@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * the features of users that are unknown to a factorization or changed their preferences since its training, folded
+ * in against the fixed item features. Each model generation has its own store, a user is folded in again once the
+ * tracked change that the cached features were computed for is outdated.
+ */
+final class FoldedInUsers {
+
+  /** marks features that must not be cached, as the changes of the user are not tracked */
+  static final long UNTRACKED = -1;
+
+  static final int DEFAULT_MAX_USERS = 10000;
+
+  private final FoldingFactorization foldingFactorization;
+  private final Map<Long, FoldedInUser> users;
+
+  FoldedInUsers(FoldingFactorization foldingFactorization, final int maxUsers) {
+    this.foldingFactorization = foldingFactorization;
+    users = new LinkedHashMap<Long, FoldedInUser>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, FoldedInUser> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * @param lastChange the sequence number of the latest change of the user, {@link #UNTRACKED} if unknown
+   * @return the cached features of the user or null if there are none for the latest change
+   */
+  float[] get(long userID, long lastChange) {
+    if (lastChange == UNTRACKED) {
+      return null;
+    }
+    synchronized (users) {
+      FoldedInUser user = users.get(userID);
+      return user != null && user.lastChange == lastChange ? user.features : null;
+    }
+  }
+
+  /**
+   * folds in the user from the items of the history, ignoring the items unknown to the factorization
+   *
+   * @param lastChange the sequence number of the latest change of the user, {@link #UNTRACKED} if unknown
+   * @return the features of the user or null if none of the items are known
+   */
+  float[] foldIn(long userID, long lastChange, long[] historyIDs) {
+    PackedItemFeatures itemFeatures = foldingFactorization.itemFeatures();
+    long[] knownIDs = new long[historyIDs.length];
+    int numKnown = 0;
+    for (long itemID : historyIDs) {
+      if (itemFeatures.row(itemID) >= 0) {
+        knownIDs[numKnown++] = itemID;
+      }
+    }
+    if (numKnown == 0) {
+      return null;
+    }
+
+    float[] features;
+    try {
+      features = PackedItemFeatures.toFloats(foldingFactorization.foldInUser(
+          numKnown == knownIDs.length ? knownIDs : Arrays.copyOf(knownIDs, numKnown)));
+    } catch (NoSuchItemException e) {
+      /* cannot happen, all items are known */
+      return null;
+    }
+
+    if (lastChange != UNTRACKED) {
+      synchronized (users) {
+        users.put(userID, new FoldedInUser(features, lastChange));
+      }
+    }
+    return features;
+  }
+
+  int size() {
+    synchronized (users) {
+      return users.size();
+    }
+  }
+
+  private static final class FoldedInUser {
+
+    private final float[] features;
+    private final long lastChange;
+
+    FoldedInUser(float[] features, long lastChange) {
+      this.features = features;
+      this.lastChange = lastChange;
+    }
+  }
+}
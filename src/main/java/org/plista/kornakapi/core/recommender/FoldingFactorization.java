@@ -30,18 +30,37 @@ public class FoldingFactorization {
 
   private final Factorization factorization;
   private final double[][] userFoldInMatrix;
+  private final PackedItemFeatures itemFeatures;
+  /** null if no index was requested */
+  private final InnerProductIndex itemIndex;
 
   private static final Logger log = LoggerFactory.getLogger(FoldingFactorization.class);
 
   public FoldingFactorization(Factorization factorization) {
+    this(factorization, 0);
+  }
+
+  /** @param numberOfIndexClusters number of partitions of the inner product index, 0 to not build an index */
+  public FoldingFactorization(Factorization factorization, int numberOfIndexClusters) {
     this.factorization = factorization;
     userFoldInMatrix = computeUserFoldInMatrix(factorization.allItemFeatures());
+    itemFeatures = new PackedItemFeatures(factorization);
+    itemIndex = numberOfIndexClusters > 0 ? new InnerProductIndex(itemFeatures, numberOfIndexClusters) : null;
   }
 
   public Factorization factorization() {
     return factorization;
   }
 
+  public PackedItemFeatures itemFeatures() {
+    return itemFeatures;
+  }
+
+  /** @return the inner product index over the item features or null if none was built */
+  public InnerProductIndex itemIndex() {
+    return itemIndex;
+  }
+
   /* see http://www.slideshare.net/fullscreen/srowen/matrix-factorization/16 for details */
   private double[][] computeUserFoldInMatrix(double[][] itemFeatures) {
 
@@ -16,6 +16,7 @@
 package org.plista.kornakapi.core.recommender;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
 import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
@@ -25,7 +26,6 @@ import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.impl.model.BooleanUserPreferenceArray;
 import org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender;
-import org.apache.mahout.cf.taste.impl.recommender.TopItems;
 import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
 import org.apache.mahout.cf.taste.impl.recommender.svd.PersistenceStrategy;
 import org.apache.mahout.cf.taste.model.DataModel;
@@ -34,6 +34,7 @@ import org.apache.mahout.cf.taste.recommender.CandidateItemsStrategy;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.plista.kornakapi.KornakapiRecommender;
+import org.plista.kornakapi.core.storage.UserChangeTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,14 +42,33 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /** a matrix factorization based recommender that supports folding in new users */
 public final class FoldingFactorizationBasedRecommender extends AbstractRecommender implements KornakapiRecommender {
 
-  private FoldingFactorization foldingFactorization;
+  /** the model generation in use, replaced as a whole once its successor is completely built */
+  private volatile ModelGeneration currentGeneration;
   private final PersistenceStrategy persistenceStrategy;
   private final RefreshHelper refreshHelper;
-  private final int numEstimationThreads;
+  /** shared pool for parallel estimation, null if estimation should happen in the calling thread */
+  private final EstimationExecutor estimationExecutor;
+  /** number of partitions of the inner product index, 0 if candidates should be scanned exhaustively */
+  private final int numberOfIndexClusters;
+  /** maximum number of index partitions to visit per request, 0 for exact results */
+  private final int numberOfIndexProbes;
+  /** changes of the users to fold in again between trainings, null if users are only folded in when unknown */
+  private final UserChangeTracker userChanges;
+  /** latest user change contained in the factorization provided by the persistence strategy, 0 if unknown */
+  private volatile long includedChanges;
+
+  /** userID of users which are only known by their items */
+  public static final long ANONYMOUS = Long.MIN_VALUE;
+  /** number of users scored together in a batch */
+  static final int BATCH_CHUNK_SIZE = 32;
 
   private static final Logger log = LoggerFactory.getLogger(FoldingFactorizationBasedRecommender.class);
 
@@ -58,18 +78,23 @@ public final class FoldingFactorizationBasedRecommender extends AbstractRecommen
   }*/
 
   public FoldingFactorizationBasedRecommender(DataModel dataModel, CandidateItemsStrategy candidateItemsStrategy,
-      PersistenceStrategy persistenceStrategy, int numEstimationThreads) throws TasteException {
+      PersistenceStrategy persistenceStrategy, EstimationExecutor estimationExecutor, int numberOfIndexClusters,
+      int numberOfIndexProbes, UserChangeTracker userChanges) throws TasteException {
     super(dataModel, candidateItemsStrategy);
 
     this.persistenceStrategy = Preconditions.checkNotNull(persistenceStrategy);
+    this.estimationExecutor = estimationExecutor;
+    this.numberOfIndexClusters = numberOfIndexClusters;
+    this.numberOfIndexProbes = numberOfIndexProbes;
+    this.userChanges = userChanges;
     try {
       Factorization factorization = persistenceStrategy.load();
       Preconditions.checkNotNull(factorization, "PersistenceStrategy must provide an initial factorization");
-      foldingFactorization = new FoldingFactorization(factorization);
+      /* we cannot know which changes the initial factorization contains */
+      currentGeneration = ModelGeneration.build(1, factorization, numberOfIndexClusters, numberOfIndexProbes, 0);
     } catch (IOException e) {
       throw new TasteException("Error loading factorization", e);
     }
-    this.numEstimationThreads = numEstimationThreads;
 
     refreshHelper = new RefreshHelper(new Callable<Object>() {
       @Override
@@ -82,14 +107,44 @@ public final class FoldingFactorizationBasedRecommender extends AbstractRecommen
     refreshHelper.addDependency(candidateItemsStrategy);
   }
 
+  /**
+   * builds and warms up the next generation in the refreshing thread while requests are served from the current one,
+   * and publishes it with a single write. If the build fails, the current generation stays in use.
+   *
+   * The new generation contains the user changes that the trainer reported via {@link #setIncludedChanges(long)},
+   * users who changed later are folded in.
+   */
   private void reloadFactorization() throws TasteException {
     try {
+      /* read before the factorization, so that a concurrent report can only make it too old, never too new */
+      long includedChanges = this.includedChanges;
       Factorization factorization = Preconditions.checkNotNull(persistenceStrategy.load());
-      foldingFactorization = new FoldingFactorization(factorization);
+      currentGeneration = ModelGeneration.build(currentGeneration.generation() + 1, factorization,
+          numberOfIndexClusters, numberOfIndexProbes, includedChanges);
     } catch (IOException e) {
       throw new TasteException("Error reloading factorization", e);
     }
   }
+
+  /**
+   * tells which user changes the factorization provided by the persistence strategy contains, to be called by the
+   * trainer after it replaced the factorization and before it refreshes this recommender
+   *
+   * @param includedChanges sequence number of the {@link UserChangeTracker} taken before the training data was read
+   */
+  public void setIncludedChanges(long includedChanges) {
+    this.includedChanges = includedChanges;
+  }
+
+  /** @return the number of the model generation in use, starting at 1 */
+  public long getModelGeneration() {
+    return currentGeneration.generation();
+  }
+
+  /** @return how long it took to build and warm up the model generation in use */
+  public long getModelBuildMillis() {
+    return currentGeneration.buildMillis();
+  }
   
 	@Override
 	public List<RecommendedItem> recommend(long userID, int howMany,
@@ -111,20 +166,14 @@ public final class FoldingFactorizationBasedRecommender extends AbstractRecommen
     Preconditions.checkArgument(howMany >= 1, "howMany must be at least 1");
     log.debug("Recommending items for user ID '{}'", userID);
     
-    PreferenceArray preferencesFromUser = asPreferences(itemIDs);
-      
-    long fetchItemIDsStart = System.currentTimeMillis();
-    FastIDSet possibleItemIDs = getAllOtherItems(userID, preferencesFromUser);
-    long fetchItemIDsDuration = System.currentTimeMillis() - fetchItemIDsStart;
-
     long estimateStart = System.currentTimeMillis();
-    List<RecommendedItem> topItems;
-    if (numEstimationThreads > 1) {
-      topItems = ParallelTopItems.getTopItems(howMany, numEstimationThreads, possibleItemIDs, rescorer,
-                                              new Estimator(userID));
-    } else {
-      topItems = TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer, new Estimator(userID));
+    ModelGeneration generation = currentGeneration;
+    float[] userFeatures = userFeatures(generation, userID, itemIDs);
+    if (userFeatures == null) {
+      throw new NoSuchUserException(userID);
     }
+    List<RecommendedItem> topItems = topItems(generation.foldingFactorization(), userFeatures, userID, itemIDs,
+        howMany, rescorer);
     long estimateDuration = System.currentTimeMillis() - estimateStart;
     
     long numCandidates = -1;
@@ -133,8 +182,8 @@ public final class FoldingFactorizationBasedRecommender extends AbstractRecommen
     }
     
     if (log.isDebugEnabled()) {
-    	log.debug("fetched {} interactions of user {} ({} itemIDs in {} ms, estimation of {} in {} ms)", 
-    			new Object[] { preferencesFromUser.length(), userID, possibleItemIDs.size(), fetchItemIDsDuration, numCandidates, estimateDuration });
+    	log.debug("fetched {} interactions of user {} (estimation of {} candidates in {} ms)", 
+    			new Object[] { itemIDs.length, userID, numCandidates, estimateDuration });
 
     }
     
@@ -145,17 +194,16 @@ public final class FoldingFactorizationBasedRecommender extends AbstractRecommen
 
   @Override
   public float estimatePreference(long userID, long itemID) throws TasteException, NoSuchItemException, NoSuchUserException {
-	  double[] userFeatures = foldingFactorization.factorization().getUserFeatures(userID);
-	  double[] itemFeatures = foldingFactorization.factorization().getItemFeatures(itemID);
+	  ModelGeneration generation = currentGeneration;
+	  float[] userFeatures = userFeatures(generation, userID, null);
+	  if (userFeatures == null) {
+	    throw new NoSuchUserException(userID);
+	  }
+	  double[] itemFeatures = generation.foldingFactorization().factorization().getItemFeatures(itemID);
 	  return (float) dotProduct(userFeatures, itemFeatures);
   }
 
-  private float estimatePreferenceForAnonymous(double[] foldedInUserFeatures, long itemID) throws NoSuchItemException {
-	double[] itemFeatures = foldingFactorization.factorization().getItemFeatures(itemID);
-    return (float) dotProduct(foldedInUserFeatures, itemFeatures);
-  }
-
-  private double dotProduct(double[] userFeatures, double[] itemFeatures) {
+  private double dotProduct(float[] userFeatures, double[] itemFeatures) {
     double dot = 0;
     for (int feature = 0; feature < userFeatures.length; feature++) {
       dot += userFeatures[feature] * itemFeatures[feature];
@@ -166,71 +214,273 @@ public final class FoldingFactorizationBasedRecommender extends AbstractRecommen
   @Override
   public List<RecommendedItem> recommendToAnonymous(long[] itemIDs, int howMany, IDRescorer rescorer)
       throws TasteException {
+    return recommendToAnonymous(null, itemIDs, howMany, rescorer);
+  }
 
-    //TODO what to do here in the non-implicit case? choose a rating?
-	long fetchItemIDsStart = System.currentTimeMillis();
-    PreferenceArray preferences = asPreferences(itemIDs);
-    long fetchItemIDsDuration = System.currentTimeMillis() - fetchItemIDsStart;
+  /**
+   * recommends items to an anonymous session. The folded in features of the session are cached, so that a request
+   * which extends the items of an earlier one only needs to fold in the new items.
+   *
+   * @param sessionID token of the session, null to recognize the session by its items
+   */
+  public List<RecommendedItem> recommendToAnonymous(String sessionID, long[] itemIDs, int howMany,
+      IDRescorer rescorer) throws TasteException {
 
+    //TODO what to do here in the non-implicit case? choose a rating?
     long estimateStart = System.currentTimeMillis();
-    double[] foldedInUserFeatures = foldingFactorization.foldInAnonymousUser(itemIDs);
-
-    FastIDSet possibleItemIDs = getAllOtherItems(Long.MIN_VALUE, preferences);
-    List<RecommendedItem> topItems;
- 
-    if (numEstimationThreads > 1) {
-        topItems = ParallelTopItems.getTopItems(howMany, numEstimationThreads, possibleItemIDs, rescorer,
-        		new AnonymousEstimator(foldedInUserFeatures));
-      } else {
-        topItems = TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer, new AnonymousEstimator(foldedInUserFeatures));
-      }
+    ModelGeneration generation = currentGeneration;
+    double[] foldedInUserFeatures = generation.anonymousSessions().foldIn(sessionID, itemIDs);
+
+    List<RecommendedItem> topItems = topItems(generation.foldingFactorization(),
+        PackedItemFeatures.toFloats(foldedInUserFeatures), ANONYMOUS, itemIDs, howMany, rescorer);
+
     log.debug("Recommendations are: {}", topItems);
     long estimateDuration = System.currentTimeMillis() - estimateStart;
     if (log.isDebugEnabled()) {
-    	log.debug("fetched {} interactions of Anonymous ({} itemIDs in {} ms, estimation in {} ms)", 
-    			new Object[] { preferences.length(), preferences.length(), fetchItemIDsDuration, estimateDuration });
+    	log.debug("fetched {} interactions of Anonymous (estimation in {} ms)", 
+    			new Object[] { itemIDs.length, estimateDuration });
 
     }
     return topItems;
   }
 
-  private PreferenceArray asPreferences(long[] itemIDs) {
-    PreferenceArray preferences = new BooleanUserPreferenceArray(itemIDs.length);
-    for (int n = 0; n < itemIDs.length; n++) {
-      preferences.setItemID(n, itemIDs[n]);
+  /**
+   * scores the label's candidates directly if they are fewer than the known items, otherwise searches the inner
+   * product index if there is one and the rescorer leaves the scores untouched, otherwise resolves all unknown items
+   * to rows of the packed item features once, and scores them in blocks
+   */
+  private List<RecommendedItem> topItems(FoldingFactorization currentFactorization, float[] userFeatures, long userID,
+      long[] historyItemIDs, int howMany, IDRescorer rescorer) throws TasteException {
+
+    PackedItemFeatures itemFeatures = currentFactorization.itemFeatures();
+
+    if (rescorer instanceof FixedCandidatesIDRescorer) {
+      FastIDSet candidates = ((FixedCandidatesIDRescorer) rescorer).candidates();
+      if (candidates.size() < itemFeatures.numItems()) {
+        /* resolving the rows drops unknown items and the history of the user */
+        return topItems(itemFeatures, userFeatures, itemFeatures.candidateRows(candidates, historyItemIDs), howMany,
+            null);
+      }
     }
-    return preferences;
+
+    InnerProductIndex itemIndex = currentFactorization.itemIndex();
+    if (itemIndex != null && (rescorer == null || rescorer instanceof FixedCandidatesIDRescorer)) {
+      /* the index looks up the items it visits, the catalog is not copied */
+      FastIDSet candidates = rescorer != null ? ((FixedCandidatesIDRescorer) rescorer).candidates() : null;
+      return itemIndex.getTopItems(howMany, userFeatures, candidates, asIDSet(historyItemIDs), numberOfIndexProbes);
+    }
+
+    FastIDSet possibleItemIDs = getAllOtherItems(userID, asPreferences(historyItemIDs));
+    return topItems(itemFeatures, userFeatures, itemFeatures.rows(possibleItemIDs, rescorer), howMany, rescorer);
   }
 
-  private final class Estimator implements TopItems.Estimator<Long> {
+  private List<RecommendedItem> topItems(PackedItemFeatures itemFeatures, float[] userFeatures, int[] rows,
+      int howMany, IDRescorer rescorer) throws TasteException {
+    if (estimationExecutor != null) {
+      return ParallelTopItems.getTopItems(howMany, estimationExecutor, itemFeatures, userFeatures, rows, rescorer);
+    }
+    return ArrayTopItems.getTopItems(howMany, itemFeatures, userFeatures, rows, 0, rows.length, rescorer);
+  }
+
+  /**
+   * computes recommendations for many users at once. The candidates are resolved once, the users are scored in
+   * blocks against the item features, possibly in parallel on the estimation executor, and the results are handed
+   * to the listener in the order of the users as soon as they are available. With an estimation executor the request
+   * is bounded by its timeout: the users of chunks that are not done by then are reported as timed out instead of
+   * being computed in the calling thread. The chunk that is computed when the deadline passes still completes.
+   *
+   * @param userIDs {@link #ANONYMOUS} for users that should be folded in from their items
+   * @param itemIDs the history per user, null entries are fetched from the data model
+   */
+  public void recommend(long[] userIDs, long[][] itemIDs, int howMany, IDRescorer rescorer,
+      BatchRecommendationListener listener) throws TasteException, IOException {
+    Preconditions.checkArgument(howMany >= 1, "howMany must be at least 1");
+    Preconditions.checkArgument(userIDs.length == itemIDs.length, "need itemIDs for every user");
 
-    private final long theUserID;
+    ModelGeneration generation = currentGeneration;
+    PackedItemFeatures itemFeatures = generation.foldingFactorization().itemFeatures();
 
-    private Estimator(long theUserID) {
-      this.theUserID = theUserID;
+    int[] rows;
+    IDRescorer remainingRescorer = rescorer;
+    if (rescorer instanceof FixedCandidatesIDRescorer) {
+      rows = itemFeatures.candidateRows(((FixedCandidatesIDRescorer) rescorer).candidates(), null);
+      remainingRescorer = null;
+    } else {
+      rows = itemFeatures.rows(getAllOtherItems(ANONYMOUS, asPreferences(new long[0])), rescorer);
     }
 
-    @Override
-    public double estimate(Long itemID) throws TasteException {
-      return estimatePreference(theUserID, itemID);
+    List<BatchChunk> chunks = Lists.newArrayList();
+    for (int fromUser = 0; fromUser < userIDs.length; fromUser += BATCH_CHUNK_SIZE) {
+      int toUser = Math.min(fromUser + BATCH_CHUNK_SIZE, userIDs.length);
+      chunks.add(new BatchChunk(generation, userIDs, itemIDs, fromUser, toUser, rows, howMany, remainingRescorer));
     }
-  }
 
+    /* the whole request takes at most one timeout plus the time of one chunk */
+    long deadline = estimationExecutor != null ? System.currentTimeMillis() + estimationExecutor.getTimeoutMillis() : 0;
+
+    /* fork: all but the first chunk go to the executor, if there is one */
+    List<Future<List<List<RecommendedItem>>>> futures = Lists.newArrayListWithCapacity(chunks.size());
+    for (int n = 0; n < chunks.size(); n++) {
+      futures.add(n > 0 && estimationExecutor != null ? estimationExecutor.trySubmit(chunks.get(n)) : null);
+    }
 
+    /* join in order and stream the results */
+    int user = 0;
+    for (int n = 0; n < chunks.size(); n++) {
+      List<List<RecommendedItem>> results = null;
+      Future<List<List<RecommendedItem>>> future = futures.get(n);
+      if (future != null) {
+        try {
+          long remainingMillis = Math.max(0, deadline - System.currentTimeMillis());
+          results = future.get(remainingMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          future.cancel(true);
+          estimationExecutor.taskTimedOut();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new TasteException(e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof TasteException) {
+            throw (TasteException) e.getCause();
+          }
+          throw new TasteException(e.getCause());
+        }
+      }
+      if (results == null) {
+        if (estimationExecutor != null && System.currentTimeMillis() >= deadline) {
+          for (int chunkUser = 0; chunkUser < chunks.get(n).numUsers(); chunkUser++) {
+            listener.timedOut(user++);
+          }
+          continue;
+        }
+        /* the first chunk, or one the saturated executor rejected */
+        results = chunks.get(n).call();
+      }
+      for (List<RecommendedItem> recommendedItems : results) {
+        listener.recommended(user++, recommendedItems);
+      }
+    }
+  }
 
+  /** receives the results of a batch recommendation */
+  public interface BatchRecommendationListener {
+    void recommended(int index, List<RecommendedItem> recommendedItems) throws IOException;
 
-  private final class AnonymousEstimator implements TopItems.Estimator<Long> {
+    /** the user could not be scored before the deadline of the request */
+    void timedOut(int index) throws IOException;
+  }
 
-    private final double[] foldedInUserFeatures;
+  /** looks up or folds in a chunk of users and scores them together */
+  private final class BatchChunk implements Callable<List<List<RecommendedItem>>> {
+
+    private final ModelGeneration generation;
+    private final long[] userIDs;
+    private final long[][] itemIDs;
+    private final int fromUser;
+    private final int toUser;
+    private final int[] rows;
+    private final int howMany;
+    private final IDRescorer rescorer;
+
+    private BatchChunk(ModelGeneration generation, long[] userIDs, long[][] itemIDs, int fromUser, int toUser,
+        int[] rows, int howMany, IDRescorer rescorer) {
+      this.generation = generation;
+      this.userIDs = userIDs;
+      this.itemIDs = itemIDs;
+      this.fromUser = fromUser;
+      this.toUser = toUser;
+      this.rows = rows;
+      this.howMany = howMany;
+      this.rescorer = rescorer;
+    }
 
-    private AnonymousEstimator(double[] foldedInUserFeatures) {
-      this.foldedInUserFeatures = foldedInUserFeatures;
+    int numUsers() {
+      return toUser - fromUser;
     }
 
     @Override
-    public double estimate(Long itemID) throws TasteException {
-      return estimatePreferenceForAnonymous(foldedInUserFeatures, itemID);
+    public List<List<RecommendedItem>> call() throws TasteException {
+      float[][] userFeatures = new float[toUser - fromUser][];
+      FastIDSet[] history = new FastIDSet[toUser - fromUser];
+      for (int user = fromUser; user < toUser; user++) {
+        long[] historyIDs = itemIDs[user];
+        if (historyIDs == null && userIDs[user] != ANONYMOUS) {
+          try {
+            historyIDs = getDataModel().getPreferencesFromUser(userIDs[user]).getIDs();
+          } catch (NoSuchUserException e) {
+            historyIDs = null;
+          }
+        }
+        userFeatures[user - fromUser] = userFeatures(generation, userIDs[user], historyIDs);
+        if (historyIDs != null && historyIDs.length > 0) {
+          history[user - fromUser] = new FastIDSet(historyIDs.length);
+          for (long itemID : historyIDs) {
+            history[user - fromUser].add(itemID);
+          }
+        }
+      }
+      return ArrayTopItems.getTopItems(howMany, generation.foldingFactorization().itemFeatures(), userFeatures,
+          history, rows, rescorer);
+    }
+  }
+
+  /**
+   * @param historyIDs the items of the user, fetched from the data model when needed if null
+   * @return the features of the user from the factorization, or folded in from the history if the user is unknown to
+   *         the factorization or changed since its training, null if none of the items of the user are known
+   */
+  private float[] userFeatures(ModelGeneration generation, long userID, long[] historyIDs) throws TasteException {
+    FoldingFactorization currentFactorization = generation.foldingFactorization();
+    if (userID == ANONYMOUS) {
+      if (historyIDs == null || historyIDs.length == 0) {
+        return null;
+      }
+      try {
+        /* batch rows are no sessions that come back, caching them would only evict live sessions */
+        return PackedItemFeatures.toFloats(generation.anonymousSessions().foldInWithoutCaching(historyIDs));
+      } catch (NoSuchItemException e) {
+        return null;
+      }
+    }
+
+    long lastChange = userChanges != null ? userChanges.lastChange(userID) : FoldedInUsers.UNTRACKED;
+    if (lastChange <= generation.includedChanges()) {
+      try {
+        return PackedItemFeatures.toFloats(currentFactorization.factorization().getUserFeatures(userID));
+      } catch (NoSuchUserException e) {
+        /* fold in below */
+      }
+    }
+
+    FoldedInUsers foldedInUsers = generation.foldedInUsers();
+    float[] userFeatures = foldedInUsers.get(userID, lastChange);
+    if (userFeatures != null) {
+      return userFeatures;
+    }
+    if (historyIDs == null) {
+      try {
+        historyIDs = getDataModel().getPreferencesFromUser(userID).getIDs();
+      } catch (NoSuchUserException e) {
+        return null;
+      }
+    }
+    return foldedInUsers.foldIn(userID, lastChange, historyIDs);
+  }
+
+  private static FastIDSet asIDSet(long[] itemIDs) {
+    FastIDSet idSet = new FastIDSet(itemIDs.length);
+    for (long itemID : itemIDs) {
+      idSet.add(itemID);
     }
+    return idSet;
+  }
+
+  private PreferenceArray asPreferences(long[] itemIDs) {
+    PreferenceArray preferences = new BooleanUserPreferenceArray(itemIDs.length);
+    for (int n = 0; n < itemIDs.length; n++) {
+      preferences.setItemID(n, itemIDs[n]);
+    }
+    return preferences;
   }
 
   @Override
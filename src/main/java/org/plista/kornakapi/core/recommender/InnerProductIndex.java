@@ -0,0 +1,251 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * an in-process index for maximum inner product search over the packed item features. The items are partitioned
+ * with k-means, for every partition we keep its centroid c and its radius r, the largest distance of an item to
+ * the centroid. The score of any item x in the partition is bounded by u'x <= u'c + |u| r, so partitions are
+ * visited in the order of their bound and the search stops as soon as no remaining partition can beat the current
+ * top items. Limiting the number of visited partitions trades recall for latency.
+ */
+public class InnerProductIndex {
+
+  private final PackedItemFeatures itemFeatures;
+  private final int numClusters;
+  private final int numFeatures;
+  /** row-major, numClusters x numFeatures */
+  private final float[] centroids;
+  private final float[] radii;
+  /** the rows of cluster c are located at clusterRows[clusterOffsets[c], clusterOffsets[c + 1]) */
+  private final int[] clusterOffsets;
+  private final int[] clusterRows;
+
+  static final int NUM_ITERATIONS = 10;
+  /** k-means is trained on a sample of this many rows per cluster, all rows are assigned afterwards */
+  static final int SAMPLE_ROWS_PER_CLUSTER = 64;
+  private static final long SEED = 0xCAFEBABEL;
+
+  private static final Logger log = LoggerFactory.getLogger(InnerProductIndex.class);
+
+  public InnerProductIndex(PackedItemFeatures itemFeatures, int numClusters) {
+    Preconditions.checkArgument(numClusters > 0, "numClusters must be positive");
+
+    long start = System.currentTimeMillis();
+
+    this.itemFeatures = itemFeatures;
+    this.numFeatures = itemFeatures.numFeatures();
+    this.numClusters = Math.min(numClusters, itemFeatures.numItems());
+
+    centroids = new float[this.numClusters * numFeatures];
+    radii = new float[this.numClusters];
+    clusterOffsets = new int[this.numClusters + 1];
+    clusterRows = new int[itemFeatures.numItems()];
+
+    if (this.numClusters > 0) {
+      train();
+      assign();
+    }
+
+    if (log.isInfoEnabled()) {
+      log.info("Built inner product index with {} clusters over {} items in {} ms", new Object[] { this.numClusters,
+          itemFeatures.numItems(), System.currentTimeMillis() - start });
+    }
+  }
+
+  public int numClusters() {
+    return numClusters;
+  }
+
+  /** runs lloyd's algorithm on a random sample of the rows */
+  private void train() {
+    int numItems = itemFeatures.numItems();
+    Random random = new Random(SEED);
+
+    int[] sample = new int[numItems];
+    for (int row = 0; row < numItems; row++) {
+      sample[row] = row;
+    }
+    int sampleSize = (int) Math.min(numItems, (long) numClusters * SAMPLE_ROWS_PER_CLUSTER);
+    for (int n = 0; n < sampleSize; n++) {
+      int other = n + random.nextInt(numItems - n);
+      int tmp = sample[n];
+      sample[n] = sample[other];
+      sample[other] = tmp;
+    }
+
+    float[] row = new float[numFeatures];
+    for (int cluster = 0; cluster < numClusters; cluster++) {
+      itemFeatures.copyRow(sample[cluster], row);
+      System.arraycopy(row, 0, centroids, cluster * numFeatures, numFeatures);
+    }
+
+    double[] sums = new double[numClusters * numFeatures];
+    int[] counts = new int[numClusters];
+    for (int iteration = 0; iteration < NUM_ITERATIONS; iteration++) {
+      Arrays.fill(sums, 0);
+      Arrays.fill(counts, 0);
+      for (int n = 0; n < sampleSize; n++) {
+        itemFeatures.copyRow(sample[n], row);
+        int cluster = nearestCentroid(row);
+        counts[cluster]++;
+        int offset = cluster * numFeatures;
+        for (int feature = 0; feature < numFeatures; feature++) {
+          sums[offset + feature] += row[feature];
+        }
+      }
+      for (int cluster = 0; cluster < numClusters; cluster++) {
+        /* empty clusters keep their previous centroid */
+        if (counts[cluster] > 0) {
+          int offset = cluster * numFeatures;
+          for (int feature = 0; feature < numFeatures; feature++) {
+            centroids[offset + feature] = (float) (sums[offset + feature] / counts[cluster]);
+          }
+        }
+      }
+    }
+  }
+
+  /** assigns every row to its nearest centroid and lays out the rows of each cluster contiguously */
+  private void assign() {
+    int numItems = itemFeatures.numItems();
+    int[] clusterOfRow = new int[numItems];
+    float[] row = new float[numFeatures];
+
+    for (int r = 0; r < numItems; r++) {
+      itemFeatures.copyRow(r, row);
+      int cluster = nearestCentroid(row);
+      clusterOfRow[r] = cluster;
+      clusterOffsets[cluster + 1]++;
+      float distance = (float) Math.sqrt(squaredDistance(row, cluster));
+      if (distance > radii[cluster]) {
+        radii[cluster] = distance;
+      }
+    }
+
+    for (int cluster = 0; cluster < numClusters; cluster++) {
+      clusterOffsets[cluster + 1] += clusterOffsets[cluster];
+    }
+    int[] next = new int[numClusters];
+    System.arraycopy(clusterOffsets, 0, next, 0, numClusters);
+    for (int r = 0; r < numItems; r++) {
+      clusterRows[next[clusterOfRow[r]]++] = r;
+    }
+  }
+
+  private int nearestCentroid(float[] row) {
+    int nearest = 0;
+    double nearestDistance = Double.POSITIVE_INFINITY;
+    for (int cluster = 0; cluster < numClusters; cluster++) {
+      double distance = squaredDistance(row, cluster);
+      if (distance < nearestDistance) {
+        nearestDistance = distance;
+        nearest = cluster;
+      }
+    }
+    return nearest;
+  }
+
+  private double squaredDistance(float[] row, int cluster) {
+    int offset = cluster * numFeatures;
+    double distance = 0;
+    for (int feature = 0; feature < numFeatures; feature++) {
+      double diff = row[feature] - centroids[offset + feature];
+      distance += diff * diff;
+    }
+    return distance;
+  }
+
+  /**
+   * computes the top items among the candidates which are not excluded. Only the visited items are looked up in the
+   * sets, so a request does not need to collect the possible items of the whole catalog.
+   *
+   * @param candidateItemIDs the items to consider, null to consider all items of the index
+   * @param excludedItemIDs items to leave out, like the history of the user, may be null
+   * @param maxProbes maximum number of partitions to visit, 0 to visit as many as needed for an exact result
+   */
+  public List<RecommendedItem> getTopItems(int howMany, float[] userFeatures, FastIDSet candidateItemIDs,
+      FastIDSet excludedItemIDs, int maxProbes) {
+
+    Preconditions.checkArgument(userFeatures.length == numFeatures, "userFeatures has the wrong dimension");
+
+    double userNorm = 0;
+    for (int feature = 0; feature < numFeatures; feature++) {
+      userNorm += userFeatures[feature] * userFeatures[feature];
+    }
+    userNorm = Math.sqrt(userNorm);
+
+    /* visit the partitions in the order of their upper bound */
+    final float[] bounds = new float[numClusters];
+    Integer[] order = new Integer[numClusters];
+    for (int cluster = 0; cluster < numClusters; cluster++) {
+      float dot = 0;
+      int offset = cluster * numFeatures;
+      for (int feature = 0; feature < numFeatures; feature++) {
+        dot += userFeatures[feature] * centroids[offset + feature];
+      }
+      bounds[cluster] = (float) (dot + userNorm * radii[cluster]);
+      order[cluster] = cluster;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer one, Integer other) {
+        return Float.compare(bounds[other], bounds[one]);
+      }
+    });
+
+    TopItemsQueue topItems = new TopItemsQueue(howMany);
+    float[] scores = new float[ArrayTopItems.SCORE_BLOCK_SIZE];
+
+    int probes = maxProbes > 0 ? Math.min(maxProbes, numClusters) : numClusters;
+    for (int n = 0; n < probes; n++) {
+      int cluster = order[n];
+      if (topItems.isFull() && bounds[cluster] <= topItems.lowestTopValue()) {
+        break;
+      }
+      for (int blockStart = clusterOffsets[cluster]; blockStart < clusterOffsets[cluster + 1];
+           blockStart += ArrayTopItems.SCORE_BLOCK_SIZE) {
+        int blockEnd = Math.min(blockStart + ArrayTopItems.SCORE_BLOCK_SIZE, clusterOffsets[cluster + 1]);
+        itemFeatures.score(userFeatures, clusterRows, blockStart, blockEnd, scores);
+        for (int index = blockStart; index < blockEnd; index++) {
+          double score = scores[index - blockStart];
+          if (!topItems.accepts(score)) {
+            continue;
+          }
+          long itemID = itemFeatures.itemID(clusterRows[index]);
+          if ((candidateItemIDs == null || candidateItemIDs.contains(itemID))
+              && (excludedItemIDs == null || !excludedItemIDs.contains(itemID))) {
+            topItems.offer(itemID, score);
+          }
+        }
+      }
+    }
+
+    return topItems.toList();
+  }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+
+/**
+ * estimates the preference of a fixed user for items. Unlike the estimators of Mahout's TopItems it takes primitive
+ * IDs and signals items or users it knows nothing about with NaN instead of an exception.
+ */
+public interface ItemEstimator {
+
+  /** @return the estimated preference, NaN if the item or the user is unknown */
+  double estimate(long itemID) throws TasteException;
+}
@@ -33,10 +33,12 @@ public class LDATopicRecommender extends AbstractRecommender implements Kornakap
 	private LDARecommenderConfig conf;
 	private SemanticModel model;
 	private final RefreshHelper refreshHelper;
+	private final CandidateItemsStrategy allUnknownItemsStrategy;
 	
 	public LDATopicRecommender(DataModel dataModel,	CandidateItemsStrategy allUnknownItemsStrategy, LDARecommenderConfig conf) {
 		super(dataModel,allUnknownItemsStrategy );
 		this.conf = conf;
+		this.allUnknownItemsStrategy = allUnknownItemsStrategy;
 		model = new SemanticModel(new Path(conf.getLDARecommenderModelPath()), conf);
 		try {
 			model.read();
@@ -63,8 +65,15 @@ public class LDATopicRecommender extends AbstractRecommender implements Kornakap
 			int howMany, IDRescorer rescorer) throws TasteException, NoSuchItemException {
 		Long itemId = itemIDs[0];
 	    Vector itemFeature = model.getItemFeatures(itemId.toString());
-	    PreferenceArray preferences = asPreferences(itemIDs);
-	    FastIDSet possibleItemIDs =  getAllOtherItems(Long.MIN_VALUE, preferences);
+	    FastIDSet possibleItemIDs;
+	    if (rescorer instanceof FixedCandidatesIDRescorer
+	        && allUnknownItemsStrategy instanceof CachingAllUnknownItemsCandidateItemsStrategy) {
+	      /* only look at the label's candidates instead of copying all known items */
+	      possibleItemIDs = ((CachingAllUnknownItemsCandidateItemsStrategy) allUnknownItemsStrategy)
+	          .getCandidateItems(((FixedCandidatesIDRescorer) rescorer).candidates(), itemIDs);
+	    } else {
+	      possibleItemIDs = getAllOtherItems(Long.MIN_VALUE, asPreferences(itemIDs));
+	    }
 
 		List<RecommendedItem> topItems = TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer, new SemanticEstimator(itemFeature));
 		return topItems;
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * a factorization that serves the user features directly from a memory-mapped model file. The file consists of a
+ * header, the sorted userIDs and itemIDs and the float features of the users and items, one contiguous block each,
+ * in the order of the sorted IDs. Only the item features are copied to the heap, as folding in users and packing the
+ * item features need them as arrays anyway.
+ */
+final class MappedFactorization extends Factorization {
+
+  /** "KFM1", cannot be confused with the number of features that starts a file of the stream format */
+  static final int MAGIC = 0x4B464D31;
+  static final int VERSION = 1;
+  /** magic, version, numFeatures, numUsers and numItems, padded to the size of a long */
+  static final int HEADER_BYTES = 24;
+
+  private final int numFeatures;
+  private final int numUsers;
+  private final LongBuffer userIDs;
+  private final FloatBuffer userFeatures;
+
+  private MappedFactorization(int numFeatures, LongBuffer userIDs, FloatBuffer userFeatures,
+      FastByIDMap<Integer> itemIDMapping, double[][] itemFeatures) {
+    super(new FastByIDMap<Integer>(0), itemIDMapping, new double[0][0], itemFeatures);
+    this.numFeatures = numFeatures;
+    this.numUsers = userIDs.limit();
+    this.userIDs = userIDs;
+    this.userFeatures = userFeatures;
+  }
+
+  /** @return whether the file is written in the mapped format */
+  static boolean isMapped(File file) throws IOException {
+    if (file.length() < HEADER_BYTES) {
+      return false;
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      byte[] magic = new byte[4];
+      return in.read(magic) == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+  }
+
+  static MappedFactorization open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = map(channel, 0, HEADER_BYTES);
+      Preconditions.checkState(header.getInt() == MAGIC, "%s is not a mapped factorization", file);
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version " + version + " of " + file);
+      }
+      int numFeatures = header.getInt();
+      int numUsers = header.getInt();
+      int numItems = header.getInt();
+
+      long offset = HEADER_BYTES;
+      LongBuffer userIDs = map(channel, offset, 8L * numUsers).asLongBuffer();
+      offset += 8L * numUsers;
+      LongBuffer itemIDs = map(channel, offset, 8L * numItems).asLongBuffer();
+      offset += 8L * numItems;
+      FloatBuffer userFeatures = map(channel, offset, 4L * numUsers * numFeatures).asFloatBuffer();
+      offset += 4L * numUsers * numFeatures;
+      FloatBuffer itemFeatureBlock = map(channel, offset, 4L * numItems * numFeatures).asFloatBuffer();
+
+      FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>(numItems);
+      double[][] itemFeatures = new double[numItems][numFeatures];
+      for (int row = 0; row < numItems; row++) {
+        itemIDMapping.put(itemIDs.get(row), row);
+        int rowOffset = row * numFeatures;
+        for (int feature = 0; feature < numFeatures; feature++) {
+          itemFeatures[row][feature] = itemFeatureBlock.get(rowOffset + feature);
+        }
+      }
+
+      return new MappedFactorization(numFeatures, userIDs, userFeatures, itemIDMapping, itemFeatures);
+    } finally {
+      /* the mappings stay valid after the file is closed */
+      Closeables.closeQuietly(raf);
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long numBytes) throws IOException {
+    Preconditions.checkState(numBytes <= Integer.MAX_VALUE, "section of %s bytes is too large to map", numBytes);
+    if (offset + numBytes > channel.size()) {
+      throw new IOException("Model file is truncated, expected at least " + (offset + numBytes) + " bytes");
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, offset, numBytes);
+  }
+
+  /** writes the factorization in the mapped format */
+  static void write(Factorization factorization, File file) throws IOException {
+    int numFeatures = factorization.numFeatures();
+    long[] userIDs = sortedIDs(factorization.getUserIDMappings(), factorization.numUsers());
+    long[] itemIDs = sortedIDs(factorization.getItemIDMappings(), factorization.numItems());
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numFeatures);
+      out.writeInt(userIDs.length);
+      out.writeInt(itemIDs.length);
+      out.writeInt(0);
+      for (long userID : userIDs) {
+        out.writeLong(userID);
+      }
+      for (long itemID : itemIDs) {
+        out.writeLong(itemID);
+      }
+      for (long userID : userIDs) {
+        writeFeatures(out, factorization.getUserFeatures(userID), numFeatures);
+      }
+      for (long itemID : itemIDs) {
+        writeFeatures(out, factorization.getItemFeatures(itemID), numFeatures);
+      }
+      out.flush();
+    } catch (TasteException e) {
+      throw new IOException(e);
+    } finally {
+      Closeables.closeQuietly(out);
+    }
+  }
+
+  private static long[] sortedIDs(Iterable<Map.Entry<Long, Integer>> mappings, int numIDs) {
+    long[] ids = new long[numIDs];
+    int n = 0;
+    for (Map.Entry<Long, Integer> mapping : mappings) {
+      ids[n++] = mapping.getKey();
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  private static void writeFeatures(DataOutputStream out, double[] features, int numFeatures) throws IOException {
+    for (int feature = 0; feature < numFeatures; feature++) {
+      out.writeFloat((float) features[feature]);
+    }
+  }
+
+  @Override
+  public int numFeatures() {
+    return numFeatures;
+  }
+
+  @Override
+  public int numUsers() {
+    return numUsers;
+  }
+
+  @Override
+  public int userIndex(long userID) throws NoSuchUserException {
+    int low = 0;
+    int high = numUsers - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      long current = userIDs.get(middle);
+      if (current < userID) {
+        low = middle + 1;
+      } else if (current > userID) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    throw new NoSuchUserException(userID);
+  }
+
+  @Override
+  public double[] getUserFeatures(long userID) throws NoSuchUserException {
+    return userFeatures(userIndex(userID));
+  }
+
+  private double[] userFeatures(int row) {
+    double[] features = new double[numFeatures];
+    int offset = row * numFeatures;
+    for (int feature = 0; feature < numFeatures; feature++) {
+      features[feature] = userFeatures.get(offset + feature);
+    }
+    return features;
+  }
+
+  /** copies all user features to the heap, which defeats the purpose of the mapping */
+  @Override
+  public double[][] allUserFeatures() {
+    double[][] features = new double[numUsers][];
+    for (int row = 0; row < numUsers; row++) {
+      features[row] = userFeatures(row);
+    }
+    return features;
+  }
+
+  @Override
+  public Iterable<Map.Entry<Long, Integer>> getUserIDMappings() {
+    return new Iterable<Map.Entry<Long, Integer>>() {
+      @Override
+      public Iterator<Map.Entry<Long, Integer>> iterator() {
+        return new UserIDMappingIterator();
+      }
+    };
+  }
+
+  private final class UserIDMappingIterator implements Iterator<Map.Entry<Long, Integer>> {
+
+    private int row;
+
+    @Override
+    public boolean hasNext() {
+      return row < numUsers;
+    }
+
+    @Override
+    public Map.Entry<Long, Integer> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<Long, Integer> mapping = new AbstractMap.SimpleImmutableEntry<Long, Integer>(userIDs.get(row), row);
+      row++;
+      return mapping;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
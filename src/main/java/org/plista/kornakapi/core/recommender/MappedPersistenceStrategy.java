@@ -0,0 +1,84 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.FilePersistenceStrategy;
+import org.apache.mahout.cf.taste.impl.recommender.svd.PersistenceStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * persists factorizations in a format that can be memory-mapped, see {@link MappedFactorization}. Model files in
+ * the stream format of {@link FilePersistenceStrategy} are converted on their first load.
+ */
+public class MappedPersistenceStrategy implements PersistenceStrategy {
+
+  private final File file;
+
+  private static final Logger log = LoggerFactory.getLogger(MappedPersistenceStrategy.class);
+
+  public MappedPersistenceStrategy(File file) {
+    this.file = Preconditions.checkNotNull(file);
+  }
+
+  /** @return the factorization or null if the file does not exist */
+  @Override
+  public Factorization load() throws IOException {
+    if (!file.exists()) {
+      log.info("{} does not yet exist, no factorization found", file.getAbsolutePath());
+      return null;
+    }
+    if (!MappedFactorization.isMapped(file)) {
+      convert(file);
+    }
+    long start = System.currentTimeMillis();
+    MappedFactorization factorization = MappedFactorization.open(file);
+    if (log.isInfoEnabled()) {
+      log.info("Mapped factorization of {} users and {} items from {} in {} ms", new Object[] {
+          factorization.numUsers(), factorization.numItems(), file.getAbsolutePath(),
+          System.currentTimeMillis() - start });
+    }
+    return factorization;
+  }
+
+  @Override
+  public void maybePersist(Factorization factorization) throws IOException {
+    MappedFactorization.write(factorization, file);
+  }
+
+  /** rewrites a model file of the stream format in the mapped format */
+  static void convert(File file) throws IOException {
+    long start = System.currentTimeMillis();
+    Factorization factorization = new FilePersistenceStrategy(file).load();
+    File convertedFile = new File(file.getParentFile(), file.getName() + ".converting");
+    MappedFactorization.write(factorization, convertedFile);
+    if (!convertedFile.renameTo(file)) {
+      convertedFile.delete();
+      throw new IOException("Unable to replace " + file.getAbsolutePath() + " with its converted version");
+    }
+    if (log.isInfoEnabled()) {
+      log.info("Converted {} to the mapped format in {} ms", file.getAbsolutePath(),
+          System.currentTimeMillis() - start);
+    }
+  }
+}
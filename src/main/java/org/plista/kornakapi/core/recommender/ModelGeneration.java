@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * an immutable snapshot of a factorization and everything derived from it: the fold-in matrix, the packed item
+ * features, the inner product index and the caches of folded in users and anonymous sessions. A generation is
+ * completely built and warmed up before it is published, a request reads the current generation once and uses it for
+ * all of its work.
+ */
+final class ModelGeneration {
+
+  /** number of items used as queries to warm up a new generation */
+  static final int WARM_UP_QUERIES = 8;
+  private static final int WARM_UP_HOW_MANY = 10;
+
+  private final long generation;
+  private final FoldingFactorization foldingFactorization;
+  /** sequence number of the latest user change that is certainly contained in the factorization */
+  private final long includedChanges;
+  private final FoldedInUsers foldedInUsers;
+  private final AnonymousSessions anonymousSessions;
+  private final long buildMillis;
+
+  private static final Logger log = LoggerFactory.getLogger(ModelGeneration.class);
+
+  private ModelGeneration(long generation, FoldingFactorization foldingFactorization, long includedChanges,
+      long buildMillis) {
+    this.generation = generation;
+    this.foldingFactorization = foldingFactorization;
+    this.includedChanges = includedChanges;
+    foldedInUsers = new FoldedInUsers(foldingFactorization, FoldedInUsers.DEFAULT_MAX_USERS);
+    anonymousSessions = new AnonymousSessions(foldingFactorization, AnonymousSessions.DEFAULT_MAX_SESSIONS);
+    this.buildMillis = buildMillis;
+  }
+
+  /**
+   * builds the derived structures of the factorization and runs a few queries against them, so that the first
+   * requests to the new generation neither page in the arrays nor run in the interpreter
+   *
+   * @param numberOfIndexClusters number of partitions of the inner product index, 0 to not build an index
+   * @param numberOfIndexProbes maximum number of index partitions to visit per request, 0 for exact results
+   * @param includedChanges sequence number of the latest user change that is certainly contained in the
+   *                        factorization, see {@link org.plista.kornakapi.core.storage.UserChangeTracker}
+   */
+  static ModelGeneration build(long generation, Factorization factorization, int numberOfIndexClusters,
+      int numberOfIndexProbes, long includedChanges) {
+    long start = System.currentTimeMillis();
+    FoldingFactorization foldingFactorization = new FoldingFactorization(factorization, numberOfIndexClusters);
+    warmUp(foldingFactorization, numberOfIndexProbes);
+    long buildMillis = System.currentTimeMillis() - start;
+
+    if (log.isInfoEnabled()) {
+      log.info("Built model generation {} with {} items in {} ms",
+          new Object[] { generation, factorization.numItems(), buildMillis });
+    }
+    return new ModelGeneration(generation, foldingFactorization, includedChanges, buildMillis);
+  }
+
+  private static void warmUp(FoldingFactorization foldingFactorization, int numberOfIndexProbes) {
+    PackedItemFeatures itemFeatures = foldingFactorization.itemFeatures();
+    int numItems = itemFeatures.numItems();
+    if (numItems == 0) {
+      return;
+    }
+
+    int[] rows = new int[numItems];
+    for (int row = 0; row < numItems; row++) {
+      rows[row] = row;
+    }
+
+    InnerProductIndex itemIndex = foldingFactorization.itemIndex();
+    float[] query = new float[itemFeatures.numFeatures()];
+    int step = Math.max(1, numItems / WARM_UP_QUERIES);
+    for (int row = 0; row < numItems; row += step) {
+      itemFeatures.copyRow(row, query);
+      ArrayTopItems.getTopItems(WARM_UP_HOW_MANY, itemFeatures, query, rows, 0, rows.length, null);
+      if (itemIndex != null) {
+        itemIndex.getTopItems(WARM_UP_HOW_MANY, query, null, null, numberOfIndexProbes);
+      }
+      try {
+        foldingFactorization.foldInUser(new long[] { itemFeatures.itemID(row) });
+      } catch (NoSuchItemException e) {
+        /* cannot happen, the item is part of the factorization */
+      }
+    }
+  }
+
+  long generation() {
+    return generation;
+  }
+
+  FoldingFactorization foldingFactorization() {
+    return foldingFactorization;
+  }
+
+  long includedChanges() {
+    return includedChanges;
+  }
+
+  FoldedInUsers foldedInUsers() {
+    return foldedInUsers;
+  }
+
+  AnonymousSessions anonymousSessions() {
+    return anonymousSessions;
+  }
+
+  long buildMillis() {
+    return buildMillis;
+  }
+}
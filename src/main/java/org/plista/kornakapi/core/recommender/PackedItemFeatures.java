@@ -0,0 +1,179 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * the item features of a {@link Factorization} packed into a single row-major float array, so that scoring a
+ * candidate walks contiguous memory instead of chasing a boxed ID lookup and a separate array per item
+ */
+public class PackedItemFeatures {
+
+  private final int numFeatures;
+  private final int numItems;
+  /** row-major, the features of row r are located at [r * numFeatures, (r + 1) * numFeatures) */
+  private final float[] features;
+  private final long[] itemIDs;
+  /** maps itemIDs to row + 1, as absent keys are reported as 0 */
+  private final OpenLongIntHashMap rowsPlusOne;
+
+  public PackedItemFeatures(Factorization factorization) {
+    numItems = factorization.numItems();
+    numFeatures = numItems > 0 ? factorization.numFeatures() : 0;
+
+    Preconditions.checkState((long) numItems * numFeatures <= Integer.MAX_VALUE,
+        "too many item features to pack into a single array");
+
+    features = new float[numItems * numFeatures];
+    itemIDs = new long[numItems];
+    rowsPlusOne = new OpenLongIntHashMap(numItems);
+
+    double[][] allItemFeatures = factorization.allItemFeatures();
+    for (Map.Entry<Long, Integer> mapping : factorization.getItemIDMappings()) {
+      int row = mapping.getValue();
+      itemIDs[row] = mapping.getKey();
+      rowsPlusOne.put(mapping.getKey(), row + 1);
+      double[] itemFeatures = allItemFeatures[row];
+      int offset = row * numFeatures;
+      for (int feature = 0; feature < numFeatures; feature++) {
+        features[offset + feature] = (float) itemFeatures[feature];
+      }
+    }
+  }
+
+  public int numFeatures() {
+    return numFeatures;
+  }
+
+  public int numItems() {
+    return numItems;
+  }
+
+  public long itemID(int row) {
+    return itemIDs[row];
+  }
+
+  /** @return the row of the item or -1 if the item is unknown */
+  public int row(long itemID) {
+    return rowsPlusOne.get(itemID) - 1;
+  }
+
+  /**
+   * resolves the candidates to rows once per request, unknown and filtered items are dropped, the rows are sorted so
+   * that scoring walks the matrix front to back
+   */
+  public int[] rows(FastIDSet possibleItemIDs, IDRescorer rescorer) {
+    return rows(possibleItemIDs, null, rescorer);
+  }
+
+  /**
+   * resolves a candidate set to rows without copying it, unknown and excluded items are dropped
+   *
+   * @param excludedItemIDs usually the history of the user
+   */
+  public int[] candidateRows(FastIDSet candidates, long[] excludedItemIDs) {
+    FastIDSet excluded = null;
+    if (excludedItemIDs != null && excludedItemIDs.length > 0) {
+      excluded = new FastIDSet(excludedItemIDs.length);
+      for (long itemID : excludedItemIDs) {
+        excluded.add(itemID);
+      }
+    }
+    return rows(candidates, excluded, null);
+  }
+
+  private int[] rows(FastIDSet itemIDs, FastIDSet excluded, IDRescorer rescorer) {
+    int[] rows = new int[Math.min(itemIDs.size(), numItems)];
+    int numRows = 0;
+    LongPrimitiveIterator iterator = itemIDs.iterator();
+    while (iterator.hasNext() && numRows < rows.length) {
+      long itemID = iterator.nextLong();
+      int row = row(itemID);
+      if (row >= 0 && (excluded == null || !excluded.contains(itemID))
+          && (rescorer == null || !rescorer.isFiltered(itemID))) {
+        rows[numRows++] = row;
+      }
+    }
+    Arrays.sort(rows, 0, numRows);
+    return numRows == rows.length ? rows : Arrays.copyOf(rows, numRows);
+  }
+
+  public void copyRow(int row, float[] target) {
+    System.arraycopy(features, row * numFeatures, target, 0, numFeatures);
+  }
+
+  public static float[] toFloats(double[] userFeatures) {
+    float[] packed = new float[userFeatures.length];
+    for (int feature = 0; feature < userFeatures.length; feature++) {
+      packed[feature] = (float) userFeatures[feature];
+    }
+    return packed;
+  }
+
+  /** scores the rows in [fromIndex, toIndex) into scores[0, toIndex - fromIndex) */
+  public void score(float[] userFeatures, int[] rows, int fromIndex, int toIndex, float[] scores) {
+    for (int n = fromIndex; n < toIndex; n++) {
+      scores[n - fromIndex] = dot(userFeatures, rows[n]);
+    }
+  }
+
+  /**
+   * scores the rows in [fromIndex, toIndex) for several users at once into scores[user][0, toIndex - fromIndex), every
+   * item row is loaded once for all users
+   */
+  public void score(float[][] userFeatures, int[] rows, int fromIndex, int toIndex, float[][] scores) {
+    for (int n = fromIndex; n < toIndex; n++) {
+      int row = rows[n];
+      for (int user = 0; user < userFeatures.length; user++) {
+        scores[user][n - fromIndex] = dot(userFeatures[user], row);
+      }
+    }
+  }
+
+  /**
+   * the loop is unrolled into four independent accumulators to break the dependency chain of the sum, which lets the
+   * JIT keep several multiply-adds in flight
+   */
+  public float dot(float[] userFeatures, int row) {
+    float[] m = features;
+    int offset = row * numFeatures;
+    float sum0 = 0;
+    float sum1 = 0;
+    float sum2 = 0;
+    float sum3 = 0;
+    int feature = 0;
+    for (; feature + 3 < numFeatures; feature += 4) {
+      sum0 += userFeatures[feature] * m[offset + feature];
+      sum1 += userFeatures[feature + 1] * m[offset + feature + 1];
+      sum2 += userFeatures[feature + 2] * m[offset + feature + 2];
+      sum3 += userFeatures[feature + 3] * m[offset + feature + 3];
+    }
+    for (; feature < numFeatures; feature++) {
+      sum0 += userFeatures[feature] * m[offset + feature];
+    }
+    return (sum0 + sum1) + (sum2 + sum3);
+  }
+}
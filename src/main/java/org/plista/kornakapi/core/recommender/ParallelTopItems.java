@@ -19,87 +19,153 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
-import org.apache.mahout.cf.taste.impl.recommender.ByValueRecommendedItemComparator;
 import org.apache.mahout.cf.taste.impl.recommender.TopItems;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * computes the top items by splitting the candidates into slices which are estimated on a shared
+ * {@link EstimationExecutor}, the calling thread estimates the first slice itself
+ */
 public class ParallelTopItems {
 
-  public static List<RecommendedItem> getTopItems(int howMany, int numThreads, FastIDSet possibleItemIDs,
-      final IDRescorer rescorer, final TopItems.Estimator<Long> estimator) throws TasteException {
+  /** slices smaller than this are not worth the hand-off to another thread */
+  static final int MIN_SLICE_SIZE = 1024;
 
-    Preconditions.checkArgument(numThreads > 1);
-    Preconditions.checkNotNull(possibleItemIDs);
+  private static final Logger log = LoggerFactory.getLogger(ParallelTopItems.class);
+
+  public static List<RecommendedItem> getTopItems(int howMany, EstimationExecutor executor, FastIDSet possibleItemIDs,
+      IDRescorer rescorer, TopItems.Estimator<Long> estimator) throws TasteException {
     Preconditions.checkNotNull(estimator);
+    return getTopItems(howMany, executor, possibleItemIDs, rescorer, ArrayTopItems.adapt(estimator));
+  }
 
-    //long s = System.currentTimeMillis();
+  public static List<RecommendedItem> getTopItems(int howMany, EstimationExecutor executor, FastIDSet possibleItemIDs,
+      final IDRescorer rescorer, final ItemEstimator estimator) throws TasteException {
 
-    long[] itemIDsToEstimate = possibleItemIDs.toArray();
+    Preconditions.checkNotNull(executor);
+    Preconditions.checkNotNull(possibleItemIDs);
+    Preconditions.checkNotNull(estimator);
 
-    //long d = System.currentTimeMillis() - s;
-    //System.out.println("Preparation " + d);
+    final long[] itemIDsToEstimate = possibleItemIDs.toArray();
 
-    //s = System.currentTimeMillis();
-    ExecutorService queue = Executors.newFixedThreadPool(numThreads);
+    return forkJoin(howMany, executor, itemIDsToEstimate.length, new SliceFactory() {
+      @Override
+      public Callable<TopItemsQueue> slice(int howMany, int fromIndex, int toIndex) {
+        return new EstimationWorker(howMany, itemIDsToEstimate, fromIndex, toIndex, rescorer, estimator);
+      }
+    });
+  }
 
-    int fromIndex = 0;
-    List<EstimationWorker> estimatorWorkers = Lists.newArrayListWithCapacity(numThreads);
-    for (int n = 0; n < numThreads; n++) {
+  /** computes the top items from rows of the packed item features, which are scored in blocks per slice */
+  public static List<RecommendedItem> getTopItems(int howMany, EstimationExecutor executor,
+      final PackedItemFeatures itemFeatures, final float[] userFeatures, final int[] rows, final IDRescorer rescorer)
+      throws TasteException {
+
+    Preconditions.checkNotNull(executor);
+    Preconditions.checkNotNull(itemFeatures);
+    Preconditions.checkNotNull(rows);
+
+    return forkJoin(howMany, executor, rows.length, new SliceFactory() {
+      @Override
+      public Callable<TopItemsQueue> slice(final int howMany, final int fromIndex, final int toIndex) {
+        return new Callable<TopItemsQueue>() {
+          @Override
+          public TopItemsQueue call() {
+            return ArrayTopItems.topItems(howMany, itemFeatures, userFeatures, rows, fromIndex, toIndex, rescorer);
+          }
+        };
+      }
+    });
+  }
 
-      int toIndex = Math.min(fromIndex + itemIDsToEstimate.length / numThreads, itemIDsToEstimate.length);
-      EstimationWorker worker = new EstimationWorker(howMany, itemIDsToEstimate, fromIndex, toIndex, rescorer,
-                                                     estimator);
-      estimatorWorkers.add(worker);
-      queue.execute(worker);
-      fromIndex = toIndex;
+  private static List<RecommendedItem> forkJoin(int howMany, EstimationExecutor executor, int numCandidates,
+      SliceFactory slices) throws TasteException {
+
+    long deadline = System.currentTimeMillis() + executor.getTimeoutMillis();
+
+    int numSlices = Math.max(1, Math.min(executor.getNumThreads(), numCandidates / MIN_SLICE_SIZE));
+    int sliceSize = (numCandidates + numSlices - 1) / numSlices;
+
+    /* fork: hand all but the first slice to the executor */
+    List<Future<TopItemsQueue>> forked = Lists.newArrayListWithCapacity(numSlices - 1);
+    List<TopItemsQueue> topItems = Lists.newArrayListWithCapacity(numSlices);
+    for (int n = 1; n < numSlices; n++) {
+      int fromIndex = n * sliceSize;
+      int toIndex = Math.min(fromIndex + sliceSize, numCandidates);
+      Callable<TopItemsQueue> worker = slices.slice(howMany, fromIndex, toIndex);
+      Future<TopItemsQueue> future = executor.trySubmit(worker);
+      if (future != null) {
+        forked.add(future);
+      } else {
+        /* the executor is saturated, so we do the work ourselves */
+        topItems.add(call(worker));
+      }
     }
 
-    queue.shutdown();
-    try {
-      queue.awaitTermination(5, TimeUnit.SECONDS);
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
-    }
-    //d = System.currentTimeMillis() - s;
-    //System.out.println("Estimation " + d);
+    topItems.add(call(slices.slice(howMany, 0, Math.min(sliceSize, numCandidates))));
 
-    List<RecommendedItem> topItems = Lists.newArrayList();
-    for (int n = 0; n < numThreads; n++) {
-      topItems.addAll(estimatorWorkers.get(n).topItems);
+    /* join */
+    for (Future<TopItemsQueue> future : forked) {
+      try {
+        long remaining = Math.max(0, deadline - System.currentTimeMillis());
+        topItems.add(future.get(remaining, TimeUnit.MILLISECONDS));
+      } catch (TimeoutException e) {
+        future.cancel(true);
+        executor.taskTimedOut();
+        log.warn("Estimation slice did not finish within {} ms, returning partial results",
+            executor.getTimeoutMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new TasteException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof TasteException) {
+          throw (TasteException) e.getCause();
+        }
+        throw new TasteException(e.getCause());
+      }
     }
 
-    if (topItems.isEmpty()) {
-      return Collections.EMPTY_LIST;
-    }
-    if(topItems.size() < howMany){
-    	howMany = topItems.size();
+    return TopItemsQueue.merge(topItems, howMany);
+  }
+
+  private static TopItemsQueue call(Callable<TopItemsQueue> worker) throws TasteException {
+    try {
+      return worker.call();
+    } catch (TasteException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new TasteException(e);
     }
-    Collections.sort(topItems, ByValueRecommendedItemComparator.getInstance());
-    List<RecommendedItem> recommendedItems = topItems.subList(0, howMany);
+  }
 
-    return recommendedItems;
+  /** creates the worker for a slice of the candidates */
+  interface SliceFactory {
+    Callable<TopItemsQueue> slice(int howMany, int fromIndex, int toIndex);
   }
 
-  static class EstimationWorker implements Runnable {
+  static class EstimationWorker implements Callable<TopItemsQueue> {
 
     private final int howMany;
     private final long[] possibleItemIDs;
     private final int fromIndex;
     private final int toIndex;
     private final IDRescorer rescorer;
-    private final TopItems.Estimator<Long> estimator;
-
-    private List<RecommendedItem> topItems;
+    private final ItemEstimator estimator;
 
     EstimationWorker(int howMany, long[] possibleItemIDs, int fromIndex, int toIndex, IDRescorer rescorer,
-                     TopItems.Estimator<Long> estimator) {
+                     ItemEstimator estimator) {
       this.howMany = howMany;
       this.possibleItemIDs = possibleItemIDs;
       this.fromIndex = fromIndex;
@@ -109,12 +175,8 @@ public class ParallelTopItems {
     }
 
     @Override
-    public void run() {
-      try {
-        topItems = ArrayTopItems.getTopItems(howMany, possibleItemIDs, fromIndex, toIndex, rescorer, estimator);
-      } catch (TasteException e) {
-        throw new RuntimeException(e);
-      }
+    public TopItemsQueue call() throws TasteException {
+      return ArrayTopItems.topItems(howMany, possibleItemIDs, fromIndex, toIndex, rescorer, estimator);
     }
   }
 
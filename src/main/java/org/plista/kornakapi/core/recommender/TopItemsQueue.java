@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.collect.Lists;
+
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * a bounded min-heap on parallel primitive arrays that keeps the howMany items with the highest values. Offering an
+ * item allocates nothing, {@link RecommendedItem}s are only created for the final result.
+ */
+class TopItemsQueue {
+
+  private final int howMany;
+  private final long[] itemIDs;
+  private final float[] values;
+  private int size;
+
+  TopItemsQueue(int howMany) {
+    this.howMany = Math.max(0, howMany);
+    itemIDs = new long[this.howMany];
+    values = new float[this.howMany];
+  }
+
+  /** @return whether an item with this value would currently make it into the top items */
+  boolean accepts(double value) {
+    if (Double.isNaN(value)) {
+      return false;
+    }
+    return size < howMany || (howMany > 0 && value > values[0]);
+  }
+
+  boolean isFull() {
+    return size == howMany;
+  }
+
+  double lowestTopValue() {
+    return size == 0 ? Double.NEGATIVE_INFINITY : values[0];
+  }
+
+  int size() {
+    return size;
+  }
+
+  void offer(long itemID, double value) {
+    if (!accepts(value)) {
+      return;
+    }
+    if (size < howMany) {
+      itemIDs[size] = itemID;
+      values[size] = (float) value;
+      siftUp(itemIDs, values, size++);
+    } else {
+      itemIDs[0] = itemID;
+      values[0] = (float) value;
+      siftDown(itemIDs, values, 0, size);
+    }
+  }
+
+  /** @return the top items, sorted by descending value */
+  List<RecommendedItem> toList() {
+    return merge(Collections.singletonList(this), howMany);
+  }
+
+  /**
+   * merges the top items of several queues, for example of the slices of a parallel estimation
+   *
+   * @return the howMany items with the highest values of all queues, sorted by descending value
+   */
+  static List<RecommendedItem> merge(List<TopItemsQueue> queues, int howMany) {
+    int numQueues = queues.size();
+    long[][] sortedItemIDs = new long[numQueues][];
+    float[][] sortedValues = new float[numQueues][];
+    int total = 0;
+    for (int queue = 0; queue < numQueues; queue++) {
+      TopItemsQueue topItems = queues.get(queue);
+      sortedItemIDs[queue] = new long[topItems.size];
+      sortedValues[queue] = new float[topItems.size];
+      topItems.sortDescending(sortedItemIDs[queue], sortedValues[queue]);
+      total += topItems.size;
+    }
+
+    int resultSize = Math.min(howMany, total);
+    if (resultSize <= 0) {
+      return Collections.emptyList();
+    }
+    List<RecommendedItem> result = Lists.newArrayListWithCapacity(resultSize);
+    /* k-way merge, there are only a few queues so the best head is found by a linear scan */
+    int[] heads = new int[numQueues];
+    while (result.size() < resultSize) {
+      int best = -1;
+      for (int queue = 0; queue < numQueues; queue++) {
+        if (heads[queue] < sortedValues[queue].length &&
+            (best < 0 || sortedValues[queue][heads[queue]] > sortedValues[best][heads[best]])) {
+          best = queue;
+        }
+      }
+      result.add(new GenericRecommendedItem(sortedItemIDs[best][heads[best]], sortedValues[best][heads[best]]));
+      heads[best]++;
+    }
+    return result;
+  }
+
+  /** heapsorts a copy of the heap, moving the lowest remaining value to the end in every step */
+  private void sortDescending(long[] sortedItemIDs, float[] sortedValues) {
+    System.arraycopy(itemIDs, 0, sortedItemIDs, 0, size);
+    System.arraycopy(values, 0, sortedValues, 0, size);
+    for (int end = size - 1; end > 0; end--) {
+      swap(sortedItemIDs, sortedValues, 0, end);
+      siftDown(sortedItemIDs, sortedValues, 0, end);
+    }
+  }
+
+  private static void siftUp(long[] itemIDs, float[] values, int index) {
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (values[parent] <= values[index]) {
+        return;
+      }
+      swap(itemIDs, values, parent, index);
+      index = parent;
+    }
+  }
+
+  private static void siftDown(long[] itemIDs, float[] values, int index, int size) {
+    while (true) {
+      int child = 2 * index + 1;
+      if (child >= size) {
+        return;
+      }
+      if (child + 1 < size && values[child + 1] < values[child]) {
+        child++;
+      }
+      if (values[index] <= values[child]) {
+        return;
+      }
+      swap(itemIDs, values, index, child);
+      index = child;
+    }
+  }
+
+  private static void swap(long[] itemIDs, float[] values, int first, int second) {
+    long itemID = itemIDs[first];
+    itemIDs[first] = itemIDs[second];
+    itemIDs[second] = itemID;
+    float value = values[first];
+    values[first] = values[second];
+    values[second] = value;
+  }
+}
@@ -6,24 +6,27 @@ import java.io.IOException;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
-import org.apache.mahout.cf.taste.impl.recommender.svd.FilePersistenceStrategy;
 import org.apache.mahout.cf.taste.impl.recommender.svd.PersistenceStrategy;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.recommender.CandidateItemsStrategy;
 import org.plista.kornakapi.core.config.Configuration;
 import org.plista.kornakapi.core.config.FactorizationbasedRecommenderConfig;
 import org.plista.kornakapi.core.recommender.CachingAllUnknownItemsCandidateItemsStrategy;
+import org.plista.kornakapi.core.recommender.EstimationExecutor;
 import org.plista.kornakapi.core.recommender.FoldingFactorizationBasedRecommender;
+import org.plista.kornakapi.core.recommender.MappedPersistenceStrategy;
+import org.plista.kornakapi.core.storage.UserChangeTracker;
 
 
 public class FFBRFactory {
 	
-	public FoldingFactorizationBasedRecommender getRecommender(Configuration conf, FactorizationbasedRecommenderConfig factorizationbasedConf, DataModel data, String label, String recommenderName) throws IOException, TasteException{
+	public FoldingFactorizationBasedRecommender getRecommender(Configuration conf, FactorizationbasedRecommenderConfig factorizationbasedConf, DataModel data, String label, String recommenderName,
+			EstimationExecutor estimationExecutor, UserChangeTracker userChanges) throws IOException, TasteException{
 
 
 	        File modelFile = new File(conf.getModelDirectory(), recommenderName + ".model");
 
-	        PersistenceStrategy persistence = new FilePersistenceStrategy(modelFile);
+	        PersistenceStrategy persistence = new MappedPersistenceStrategy(modelFile);
 
 	        if (!modelFile.exists()) {
 	          createEmptyFactorization(persistence);
@@ -33,7 +36,8 @@ public class FFBRFactory {
 		            new CachingAllUnknownItemsCandidateItemsStrategy(data);
 
 	        FoldingFactorizationBasedRecommender svdRecommender = new FoldingFactorizationBasedRecommender(data,
-	            allUnknownItemsStrategy, persistence, factorizationbasedConf.getNumberOfThreadsForEstimation());
+	            allUnknownItemsStrategy, persistence, estimationExecutor, factorizationbasedConf.getNumberOfIndexClusters(),
+	            factorizationbasedConf.getNumberOfIndexProbes(), userChanges);
 	        
 	        return svdRecommender;
 
@@ -43,4 +47,17 @@ public class FFBRFactory {
 		        new double[0][0], new double[0][0]));
 		  }
 
+	/**
+	 * @return a shared executor for the estimation of the recommenders created from the given configuration or null if
+	 *         they should estimate in the calling thread
+	 */
+	public static EstimationExecutor createEstimationExecutor(FactorizationbasedRecommenderConfig factorizationbasedConf) {
+		if (factorizationbasedConf.getNumberOfThreadsForEstimation() <= 1) {
+			return null;
+		}
+		return new EstimationExecutor(factorizationbasedConf.getName(),
+				factorizationbasedConf.getNumberOfThreadsForEstimation(), factorizationbasedConf.getEstimationQueueSize(),
+				factorizationbasedConf.getEstimationTimeoutMillis());
+	}
+
 }
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.plista.kornakapi.core.config.StorageConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the candidate sets of the labels, shared by the {@link CandidateCacheStorageDecorator}s so that a modification
+ * through any of them is seen by all. Concurrent misses on a label wait for a single retrieval, modifications are
+ * applied to a copy of the cached set which then replaces it, so that sets handed out to readers never change.
+ *
+ * Invalidating a label does not cancel a retrieval in flight. Every modification therefore bumps a version of the
+ * label, and a set retrieved before the latest modification is thrown away on its next read and retrieved again.
+ *
+ * http://code.google.com/p/guava-libraries/wiki/CachesExplained
+ */
+public class CandidateCache {
+
+  private final Cache<String, VersionedCandidates> cache;
+  /** written under the update lock only, read without it */
+  private final ConcurrentMap<String, Long> versions = new ConcurrentHashMap<String, Long>();
+  /** serializes the copy-on-write updates of the cached sets */
+  private final Object updateLock = new Object();
+
+  private static final Logger log = LoggerFactory.getLogger(CandidateCache.class);
+
+  public CandidateCache(StorageConfiguration storageConf) {
+    CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder()
+        .maximumSize(storageConf.getCandidateCacheSize())
+        .recordStats();
+    if (storageConf.getCandidateCacheExpireAfterSeconds() > 0) {
+      cacheBuilder.expireAfterWrite(storageConf.getCandidateCacheExpireAfterSeconds(), TimeUnit.SECONDS);
+    }
+    cache = cacheBuilder.build();
+  }
+
+  /** the cached candidates of the label, retrieved from the given storage on a miss */
+  public FastIDSet get(final String label, final Storage storage) throws IOException {
+    while (true) {
+      VersionedCandidates candidates;
+      try {
+        candidates = cache.get(label, new Callable<VersionedCandidates>() {
+          @Override
+          public VersionedCandidates call() throws IOException {
+            long version = version(label);
+            FastIDSet itemIDs = storage.getCandidates(label);
+            if (log.isInfoEnabled()) {
+              log.info("Caching {} candidates for label {}", itemIDs.size(), label);
+            }
+            return new VersionedCandidates(itemIDs, version);
+          }
+        });
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+      if (candidates.version == version(label)) {
+        return candidates.itemIDs;
+      }
+      /* retrieved before a modification */
+      cache.asMap().remove(label, candidates);
+    }
+  }
+
+  /** applies the modifications to a copy of the cached set, labels that are not cached are left alone */
+  public void update(String label, List<Long> addedItemIDs, List<Long> deletedItemIDs) {
+    synchronized (updateLock) {
+      long version = version(label);
+      versions.put(label, version + 1);
+      VersionedCandidates cached = cache.getIfPresent(label);
+      if (cached == null || cached.version != version) {
+        cache.invalidate(label);
+        return;
+      }
+      FastIDSet updated = cached.itemIDs.clone();
+      for (long itemID : addedItemIDs) {
+        updated.add(itemID);
+      }
+      for (long itemID : deletedItemIDs) {
+        updated.remove(itemID);
+      }
+      cache.put(label, new VersionedCandidates(updated, version + 1));
+    }
+  }
+
+  /** replaces the candidates of the label */
+  public void replace(String label, FastIDSet itemIDs) {
+    synchronized (updateLock) {
+      long version = version(label) + 1;
+      versions.put(label, version);
+      cache.put(label, new VersionedCandidates(itemIDs, version));
+    }
+  }
+
+  private long version(String label) {
+    Long version = versions.get(label);
+    return version != null ? version : 0L;
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public void cleanUp() {
+    cache.cleanUp();
+  }
+
+  private static class VersionedCandidates {
+
+    private final FastIDSet itemIDs;
+    private final long version;
+
+    VersionedCandidates(FastIDSet itemIDs, long version) {
+      this.itemIDs = itemIDs;
+      this.version = version;
+    }
+  }
+}
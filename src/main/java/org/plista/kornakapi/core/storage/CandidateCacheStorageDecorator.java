@@ -15,37 +15,57 @@
 
 package org.plista.kornakapi.core.storage;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.Preference;
 import org.plista.kornakapi.core.Candidate;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.plista.kornakapi.core.config.StorageConfiguration;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 /**
- * a decorator for a {@link Storage} that caches the underlying candidate sets
- *
- * http://code.google.com/p/guava-libraries/wiki/CachesExplained
+ * a decorator for a {@link Storage} that caches the underlying candidate sets in a {@link CandidateCache}, which
+ * might be shared with the decorators of other labels.
  */
 public class CandidateCacheStorageDecorator implements Storage {
 
   private final Storage delegate;
-  private final Cache<String, FastIDSet> cache;
+  private final CandidateCache cache;
+  /** labels of the items shared by all storages, null if they are always looked up in the database */
+  private volatile ItemLabelIndex itemLabels;
+  /** counts of the labels shared by all storages, null if there are none */
+  private volatile LabelStatistics labelStatistics;
 
-  private static final Logger log = LoggerFactory.getLogger(CandidateCacheStorageDecorator.class);
+  public CandidateCacheStorageDecorator(Storage delegate, StorageConfiguration storageConf) {
+    this(delegate, new CandidateCache(storageConf));
+  }
 
-  public CandidateCacheStorageDecorator(Storage delegate) {
+  public CandidateCacheStorageDecorator(Storage delegate, CandidateCache cache) {
     this.delegate = delegate;
-    cache = CacheBuilder.newBuilder()
-        .maximumSize(100)
-        .build();
+    this.cache = cache;
+  }
+
+  /** the cache of the candidate sets, to be shared with the decorators of other labels */
+  public CandidateCache candidateCache() {
+    return cache;
+  }
+
+  /** keeps the given index in sync with the modifications of the candidates and answers label lookups from it */
+  public void setItemLabelIndex(ItemLabelIndex itemLabels) {
+    this.itemLabels = itemLabels;
+  }
+
+  /** removes deleted candidates from the given statistics */
+  public void setLabelStatistics(LabelStatistics labelStatistics) {
+    this.labelStatistics = labelStatistics;
   }
 
   @Override
@@ -68,10 +88,35 @@ public class CandidateCacheStorageDecorator implements Storage {
     delegate.batchSetPreferences(preferences, batchSize);
   }
 
-  private void invalidateCache(String label) {
-    cache.invalidate(label);
-    if (log.isInfoEnabled()) {
-      log.info("Invalidated cache for label {}", label);
+  private void updateCache(Map<String, List<Long>> itemIDsByLabel, boolean added) {
+    List<Long> none = Collections.emptyList();
+    for (Map.Entry<String, List<Long>> entry : itemIDsByLabel.entrySet()) {
+      if (added) {
+        cache.update(entry.getKey(), entry.getValue(), none);
+      } else {
+        cache.update(entry.getKey(), none, entry.getValue());
+      }
+      updateItemLabels(entry.getKey(), entry.getValue(), added);
+    }
+  }
+
+  private void updateItemLabels(String label, List<Long> itemIDs, boolean added) {
+    LabelStatistics labelStatistics = this.labelStatistics;
+    if (labelStatistics != null && !added) {
+      for (long itemID : itemIDs) {
+        labelStatistics.candidateRemoved(label, itemID);
+      }
+    }
+    ItemLabelIndex itemLabels = this.itemLabels;
+    if (itemLabels == null) {
+      return;
+    }
+    for (long itemID : itemIDs) {
+      if (added) {
+        itemLabels.add(label, itemID);
+      } else {
+        itemLabels.remove(label, itemID);
+      }
     }
   }
 
@@ -83,46 +128,45 @@ public class CandidateCacheStorageDecorator implements Storage {
   @Override
   public void addCandidate(String label, long itemID) throws IOException {
     delegate.addCandidate(label, itemID);
-    invalidateCache(label);
-    /**
-    cache.getIfPresent(label).add(itemID);
-    if((int)(System.currentTimeMillis() * 1000) % 10 == 0){
-        invalidateCache(label);
-    }
-    **/
-
+    cache.update(label, Collections.singletonList(itemID), Collections.<Long>emptyList());
+    updateItemLabels(label, Collections.singletonList(itemID), true);
   }
 
   @Override
   public Iterable<String> batchAddCandidates(Iterator<Candidate> candidates, int batchSize) throws IOException {
-    Iterable<String> modifiedLabels = delegate.batchAddCandidates(candidates, batchSize);
-
-    for (String label : modifiedLabels) {
-      invalidateCache(label);
-    }
-
+    RecordingIterator recordingCandidates = new RecordingIterator(candidates);
+    Iterable<String> modifiedLabels = delegate.batchAddCandidates(recordingCandidates, batchSize);
+    updateCache(recordingCandidates.recorded(), true);
     return modifiedLabels;
   }
 
   @Override
   public void deleteCandidate(String label, long itemID) throws IOException {
     delegate.deleteCandidate(label, itemID);
-    invalidateCache(label);
+    cache.update(label, Collections.<Long>emptyList(), Collections.singletonList(itemID));
+    updateItemLabels(label, Collections.singletonList(itemID), false);
   }
 
   @Override
   public Iterable<String> batchDeleteCandidates(Iterator<Candidate> candidates, int batchSize) throws IOException {
-    Iterable<String> modifiedLabels = delegate.batchDeleteCandidates(candidates, batchSize);
-    for (String label : modifiedLabels) {
-      invalidateCache(label);
-    }
+    RecordingIterator recordingCandidates = new RecordingIterator(candidates);
+    Iterable<String> modifiedLabels = delegate.batchDeleteCandidates(recordingCandidates, batchSize);
+    updateCache(recordingCandidates.recorded(), false);
     return modifiedLabels;
   }
 
   @Override
   public void deleteAllCandidates(String label) throws IOException {
     delegate.deleteAllCandidates(label);
-    invalidateCache(label);
+    cache.replace(label, new FastIDSet());
+    ItemLabelIndex itemLabels = this.itemLabels;
+    if (itemLabels != null) {
+      itemLabels.removeAll(label);
+    }
+    LabelStatistics labelStatistics = this.labelStatistics;
+    if (labelStatistics != null) {
+      labelStatistics.allCandidatesRemoved(label);
+    }
   }
   
   public LinkedList<String> getAllLabels(){
@@ -134,34 +178,36 @@ public class CandidateCacheStorageDecorator implements Storage {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+	  } else if (delegate instanceof EmbeddedStorage) {
+	    allLabels = ((EmbeddedStorage) delegate).getAllLabels();
 	  }
 	  return allLabels;
 	}
   
   public String getItemsLabel(Long itemID) throws IOException{
+	  ItemLabelIndex itemLabels = this.itemLabels;
+	  if (itemLabels != null) {
+	    String[] labels = itemLabels.getLabels(itemID);
+	    if (labels != null) {
+	      return labels.length > 0 ? labels[0] : null;
+	    }
+	  }
 	  String itemLabel = null;
 	  if(delegate instanceof MySqlStorage){
 		  itemLabel = ((MySqlStorage) delegate).getItemsLabel(itemID);
+	  } else if (delegate instanceof EmbeddedStorage) {
+	    itemLabel = ((EmbeddedStorage) delegate).getItemsLabel(itemID);
+	  }
+	  if (itemLabels != null) {
+	    itemLabels.lookedUp(itemID, itemLabel);
 	  }
 	  return itemLabel;
   }
 	  
 
-  //TODO ideally other calls to an equal uncached label should block and wait for a single retrieval
   @Override
   public FastIDSet getCandidates(String label) throws IOException {
-    FastIDSet candidates = cache.getIfPresent(label);
-
-    if (candidates == null) {
-      candidates = delegate.getCandidates(label);
-      cache.put(label, candidates);
-
-      if (log.isInfoEnabled()) {
-        log.info("Caching {} candidates for label {}", candidates.size(), label);
-      }
-    }
-
-    return candidates;
+    return cache.get(label, delegate);
   }
 
   @Override
@@ -169,4 +215,44 @@ public class CandidateCacheStorageDecorator implements Storage {
     cache.cleanUp();
     delegate.close();
   }
+
+  /**
+   * remembers the candidates passing through, so that they can be applied to the cache afterwards. Candidates are
+   * copied, as iterators like {@link org.plista.kornakapi.core.io.CSVCandidateFileIterator} reuse a mutable instance.
+   */
+  static class RecordingIterator implements Iterator<Candidate> {
+
+    private final Iterator<Candidate> delegate;
+    private final Map<String, List<Long>> itemIDsByLabel = Maps.newHashMap();
+
+    RecordingIterator(Iterator<Candidate> delegate) {
+      this.delegate = delegate;
+    }
+
+    Map<String, List<Long>> recorded() {
+      return itemIDsByLabel;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return delegate.hasNext();
+    }
+
+    @Override
+    public Candidate next() {
+      Candidate candidate = delegate.next();
+      List<Long> itemIDs = itemIDsByLabel.get(candidate.getLabel());
+      if (itemIDs == null) {
+        itemIDs = Lists.newArrayList();
+        itemIDsByLabel.put(candidate.getLabel(), itemIDs);
+      }
+      itemIDs.add(candidate.getItemID());
+      return candidate;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
@@ -0,0 +1,664 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * a read-only in-memory {@link org.apache.mahout.cf.taste.model.DataModel} for training, which stores the preferences
+ * twice in primitive arrays: grouped by user (compressed sparse rows) and grouped by item (compressed sparse columns).
+ * Users and items are addressed by their index in the sorted arrays of their IDs, so a preference takes 16 bytes
+ * and no objects are created per user, item or preference.
+ */
+public class CompactDataModel extends AbstractDataModel {
+
+  private final long[] userIDs;
+  private final long[] itemIDs;
+
+  /** preferences of user u are at userOffsets[u] until userOffsets[u + 1], sorted by item index */
+  private final int[] userOffsets;
+  private final int[] userItemIndices;
+  private final float[] userValues;
+
+  /** preferences for item i are at itemOffsets[i] until itemOffsets[i + 1], sorted by user index */
+  private final int[] itemOffsets;
+  private final int[] itemUserIndices;
+  private final float[] itemValues;
+
+  /** latest user change that is certainly contained, see {@link UserChangeTracker} */
+  private final long includedChanges;
+
+  private CompactDataModel(long[] userIDs, long[] itemIDs, int[] userOffsets, int[] userItemIndices,
+      float[] userValues) {
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
+    this.userOffsets = userOffsets;
+    this.userItemIndices = userItemIndices;
+    this.userValues = userValues;
+
+    int numPreferences = userOffsets[userIDs.length];
+    itemOffsets = new int[itemIDs.length + 1];
+    for (int n = 0; n < numPreferences; n++) {
+      itemOffsets[userItemIndices[n] + 1]++;
+    }
+    for (int item = 0; item < itemIDs.length; item++) {
+      itemOffsets[item + 1] += itemOffsets[item];
+    }
+
+    /* visiting the users in order keeps the user indices of each item sorted */
+    itemUserIndices = new int[numPreferences];
+    itemValues = new float[numPreferences];
+    int[] nextPosition = Arrays.copyOf(itemOffsets, itemIDs.length);
+    float maxPreference = Float.NEGATIVE_INFINITY;
+    float minPreference = Float.POSITIVE_INFINITY;
+    for (int user = 0; user < userIDs.length; user++) {
+      for (int n = userOffsets[user]; n < userOffsets[user + 1]; n++) {
+        int position = nextPosition[userItemIndices[n]]++;
+        itemUserIndices[position] = user;
+        itemValues[position] = userValues[n];
+        maxPreference = Math.max(maxPreference, userValues[n]);
+        minPreference = Math.min(minPreference, userValues[n]);
+      }
+    }
+    setMaxPreference(maxPreference);
+    setMinPreference(minPreference);
+    includedChanges = 0;
+  }
+
+  private CompactDataModel(CompactDataModel model, long includedChanges) {
+    userIDs = model.userIDs;
+    itemIDs = model.itemIDs;
+    userOffsets = model.userOffsets;
+    userItemIndices = model.userItemIndices;
+    userValues = model.userValues;
+    itemOffsets = model.itemOffsets;
+    itemUserIndices = model.itemUserIndices;
+    itemValues = model.itemValues;
+    setMaxPreference(model.getMaxPreference());
+    setMinPreference(model.getMinPreference());
+    this.includedChanges = includedChanges;
+  }
+
+  /**
+   * @param includedChanges sequence number of the {@link UserChangeTracker} taken before the preferences were read
+   * @return the same preferences, known to contain all user changes up to the given one
+   */
+  CompactDataModel withIncludedChanges(long includedChanges) {
+    return new CompactDataModel(this, includedChanges);
+  }
+
+  /** @return the sequence number of the latest user change contained in the preferences, 0 if unknown */
+  public long getIncludedChanges() {
+    return includedChanges;
+  }
+
+  /** copies preferences exported from a {@link org.apache.mahout.cf.taste.model.JDBCDataModel} */
+  public static CompactDataModel fromPreferences(FastByIDMap<PreferenceArray> preferencesOfUsers) {
+    Builder builder = new Builder();
+    for (Map.Entry<Long, PreferenceArray> entry : preferencesOfUsers.entrySet()) {
+      PreferenceArray preferences = entry.getValue();
+      for (int n = 0; n < preferences.length(); n++) {
+        builder.add(entry.getKey(), preferences.getItemID(n), preferences.getValue(n));
+      }
+    }
+    return builder.build();
+  }
+
+  /** writes the preferences grouped by user, the grouping by item is rebuilt when they are read */
+  void writeTo(DataOutput out) throws IOException {
+    int numPreferences = getNumPreferences();
+    out.writeInt(userIDs.length);
+    out.writeInt(itemIDs.length);
+    out.writeInt(numPreferences);
+    for (long userID : userIDs) {
+      out.writeLong(userID);
+    }
+    for (long itemID : itemIDs) {
+      out.writeLong(itemID);
+    }
+    for (int offset : userOffsets) {
+      out.writeInt(offset);
+    }
+    for (int n = 0; n < numPreferences; n++) {
+      out.writeInt(userItemIndices[n]);
+    }
+    for (int n = 0; n < numPreferences; n++) {
+      out.writeFloat(userValues[n]);
+    }
+  }
+
+  /** reads preferences written by {@link #writeTo(DataOutput)}, starting at the position of the buffer */
+  static CompactDataModel readFrom(ByteBuffer buffer) {
+    long[] userIDs = new long[buffer.getInt()];
+    long[] itemIDs = new long[buffer.getInt()];
+    int[] userOffsets = new int[userIDs.length + 1];
+    int numPreferences = buffer.getInt();
+    int[] userItemIndices = new int[numPreferences];
+    float[] userValues = new float[numPreferences];
+
+    buffer.asLongBuffer().get(userIDs);
+    buffer.position(buffer.position() + 8 * userIDs.length);
+    buffer.asLongBuffer().get(itemIDs);
+    buffer.position(buffer.position() + 8 * itemIDs.length);
+    buffer.asIntBuffer().get(userOffsets);
+    buffer.position(buffer.position() + 4 * userOffsets.length);
+    buffer.asIntBuffer().get(userItemIndices);
+    buffer.position(buffer.position() + 4 * numPreferences);
+    buffer.asFloatBuffer().get(userValues);
+    buffer.position(buffer.position() + 4 * numPreferences);
+
+    return new CompactDataModel(userIDs, itemIDs, userOffsets, userItemIndices, userValues);
+  }
+
+  public int getNumPreferences() {
+    return userOffsets[userIDs.length];
+  }
+
+  @Override
+  public LongPrimitiveIterator getUserIDs() {
+    return new LongPrimitiveArrayIterator(userIDs);
+  }
+
+  @Override
+  public LongPrimitiveIterator getItemIDs() {
+    return new LongPrimitiveArrayIterator(itemIDs);
+  }
+
+  @Override
+  public PreferenceArray getPreferencesFromUser(long userID) throws NoSuchUserException {
+    int user = userIndex(userID);
+    int from = userOffsets[user];
+    PreferenceArray preferences = new GenericUserPreferenceArray(userOffsets[user + 1] - from);
+    preferences.setUserID(0, userID);
+    for (int n = 0; n < preferences.length(); n++) {
+      preferences.setItemID(n, itemIDs[userItemIndices[from + n]]);
+      preferences.setValue(n, userValues[from + n]);
+    }
+    return preferences;
+  }
+
+  @Override
+  public FastIDSet getItemIDsFromUser(long userID) throws NoSuchUserException {
+    int user = userIndex(userID);
+    FastIDSet itemIDsOfUser = new FastIDSet(userOffsets[user + 1] - userOffsets[user]);
+    for (int n = userOffsets[user]; n < userOffsets[user + 1]; n++) {
+      itemIDsOfUser.add(itemIDs[userItemIndices[n]]);
+    }
+    return itemIDsOfUser;
+  }
+
+  @Override
+  public PreferenceArray getPreferencesForItem(long itemID) throws NoSuchItemException {
+    int item = itemIndex(itemID);
+    int from = itemOffsets[item];
+    PreferenceArray preferences = new GenericItemPreferenceArray(itemOffsets[item + 1] - from);
+    preferences.setItemID(0, itemID);
+    for (int n = 0; n < preferences.length(); n++) {
+      preferences.setUserID(n, userIDs[itemUserIndices[from + n]]);
+      preferences.setValue(n, itemValues[from + n]);
+    }
+    return preferences;
+  }
+
+  @Override
+  public Float getPreferenceValue(long userID, long itemID) throws NoSuchUserException {
+    int user = userIndex(userID);
+    int item = Arrays.binarySearch(itemIDs, itemID);
+    if (item < 0) {
+      return null;
+    }
+    int position = Arrays.binarySearch(userItemIndices, userOffsets[user], userOffsets[user + 1], item);
+    return position >= 0 ? userValues[position] : null;
+  }
+
+  @Override
+  public Long getPreferenceTime(long userID, long itemID) throws NoSuchUserException {
+    userIndex(userID);
+    return null;
+  }
+
+  @Override
+  public int getNumItems() {
+    return itemIDs.length;
+  }
+
+  @Override
+  public int getNumUsers() {
+    return userIDs.length;
+  }
+
+  @Override
+  public int getNumUsersWithPreferenceFor(long itemID) throws NoSuchItemException {
+    int item = itemIndex(itemID);
+    return itemOffsets[item + 1] - itemOffsets[item];
+  }
+
+  @Override
+  public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) throws NoSuchItemException {
+    int item1 = itemIndex(itemID1);
+    int item2 = itemIndex(itemID2);
+    int n1 = itemOffsets[item1];
+    int n2 = itemOffsets[item2];
+    int count = 0;
+    while (n1 < itemOffsets[item1 + 1] && n2 < itemOffsets[item2 + 1]) {
+      int user1 = itemUserIndices[n1];
+      int user2 = itemUserIndices[n2];
+      if (user1 == user2) {
+        count++;
+        n1++;
+        n2++;
+      } else if (user1 < user2) {
+        n1++;
+      } else {
+        n2++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void setPreference(long userID, long itemID, float value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void removePreference(long userID, long itemID) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean hasPreferenceValues() {
+    return true;
+  }
+
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {}
+
+  private int userIndex(long userID) throws NoSuchUserException {
+    int user = Arrays.binarySearch(userIDs, userID);
+    if (user < 0) {
+      throw new NoSuchUserException(userID);
+    }
+    return user;
+  }
+
+  private int itemIndex(long itemID) throws NoSuchItemException {
+    int item = Arrays.binarySearch(itemIDs, itemID);
+    if (item < 0) {
+      throw new NoSuchItemException(itemID);
+    }
+    return item;
+  }
+
+  /**
+   * @return a view of the preferences whose seeded hash of user and item falls into [from, to) of [0, 1), or of all
+   *         other preferences if inside is false. The view shares the arrays of this model.
+   */
+  public DataModel hashRange(long seed, double from, double to, boolean inside) {
+    return new HashRangeView(seed, from, to, inside);
+  }
+
+  /** @return a position in [0, 1) that is uniformly distributed over the pairs of users and items */
+  static double hashPosition(long seed, long userID, long itemID) {
+    long hash = mix(seed ^ mix(userID * 0x9E3779B97F4A7C15L + itemID));
+    return (hash >>> 11) * 0x1.0p-53;
+  }
+
+  /** the finalizer of MurmurHash3 */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /** the preferences of a hash range, only the users and items that have preferences in it are visible */
+  private class HashRangeView extends AbstractDataModel {
+
+    private final long seed;
+    private final double from;
+    private final double to;
+    private final boolean inside;
+
+    private final long[] viewUserIDs;
+    private final long[] viewItemIDs;
+    private final int numPreferences;
+
+    HashRangeView(long seed, double from, double to, boolean inside) {
+      this.seed = seed;
+      this.from = from;
+      this.to = to;
+      this.inside = inside;
+
+      long[] visibleUserIDs = new long[userIDs.length];
+      boolean[] visibleItems = new boolean[itemIDs.length];
+      int numUsers = 0;
+      int numItems = 0;
+      int count = 0;
+      float maxPreference = Float.NEGATIVE_INFINITY;
+      float minPreference = Float.POSITIVE_INFINITY;
+      for (int user = 0; user < userIDs.length; user++) {
+        boolean visible = false;
+        for (int n = userOffsets[user]; n < userOffsets[user + 1]; n++) {
+          int item = userItemIndices[n];
+          if (contains(userIDs[user], itemIDs[item])) {
+            visible = true;
+            if (!visibleItems[item]) {
+              visibleItems[item] = true;
+              numItems++;
+            }
+            count++;
+            maxPreference = Math.max(maxPreference, userValues[n]);
+            minPreference = Math.min(minPreference, userValues[n]);
+          }
+        }
+        if (visible) {
+          visibleUserIDs[numUsers++] = userIDs[user];
+        }
+      }
+      viewUserIDs = Arrays.copyOf(visibleUserIDs, numUsers);
+      viewItemIDs = new long[numItems];
+      for (int item = 0, n = 0; item < itemIDs.length; item++) {
+        if (visibleItems[item]) {
+          viewItemIDs[n++] = itemIDs[item];
+        }
+      }
+      numPreferences = count;
+      setMaxPreference(maxPreference);
+      setMinPreference(minPreference);
+    }
+
+    private boolean contains(long userID, long itemID) {
+      double position = hashPosition(seed, userID, itemID);
+      return (position >= from && position < to) == inside;
+    }
+
+    @Override
+    public LongPrimitiveIterator getUserIDs() {
+      return new LongPrimitiveArrayIterator(viewUserIDs);
+    }
+
+    @Override
+    public LongPrimitiveIterator getItemIDs() {
+      return new LongPrimitiveArrayIterator(viewItemIDs);
+    }
+
+    @Override
+    public PreferenceArray getPreferencesFromUser(long userID) throws NoSuchUserException {
+      int user = userIndex(userID);
+      int size = 0;
+      for (int n = userOffsets[user]; n < userOffsets[user + 1]; n++) {
+        if (contains(userID, itemIDs[userItemIndices[n]])) {
+          size++;
+        }
+      }
+      if (size == 0) {
+        throw new NoSuchUserException(userID);
+      }
+      PreferenceArray preferences = new GenericUserPreferenceArray(size);
+      preferences.setUserID(0, userID);
+      int index = 0;
+      for (int n = userOffsets[user]; n < userOffsets[user + 1]; n++) {
+        long itemID = itemIDs[userItemIndices[n]];
+        if (contains(userID, itemID)) {
+          preferences.setItemID(index, itemID);
+          preferences.setValue(index, userValues[n]);
+          index++;
+        }
+      }
+      return preferences;
+    }
+
+    @Override
+    public FastIDSet getItemIDsFromUser(long userID) throws NoSuchUserException {
+      PreferenceArray preferences = getPreferencesFromUser(userID);
+      FastIDSet itemIDsOfUser = new FastIDSet(preferences.length());
+      for (int n = 0; n < preferences.length(); n++) {
+        itemIDsOfUser.add(preferences.getItemID(n));
+      }
+      return itemIDsOfUser;
+    }
+
+    @Override
+    public PreferenceArray getPreferencesForItem(long itemID) throws NoSuchItemException {
+      int item = itemIndex(itemID);
+      int size = 0;
+      for (int n = itemOffsets[item]; n < itemOffsets[item + 1]; n++) {
+        if (contains(userIDs[itemUserIndices[n]], itemID)) {
+          size++;
+        }
+      }
+      if (size == 0) {
+        throw new NoSuchItemException(itemID);
+      }
+      PreferenceArray preferences = new GenericItemPreferenceArray(size);
+      preferences.setItemID(0, itemID);
+      int index = 0;
+      for (int n = itemOffsets[item]; n < itemOffsets[item + 1]; n++) {
+        long userID = userIDs[itemUserIndices[n]];
+        if (contains(userID, itemID)) {
+          preferences.setUserID(index, userID);
+          preferences.setValue(index, itemValues[n]);
+          index++;
+        }
+      }
+      return preferences;
+    }
+
+    @Override
+    public Float getPreferenceValue(long userID, long itemID) throws NoSuchUserException {
+      Float value = CompactDataModel.this.getPreferenceValue(userID, itemID);
+      return value != null && contains(userID, itemID) ? value : null;
+    }
+
+    @Override
+    public Long getPreferenceTime(long userID, long itemID) throws NoSuchUserException {
+      userIndex(userID);
+      return null;
+    }
+
+    @Override
+    public int getNumItems() {
+      return viewItemIDs.length;
+    }
+
+    @Override
+    public int getNumUsers() {
+      return viewUserIDs.length;
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID) throws NoSuchItemException {
+      return getPreferencesForItem(itemID).length();
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) throws NoSuchItemException {
+      int item1 = itemIndex(itemID1);
+      int item2 = itemIndex(itemID2);
+      int n1 = itemOffsets[item1];
+      int n2 = itemOffsets[item2];
+      int count = 0;
+      while (n1 < itemOffsets[item1 + 1] && n2 < itemOffsets[item2 + 1]) {
+        int user1 = itemUserIndices[n1];
+        int user2 = itemUserIndices[n2];
+        if (user1 == user2) {
+          if (contains(userIDs[user1], itemID1) && contains(userIDs[user1], itemID2)) {
+            count++;
+          }
+          n1++;
+          n2++;
+        } else if (user1 < user2) {
+          n1++;
+        } else {
+          n2++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean hasPreferenceValues() {
+      return true;
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {}
+
+    @Override
+    public String toString() {
+      return "HashRangeView[users:" + viewUserIDs.length + ", items:" + viewItemIDs.length + ", preferences:" +
+          numPreferences + ']';
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CompactDataModel[users:" + userIDs.length + ", items:" + itemIDs.length + ", preferences:" +
+        getNumPreferences() + ']';
+  }
+
+  /**
+   * collects preferences in primitive arrays. All preferences of a user have to be added one after another, like in
+   * a result ordered by user. If an item occurs more than once for a user, the highest value is kept.
+   */
+  public static class Builder {
+
+    private long[] rowUserIDs = new long[1024];
+    private int[] rowStarts = new int[1025];
+    private int numRows = 0;
+
+    private long[] entryItemIDs = new long[16 * 1024];
+    private float[] entryValues = new float[16 * 1024];
+    private int numEntries = 0;
+
+    private final FastIDSet finishedUserIDs = new FastIDSet();
+
+    public void add(long userID, long itemID, float value) {
+      if (numRows == 0 || rowUserIDs[numRows - 1] != userID) {
+        if (numRows > 0) {
+          finishedUserIDs.add(rowUserIDs[numRows - 1]);
+        }
+        Preconditions.checkArgument(!finishedUserIDs.contains(userID),
+            "preferences of user %s are not grouped", userID);
+        if (numRows == rowUserIDs.length) {
+          rowUserIDs = Arrays.copyOf(rowUserIDs, numRows * 2);
+          rowStarts = Arrays.copyOf(rowStarts, numRows * 2 + 1);
+        }
+        rowUserIDs[numRows++] = userID;
+      }
+      if (numEntries == entryItemIDs.length) {
+        entryItemIDs = Arrays.copyOf(entryItemIDs, numEntries * 2);
+        entryValues = Arrays.copyOf(entryValues, numEntries * 2);
+      }
+      entryItemIDs[numEntries] = itemID;
+      entryValues[numEntries] = value;
+      numEntries++;
+      rowStarts[numRows] = numEntries;
+    }
+
+    public CompactDataModel build() {
+      long[] userIDs = Arrays.copyOf(rowUserIDs, numRows);
+      Arrays.sort(userIDs);
+      long[] itemIDs = distinct(Arrays.copyOf(entryItemIDs, numEntries));
+
+      /* the rows in the order of their users */
+      int[] rowOfUser = new int[numRows];
+      for (int row = 0; row < numRows; row++) {
+        rowOfUser[Arrays.binarySearch(userIDs, rowUserIDs[row])] = row;
+      }
+
+      int[] userOffsets = new int[numRows + 1];
+      int[] userItemIndices = new int[numEntries];
+      float[] userValues = new float[numEntries];
+      long[] packed = new long[16];
+      int size = 0;
+      for (int user = 0; user < numRows; user++) {
+        int row = rowOfUser[user];
+        int rowLength = rowStarts[row + 1] - rowStarts[row];
+        if (packed.length < rowLength) {
+          packed = new long[Math.max(rowLength, packed.length * 2)];
+        }
+        /* sort by item index, the value goes into the lower bits */
+        for (int n = 0; n < rowLength; n++) {
+          int entry = rowStarts[row] + n;
+          long item = Arrays.binarySearch(itemIDs, entryItemIDs[entry]);
+          packed[n] = (item << 32) | (Float.floatToRawIntBits(entryValues[entry]) & 0xFFFFFFFFL);
+        }
+        Arrays.sort(packed, 0, rowLength);
+
+        for (int n = 0; n < rowLength; n++) {
+          int item = (int) (packed[n] >>> 32);
+          float value = Float.intBitsToFloat((int) packed[n]);
+          if (size > userOffsets[user] && userItemIndices[size - 1] == item) {
+            userValues[size - 1] = Math.max(userValues[size - 1], value);
+          } else {
+            userItemIndices[size] = item;
+            userValues[size] = value;
+            size++;
+          }
+        }
+        userOffsets[user + 1] = size;
+      }
+
+      return new CompactDataModel(userIDs, itemIDs, userOffsets, Arrays.copyOf(userItemIndices, size),
+          Arrays.copyOf(userValues, size));
+    }
+
+    private static long[] distinct(long[] values) {
+      Arrays.sort(values);
+      int size = 0;
+      for (int n = 0; n < values.length; n++) {
+        if (size == 0 || values[size - 1] != values[n]) {
+          values[size++] = values[n];
+        }
+      }
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.plista.kornakapi.core.Candidate;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/** an implementation of {@link Storage} for one label of an {@link EmbeddedStore} */
+public class EmbeddedStorage implements Storage {
+
+  private final EmbeddedStore store;
+  private final String label;
+  private final DataModel recommenderData;
+
+  public EmbeddedStorage(EmbeddedStore store, String label) {
+    this.store = store;
+    this.label = label;
+    recommenderData = store.recommenderData(label);
+  }
+
+  @Override
+  public DataModel trainingData() {
+    return store.trainingData(label);
+  }
+
+  @Override
+  public DataModel recommenderData() {
+    return recommenderData;
+  }
+
+  @Override
+  public void setPreference(long userID, long itemID, float value) throws IOException {
+    store.setPreference(userID, itemID, value);
+  }
+
+  @Override
+  public void batchSetPreferences(Iterator<Preference> preferences, int batchSize) throws IOException {
+    store.batchSetPreferences(preferences, batchSize);
+  }
+
+  @Override
+  public void purgeOldPreferences() throws IOException {
+    store.purgeOldPreferences();
+  }
+
+  @Override
+  public void addCandidate(String label, long itemID) throws IOException {
+    store.addCandidate(label, itemID);
+  }
+
+  @Override
+  public Iterable<String> batchAddCandidates(Iterator<Candidate> candidates, int batchSize) throws IOException {
+    return store.batchAddCandidates(candidates);
+  }
+
+  @Override
+  public void deleteCandidate(String label, long itemID) throws IOException {
+    store.deleteCandidate(label, itemID);
+  }
+
+  @Override
+  public Iterable<String> batchDeleteCandidates(Iterator<Candidate> candidates, int batchSize) throws IOException {
+    return store.batchDeleteCandidates(candidates);
+  }
+
+  @Override
+  public void deleteAllCandidates(String label) throws IOException {
+    store.deleteAllCandidates(label);
+  }
+
+  @Override
+  public FastIDSet getCandidates(String label) {
+    return store.getCandidates(label);
+  }
+
+  public LinkedList<String> getAllLabels() {
+    return store.getAllLabels();
+  }
+
+  public String getItemsLabel(long itemID) {
+    return store.getItemsLabel(itemID);
+  }
+
+  /** the store is shared by all labels and closed by its owner */
+  @Override
+  public void close() {}
+}
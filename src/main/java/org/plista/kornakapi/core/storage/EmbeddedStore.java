@@ -0,0 +1,1013 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingInputStream;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.plista.kornakapi.core.Candidate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * keeps the preferences and candidates of all labels in memory and on local disk instead of MySQL, for single-node
+ * deployments and for testing without a database server. Every modification is appended to a log, which is replayed
+ * into primitive in-memory indexes when the store is opened and rewritten with the current state once it has grown
+ * well beyond it. The {@link EmbeddedStorage}s of all labels share one store.
+ *
+ * Like the partitioned preference table, every preference belongs to the timeframe it was written in and disappears
+ * when its timeframe is purged. Unlike the table, a user-item pair has a single value, so writing it again in a later
+ * timeframe moves it there.
+ */
+public class EmbeddedStore implements Closeable {
+
+  static final String LOG_FILE_NAME = "store.log";
+  static final int NUM_TIMEFRAMES = 6;
+
+  private static final int VERSION = 1;
+
+  private static final byte PREFERENCE = 1;
+  private static final byte REMOVE_PREFERENCE = 2;
+  private static final byte ADD_CANDIDATE = 3;
+  private static final byte DELETE_CANDIDATE = 4;
+  private static final byte DELETE_ALL_CANDIDATES = 5;
+  private static final byte PURGE = 6;
+
+  /** a purge record that only restores the current timeframe */
+  private static final byte NO_TIMEFRAME = -1;
+
+  /** smaller logs are not worth compacting */
+  private static final long MIN_RECORDS_TO_COMPACT = 10000;
+
+  private final File logFile;
+  private final boolean keepMaximum;
+  private final int timeWindow;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final FastByIDMap<UserPreferences> preferencesOfUsers = new FastByIDMap<UserPreferences>();
+  private final FastByIDMap<FastIDSet> usersOfItems = new FastByIDMap<FastIDSet>();
+  private final Map<String, FastIDSet> candidatesOfLabels = Maps.newHashMap();
+  private long numPreferences;
+  private long numCandidates;
+  private byte currentTimeframe;
+
+  /** guarded by the write lock, or by the read lock while compacting */
+  private DataOutputStream out;
+  private long logRecords;
+
+  private final ScheduledExecutorService compactor;
+  private final AtomicLong compactions = new AtomicLong();
+  private volatile long lastCompactionMillis;
+
+  private volatile UserChangeTracker userChanges;
+
+  private static final Logger log = LoggerFactory.getLogger(EmbeddedStore.class);
+
+  /**
+   * @param keepMaximum whether a value may only be replaced by a higher one, like in {@link MySqlMaxPersistentStorage}
+   * @param timeWindow number of hours the preferences are kept, divided into six timeframes
+   * @param compactionIntervalMillis interval in which the size of the log is checked, 0 to never compact it
+   */
+  public EmbeddedStore(File directory, boolean keepMaximum, int timeWindow, long compactionIntervalMillis)
+      throws IOException {
+    Preconditions.checkArgument(directory.isDirectory() || directory.mkdirs(),
+        "unable to create directory for the embedded storage %s", directory);
+    this.logFile = new File(directory, LOG_FILE_NAME);
+    this.keepMaximum = keepMaximum;
+    this.timeWindow = timeWindow % NUM_TIMEFRAMES != 0 || timeWindow == 0 ? 24 : timeWindow;
+
+    long start = System.currentTimeMillis();
+    replay();
+    out = openLog();
+    log.info("Opened embedded storage {} with {} preferences and {} candidates in {} ms",
+        new Object[] { logFile, numPreferences, numCandidates, System.currentTimeMillis() - start });
+
+    compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "embedded-storage-compaction");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (compactionIntervalMillis > 0) {
+      compactor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (isWorthCompacting()) {
+              compact();
+            }
+          } catch (IOException e) {
+            log.error("Unable to compact " + logFile, e);
+          }
+        }
+      }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** records the users whose preferences are written to this store in the given tracker */
+  public void setUserChangeTracker(UserChangeTracker userChanges) {
+    this.userChanges = userChanges;
+  }
+
+  /* ---------- preferences ---------- */
+
+  public void setPreference(long userID, long itemID, float value) throws IOException {
+    lock.writeLock().lock();
+    try {
+      writePreference(out, userID, itemID, put(userID, itemID, value, currentTimeframe, true), currentTimeframe);
+      logRecords++;
+      out.flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    changed(userID);
+  }
+
+  /** writes the preferences in chunks of batchSize, the log is flushed once per chunk */
+  public void batchSetPreferences(Iterator<Preference> preferences, int batchSize) throws IOException {
+    int chunkSize = Math.max(1, batchSize);
+    long[] userIDs = new long[chunkSize];
+    long[] itemIDs = new long[chunkSize];
+    float[] values = new float[chunkSize];
+    long imported = 0;
+    while (preferences.hasNext()) {
+      int size = 0;
+      while (size < chunkSize && preferences.hasNext()) {
+        Preference preference = preferences.next();
+        userIDs[size] = preference.getUserID();
+        itemIDs[size] = preference.getItemID();
+        values[size] = preference.getValue();
+        size++;
+      }
+      lock.writeLock().lock();
+      try {
+        for (int n = 0; n < size; n++) {
+          float value = put(userIDs[n], itemIDs[n], values[n], currentTimeframe, true);
+          writePreference(out, userIDs[n], itemIDs[n], value, currentTimeframe);
+        }
+        logRecords += size;
+        out.flush();
+      } finally {
+        lock.writeLock().unlock();
+      }
+      for (int n = 0; n < size; n++) {
+        changed(userIDs[n]);
+      }
+      imported += size;
+      log.debug("imported {} records in batch", imported);
+    }
+  }
+
+  public void removePreference(long userID, long itemID) throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (remove(userID, itemID)) {
+        out.writeByte(REMOVE_PREFERENCE);
+        out.writeLong(userID);
+        out.writeLong(itemID);
+        logRecords++;
+        out.flush();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    changed(userID);
+  }
+
+  /** switches to the timeframe of the current time and removes the preferences of the oldest one */
+  public void purgeOldPreferences() throws IOException {
+    long hours = System.currentTimeMillis() / (3600 * 1000);
+    int selDay = (int) (hours % timeWindow);
+    purge(selDay / (timeWindow / NUM_TIMEFRAMES));
+  }
+
+  void purge(int timeframe) throws IOException {
+    byte purgedTimeframe = (byte) ((timeframe + 1) % NUM_TIMEFRAMES);
+    UserChangeTracker userChanges = this.userChanges;
+    FastIDSet purgedUserIDs = userChanges != null ? new FastIDSet() : null;
+    lock.writeLock().lock();
+    try {
+      int purged = purgeTimeframe((byte) timeframe, purgedTimeframe, purgedUserIDs);
+      writePurge(out, currentTimeframe, purgedTimeframe);
+      logRecords++;
+      out.flush();
+      log.info("purged {} preferences of timeframe {}", purged, purgedTimeframe);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (userChanges != null) {
+      userChanges.changed(purgedUserIDs);
+    }
+  }
+
+  private void changed(long userID) {
+    UserChangeTracker userChanges = this.userChanges;
+    if (userChanges != null) {
+      userChanges.changed(userID);
+    }
+  }
+
+  /* ---------- candidates ---------- */
+
+  public void addCandidate(String label, long itemID) throws IOException {
+    modifyCandidate(ADD_CANDIDATE, label, itemID);
+  }
+
+  public void deleteCandidate(String label, long itemID) throws IOException {
+    modifyCandidate(DELETE_CANDIDATE, label, itemID);
+  }
+
+  private void modifyCandidate(byte type, String label, long itemID) throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (type == ADD_CANDIDATE ? addCandidateUnlocked(label, itemID) : deleteCandidateUnlocked(label, itemID)) {
+        writeCandidate(out, type, label, itemID);
+        logRecords++;
+        out.flush();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public Iterable<String> batchAddCandidates(Iterator<Candidate> candidates) throws IOException {
+    return batchModifyCandidates(ADD_CANDIDATE, candidates);
+  }
+
+  public Iterable<String> batchDeleteCandidates(Iterator<Candidate> candidates) throws IOException {
+    return batchModifyCandidates(DELETE_CANDIDATE, candidates);
+  }
+
+  private Iterable<String> batchModifyCandidates(byte type, Iterator<Candidate> candidates) throws IOException {
+    /* the values are copied, as iterators like CSVCandidateFileIterator reuse a mutable instance */
+    List<String> labels = Lists.newArrayList();
+    long[] itemIDs = new long[16];
+    while (candidates.hasNext()) {
+      Candidate candidate = candidates.next();
+      if (labels.size() == itemIDs.length) {
+        itemIDs = Arrays.copyOf(itemIDs, itemIDs.length * 2);
+      }
+      itemIDs[labels.size()] = candidate.getItemID();
+      labels.add(candidate.getLabel());
+    }
+    Set<String> modifiedLabels = Sets.newHashSet();
+    lock.writeLock().lock();
+    try {
+      for (int n = 0; n < labels.size(); n++) {
+        String label = labels.get(n);
+        modifiedLabels.add(label);
+        boolean modified = type == ADD_CANDIDATE ?
+            addCandidateUnlocked(label, itemIDs[n]) : deleteCandidateUnlocked(label, itemIDs[n]);
+        if (modified) {
+          writeCandidate(out, type, label, itemIDs[n]);
+          logRecords++;
+        }
+      }
+      out.flush();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return modifiedLabels;
+  }
+
+  public void deleteAllCandidates(String label) throws IOException {
+    lock.writeLock().lock();
+    try {
+      FastIDSet candidates = candidatesOfLabels.remove(label);
+      if (candidates != null) {
+        numCandidates -= candidates.size();
+        out.writeByte(DELETE_ALL_CANDIDATES);
+        out.writeUTF(label);
+        logRecords++;
+        out.flush();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public FastIDSet getCandidates(String label) {
+    lock.readLock().lock();
+    try {
+      FastIDSet candidates = candidatesOfLabels.get(label);
+      return candidates != null ? candidates.clone() : new FastIDSet();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return the labels that have candidates */
+  public LinkedList<String> getAllLabels() {
+    lock.readLock().lock();
+    try {
+      return Lists.newLinkedList(candidatesOfLabels.keySet());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return a label the item is a candidate of, null if there is none */
+  public String getItemsLabel(long itemID) {
+    lock.readLock().lock();
+    try {
+      for (Map.Entry<String, FastIDSet> entry : candidatesOfLabels.entrySet()) {
+        if (entry.getValue().contains(itemID)) {
+          return entry.getKey();
+        }
+      }
+      return null;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /* ---------- reads ---------- */
+
+  /** @return the preferences for the candidates of the label, knowing the user changes they contain */
+  public CompactDataModel trainingData(String label) {
+    long start = System.currentTimeMillis();
+    /* users count as changed after their writes are applied */
+    UserChangeTracker userChanges = this.userChanges;
+    long includedChanges = userChanges != null ? userChanges.currentSequence() : 0;
+    CompactDataModel.Builder builder = new CompactDataModel.Builder();
+    lock.readLock().lock();
+    try {
+      FastIDSet candidates = candidatesOfLabels.get(label);
+      if (candidates != null) {
+        LongPrimitiveIterator userIDs = preferencesOfUsers.keySetIterator();
+        while (userIDs.hasNext()) {
+          long userID = userIDs.nextLong();
+          UserPreferences preferences = preferencesOfUsers.get(userID);
+          for (int n = 0; n < preferences.size; n++) {
+            if (candidates.contains(preferences.itemIDs[n])) {
+              builder.add(userID, preferences.itemIDs[n], preferences.values[n]);
+            }
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    CompactDataModel trainingData = builder.build().withIncludedChanges(includedChanges);
+    log.info("exported {} for label {} in {} ms",
+        new Object[] { trainingData, label, System.currentTimeMillis() - start });
+    return trainingData;
+  }
+
+  /** @return a live view of the preferences for the candidates of the label */
+  public AbstractDataModel recommenderData(String label) {
+    return new LabelDataModel(label);
+  }
+
+  /* ---------- unlocked modifications of the indexes, shared by the writes and the replay ---------- */
+
+  /** @return the value stored for the pair */
+  private float put(long userID, long itemID, float value, byte timeframe, boolean merge) {
+    UserPreferences preferences = preferencesOfUsers.get(userID);
+    if (preferences == null) {
+      preferences = new UserPreferences();
+      preferencesOfUsers.put(userID, preferences);
+    }
+    int index = preferences.indexOf(itemID);
+    if (index >= 0) {
+      if (merge && keepMaximum) {
+        value = Math.max(value, preferences.values[index]);
+      }
+      preferences.values[index] = value;
+      preferences.timeframes[index] = timeframe;
+      return value;
+    }
+    preferences.add(itemID, value, timeframe);
+    FastIDSet userIDs = usersOfItems.get(itemID);
+    if (userIDs == null) {
+      userIDs = new FastIDSet(2);
+      usersOfItems.put(itemID, userIDs);
+    }
+    userIDs.add(userID);
+    numPreferences++;
+    return value;
+  }
+
+  private boolean remove(long userID, long itemID) {
+    UserPreferences preferences = preferencesOfUsers.get(userID);
+    int index = preferences != null ? preferences.indexOf(itemID) : -1;
+    if (index < 0) {
+      return false;
+    }
+    preferences.remove(index);
+    if (preferences.size == 0) {
+      preferencesOfUsers.remove(userID);
+    }
+    removeUserOfItem(userID, itemID);
+    numPreferences--;
+    return true;
+  }
+
+  private void removeUserOfItem(long userID, long itemID) {
+    FastIDSet userIDs = usersOfItems.get(itemID);
+    if (userIDs != null) {
+      userIDs.remove(userID);
+      if (userIDs.isEmpty()) {
+        usersOfItems.remove(itemID);
+      }
+    }
+  }
+
+  /**
+   * @param purgedUserIDs collects the users who lose preferences, may be null
+   * @return the number of removed preferences
+   */
+  private int purgeTimeframe(byte timeframe, byte purgedTimeframe, FastIDSet purgedUserIDs) {
+    currentTimeframe = timeframe;
+    if (purgedTimeframe == NO_TIMEFRAME) {
+      return 0;
+    }
+    int purged = 0;
+    FastIDSet emptyUserIDs = new FastIDSet();
+    LongPrimitiveIterator userIDs = preferencesOfUsers.keySetIterator();
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      UserPreferences preferences = preferencesOfUsers.get(userID);
+      int n = 0;
+      while (n < preferences.size) {
+        if (preferences.timeframes[n] == purgedTimeframe) {
+          removeUserOfItem(userID, preferences.itemIDs[n]);
+          preferences.remove(n);
+          purged++;
+          if (purgedUserIDs != null) {
+            purgedUserIDs.add(userID);
+          }
+        } else {
+          n++;
+        }
+      }
+      if (preferences.size == 0) {
+        emptyUserIDs.add(userID);
+      }
+    }
+    LongPrimitiveIterator emptyUsers = emptyUserIDs.iterator();
+    while (emptyUsers.hasNext()) {
+      preferencesOfUsers.remove(emptyUsers.nextLong());
+    }
+    numPreferences -= purged;
+    return purged;
+  }
+
+  private boolean addCandidateUnlocked(String label, long itemID) {
+    FastIDSet candidates = candidatesOfLabels.get(label);
+    if (candidates == null) {
+      candidates = new FastIDSet();
+      candidatesOfLabels.put(label, candidates);
+    }
+    if (candidates.add(itemID)) {
+      numCandidates++;
+      return true;
+    }
+    return false;
+  }
+
+  private boolean deleteCandidateUnlocked(String label, long itemID) {
+    FastIDSet candidates = candidatesOfLabels.get(label);
+    if (candidates == null || !candidates.remove(itemID)) {
+      return false;
+    }
+    numCandidates--;
+    if (candidates.isEmpty()) {
+      candidatesOfLabels.remove(label);
+    }
+    return true;
+  }
+
+  /* ---------- log ---------- */
+
+  private void replay() throws IOException {
+    if (!logFile.exists()) {
+      return;
+    }
+    CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+    DataInputStream in = new DataInputStream(counting);
+    long validLength = 0;
+    try {
+      if (in.readInt() != VERSION) {
+        throw new IOException("Unsupported version of " + logFile);
+      }
+      validLength = counting.getCount();
+      int type;
+      while ((type = in.read()) >= 0) {
+        replay((byte) type, in);
+        validLength = counting.getCount();
+        logRecords++;
+      }
+    } catch (EOFException e) {
+      log.warn("Ignoring the incomplete record at the end of {}", logFile);
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+
+    if (validLength < logFile.length()) {
+      RandomAccessFile truncated = new RandomAccessFile(logFile, "rw");
+      try {
+        truncated.setLength(validLength);
+      } finally {
+        truncated.close();
+      }
+    }
+  }
+
+  /** reads the complete record before it modifies the indexes */
+  private void replay(byte type, DataInputStream in) throws IOException {
+    switch (type) {
+      case PREFERENCE: {
+        long userID = in.readLong();
+        long itemID = in.readLong();
+        float value = in.readFloat();
+        byte timeframe = in.readByte();
+        put(userID, itemID, value, timeframe, false);
+        break;
+      }
+      case REMOVE_PREFERENCE: {
+        long userID = in.readLong();
+        long itemID = in.readLong();
+        remove(userID, itemID);
+        break;
+      }
+      case ADD_CANDIDATE: {
+        String label = in.readUTF();
+        addCandidateUnlocked(label, in.readLong());
+        break;
+      }
+      case DELETE_CANDIDATE: {
+        String label = in.readUTF();
+        deleteCandidateUnlocked(label, in.readLong());
+        break;
+      }
+      case DELETE_ALL_CANDIDATES: {
+        FastIDSet candidates = candidatesOfLabels.remove(in.readUTF());
+        if (candidates != null) {
+          numCandidates -= candidates.size();
+        }
+        break;
+      }
+      case PURGE: {
+        byte timeframe = in.readByte();
+        purgeTimeframe(timeframe, in.readByte(), null);
+        break;
+      }
+      default:
+        throw new IOException("Unknown record type " + type + " in " + logFile);
+    }
+  }
+
+  private DataOutputStream openLog() throws IOException {
+    boolean created = !logFile.exists() || logFile.length() == 0;
+    DataOutputStream logOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+    if (created) {
+      logOut.writeInt(VERSION);
+      logOut.flush();
+    }
+    return logOut;
+  }
+
+  private static void writePreference(DataOutputStream out, long userID, long itemID, float value, byte timeframe)
+      throws IOException {
+    out.writeByte(PREFERENCE);
+    out.writeLong(userID);
+    out.writeLong(itemID);
+    out.writeFloat(value);
+    out.writeByte(timeframe);
+  }
+
+  private static void writeCandidate(DataOutputStream out, byte type, String label, long itemID) throws IOException {
+    out.writeByte(type);
+    out.writeUTF(label);
+    out.writeLong(itemID);
+  }
+
+  private static void writePurge(DataOutputStream out, byte timeframe, byte purgedTimeframe) throws IOException {
+    out.writeByte(PURGE);
+    out.writeByte(timeframe);
+    out.writeByte(purgedTimeframe);
+  }
+
+  boolean isWorthCompacting() {
+    lock.readLock().lock();
+    try {
+      return logRecords > MIN_RECORDS_TO_COMPACT && logRecords > 2 * (numPreferences + numCandidates);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** rewrites the log with the current state, writers wait while the new log is written */
+  void compact() throws IOException {
+    long start = System.currentTimeMillis();
+    File tempFile = new File(logFile.getParentFile(), logFile.getName() + ".tmp");
+    lock.readLock().lock();
+    try {
+      long records = 0;
+      FileOutputStream fileOut = new FileOutputStream(tempFile);
+      DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(fileOut));
+      try {
+        compacted.writeInt(VERSION);
+        writePurge(compacted, currentTimeframe, NO_TIMEFRAME);
+        records++;
+        for (Map.Entry<String, FastIDSet> entry : candidatesOfLabels.entrySet()) {
+          LongPrimitiveIterator itemIDs = entry.getValue().iterator();
+          while (itemIDs.hasNext()) {
+            writeCandidate(compacted, ADD_CANDIDATE, entry.getKey(), itemIDs.nextLong());
+            records++;
+          }
+        }
+        LongPrimitiveIterator userIDs = preferencesOfUsers.keySetIterator();
+        while (userIDs.hasNext()) {
+          long userID = userIDs.nextLong();
+          UserPreferences preferences = preferencesOfUsers.get(userID);
+          for (int n = 0; n < preferences.size; n++) {
+            writePreference(compacted, userID, preferences.itemIDs[n], preferences.values[n],
+                preferences.timeframes[n]);
+            records++;
+          }
+        }
+        compacted.flush();
+        fileOut.getFD().sync();
+      } finally {
+        compacted.close();
+      }
+
+      /* no writer is active while the read lock is held */
+      out.close();
+      if (!tempFile.renameTo(logFile)) {
+        /* renameTo does not replace existing files on every platform */
+        if (!logFile.delete() || !tempFile.renameTo(logFile)) {
+          throw new IOException("Unable to replace " + logFile);
+        }
+      }
+      out = openLog();
+      long previousRecords = logRecords;
+      logRecords = records;
+
+      lastCompactionMillis = System.currentTimeMillis() - start;
+      compactions.incrementAndGet();
+      log.info("compacted {} from {} to {} records in {} ms",
+          new Object[] { logFile, previousRecords, records, lastCompactionMillis });
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    compactor.shutdownNow();
+    lock.writeLock().lock();
+    try {
+      out.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public long getNumPreferences() {
+    lock.readLock().lock();
+    try {
+      return numPreferences;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getNumCandidates() {
+    lock.readLock().lock();
+    try {
+      return numCandidates;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getLogRecords() {
+    lock.readLock().lock();
+    try {
+      return logRecords;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getCompactions() {
+    return compactions.get();
+  }
+
+  public long getLastCompactionMillis() {
+    return lastCompactionMillis;
+  }
+
+  /** the preferences of one user in primitive arrays */
+  private static final class UserPreferences {
+
+    private long[] itemIDs = new long[2];
+    private float[] values = new float[2];
+    private byte[] timeframes = new byte[2];
+    private int size;
+
+    int indexOf(long itemID) {
+      for (int n = 0; n < size; n++) {
+        if (itemIDs[n] == itemID) {
+          return n;
+        }
+      }
+      return -1;
+    }
+
+    void add(long itemID, float value, byte timeframe) {
+      if (size == itemIDs.length) {
+        itemIDs = Arrays.copyOf(itemIDs, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+        timeframes = Arrays.copyOf(timeframes, size * 2);
+      }
+      itemIDs[size] = itemID;
+      values[size] = value;
+      timeframes[size] = timeframe;
+      size++;
+    }
+
+    /** moves the last preference into the gap */
+    void remove(int index) {
+      size--;
+      itemIDs[index] = itemIDs[size];
+      values[index] = values[size];
+      timeframes[index] = timeframes[size];
+    }
+  }
+
+  /** the preferences for the candidates of a label, read from the indexes on every call */
+  private class LabelDataModel extends AbstractDataModel {
+
+    private final String label;
+
+    LabelDataModel(String label) {
+      this.label = label;
+    }
+
+    private FastIDSet candidates() {
+      FastIDSet candidates = candidatesOfLabels.get(label);
+      return candidates != null ? candidates : new FastIDSet(0);
+    }
+
+    @Override
+    public LongPrimitiveIterator getUserIDs() {
+      lock.readLock().lock();
+      try {
+        FastIDSet userIDs = new FastIDSet();
+        LongPrimitiveIterator itemIDs = candidates().iterator();
+        while (itemIDs.hasNext()) {
+          FastIDSet usersOfItem = usersOfItems.get(itemIDs.nextLong());
+          if (usersOfItem != null) {
+            userIDs.addAll(usersOfItem);
+          }
+        }
+        return sorted(userIDs);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+      lock.readLock().lock();
+      try {
+        UserPreferences preferences = preferencesOfUsers.get(userID);
+        FastIDSet candidates = candidates();
+        List<Preference> preferencesOfLabel = Lists.newArrayList();
+        if (preferences != null) {
+          for (int n = 0; n < preferences.size; n++) {
+            if (candidates.contains(preferences.itemIDs[n])) {
+              preferencesOfLabel.add(new GenericPreference(userID, preferences.itemIDs[n], preferences.values[n]));
+            }
+          }
+        }
+        if (preferencesOfLabel.isEmpty()) {
+          throw new NoSuchUserException(userID);
+        }
+        PreferenceArray array = new GenericUserPreferenceArray(preferencesOfLabel);
+        array.sortByItem();
+        return array;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
+      PreferenceArray preferences = getPreferencesFromUser(userID);
+      FastIDSet itemIDs = new FastIDSet(preferences.length());
+      for (int n = 0; n < preferences.length(); n++) {
+        itemIDs.add(preferences.getItemID(n));
+      }
+      return itemIDs;
+    }
+
+    @Override
+    public LongPrimitiveIterator getItemIDs() {
+      lock.readLock().lock();
+      try {
+        FastIDSet itemIDs = new FastIDSet();
+        LongPrimitiveIterator candidateIDs = candidates().iterator();
+        while (candidateIDs.hasNext()) {
+          long itemID = candidateIDs.nextLong();
+          if (usersOfItems.containsKey(itemID)) {
+            itemIDs.add(itemID);
+          }
+        }
+        return sorted(itemIDs);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+      lock.readLock().lock();
+      try {
+        FastIDSet userIDs = usersOfItems.get(itemID);
+        if (userIDs == null) {
+          throw new NoSuchItemException(itemID);
+        }
+        PreferenceArray preferences = new GenericItemPreferenceArray(userIDs.size());
+        preferences.setItemID(0, itemID);
+        int n = 0;
+        LongPrimitiveIterator iterator = userIDs.iterator();
+        while (iterator.hasNext()) {
+          long userID = iterator.nextLong();
+          UserPreferences preferencesOfUser = preferencesOfUsers.get(userID);
+          preferences.setUserID(n, userID);
+          preferences.setValue(n, preferencesOfUser.values[preferencesOfUser.indexOf(itemID)]);
+          n++;
+        }
+        preferences.sortByUser();
+        return preferences;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public Float getPreferenceValue(long userID, long itemID) {
+      lock.readLock().lock();
+      try {
+        UserPreferences preferences = preferencesOfUsers.get(userID);
+        int index = preferences != null ? preferences.indexOf(itemID) : -1;
+        return index >= 0 ? preferences.values[index] : null;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public Long getPreferenceTime(long userID, long itemID) {
+      return null;
+    }
+
+    @Override
+    public int getNumItems() {
+      lock.readLock().lock();
+      try {
+        int numItems = 0;
+        LongPrimitiveIterator candidateIDs = candidates().iterator();
+        while (candidateIDs.hasNext()) {
+          if (usersOfItems.containsKey(candidateIDs.nextLong())) {
+            numItems++;
+          }
+        }
+        return numItems;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public int getNumUsers() {
+      int numUsers = 0;
+      LongPrimitiveIterator userIDs = getUserIDs();
+      while (userIDs.hasNext()) {
+        userIDs.nextLong();
+        numUsers++;
+      }
+      return numUsers;
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID) {
+      lock.readLock().lock();
+      try {
+        FastIDSet userIDs = usersOfItems.get(itemID);
+        return userIDs != null ? userIDs.size() : 0;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) {
+      lock.readLock().lock();
+      try {
+        FastIDSet userIDs1 = usersOfItems.get(itemID1);
+        FastIDSet userIDs2 = usersOfItems.get(itemID2);
+        return userIDs1 != null && userIDs2 != null ? userIDs1.intersectionSize(userIDs2) : 0;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) throws TasteException {
+      try {
+        EmbeddedStore.this.setPreference(userID, itemID, value);
+      } catch (IOException e) {
+        throw new TasteException(e);
+      }
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) throws TasteException {
+      try {
+        EmbeddedStore.this.removePreference(userID, itemID);
+      } catch (IOException e) {
+        throw new TasteException(e);
+      }
+    }
+
+    @Override
+    public boolean hasPreferenceValues() {
+      return true;
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {}
+
+    private LongPrimitiveIterator sorted(FastIDSet ids) {
+      long[] sortedIDs = ids.toArray();
+      Arrays.sort(sortedIDs);
+      return new LongPrimitiveArrayIterator(sortedIDs);
+    }
+  }
+}
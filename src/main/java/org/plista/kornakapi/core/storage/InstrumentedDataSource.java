@@ -0,0 +1,80 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** a connection pool that records how long callers wait for connections and how often they give up */
+public class InstrumentedDataSource extends BasicDataSource {
+
+  private final String name;
+
+  private final AtomicLong borrows = new AtomicLong();
+  private final AtomicLong borrowTimeouts = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private volatile long maxWaitNanos;
+
+  public InstrumentedDataSource(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      Connection connection = super.getConnection();
+      borrows.incrementAndGet();
+      return connection;
+    } catch (SQLException e) {
+      if (e.getCause() instanceof NoSuchElementException) {
+        borrowTimeouts.incrementAndGet();
+      }
+      throw e;
+    } finally {
+      long waited = System.nanoTime() - start;
+      totalWaitNanos.addAndGet(waited);
+      if (waited > maxWaitNanos) {
+        maxWaitNanos = waited;
+      }
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getBorrows() {
+    return borrows.get();
+  }
+
+  /** @return number of callers that gave up waiting for a free connection */
+  public long getBorrowTimeouts() {
+    return borrowTimeouts.get();
+  }
+
+  public long getTotalBorrowWaitMillis() {
+    return totalWaitNanos.get() / 1000000;
+  }
+
+  public long getMaxBorrowWaitMillis() {
+    return maxWaitNanos / 1000000;
+  }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * maps items to the labels they are candidates of, so that preferences written without a label don't need a database
+ * lookup to find it. The index is warmed with all candidates at startup and kept in sync by the
+ * {@link CandidateCacheStorageDecorator}s. Items found in neither the index nor the database are remembered in a
+ * bounded cache for a while, as candidates might also be added by other instances.
+ */
+public class ItemLabelIndex {
+
+  private static final String[] NO_LABELS = new String[0];
+
+  private final FastByIDMap<String[]> labelsOfItems = new FastByIDMap<String[]>();
+  /** one instance per label, the index holds many references to few labels */
+  private final Map<String, String> canonicalLabels = Maps.newHashMap();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Cache<Long, Boolean> unlabeledItems;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong unlabeledHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private static final Logger log = LoggerFactory.getLogger(ItemLabelIndex.class);
+
+  /**
+   * @param maxUnlabeledItems maximum number of items without a label to remember
+   * @param unlabeledExpireAfterSeconds time after which an item without a label is looked up again
+   */
+  public ItemLabelIndex(int maxUnlabeledItems, int unlabeledExpireAfterSeconds) {
+    unlabeledItems = CacheBuilder.newBuilder()
+        .maximumSize(maxUnlabeledItems)
+        .expireAfterWrite(unlabeledExpireAfterSeconds, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /** adds all candidates of a label */
+  public void addAll(String label, FastIDSet itemIDs) {
+    lock.writeLock().lock();
+    try {
+      LongPrimitiveIterator iterator = itemIDs.iterator();
+      while (iterator.hasNext()) {
+        addUnlocked(label, iterator.nextLong());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    log.info("Indexed {} candidates of label {}", itemIDs.size(), label);
+  }
+
+  public void add(String label, long itemID) {
+    lock.writeLock().lock();
+    try {
+      addUnlocked(label, itemID);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    unlabeledItems.invalidate(itemID);
+  }
+
+  private void addUnlocked(String label, long itemID) {
+    String canonicalLabel = canonicalLabels.get(label);
+    if (canonicalLabel == null) {
+      canonicalLabel = label;
+      canonicalLabels.put(label, label);
+    }
+    String[] labels = labelsOfItems.get(itemID);
+    if (labels == null) {
+      labelsOfItems.put(itemID, new String[] { canonicalLabel });
+    } else if (!Arrays.asList(labels).contains(canonicalLabel)) {
+      String[] moreLabels = Arrays.copyOf(labels, labels.length + 1);
+      moreLabels[labels.length] = canonicalLabel;
+      labelsOfItems.put(itemID, moreLabels);
+    }
+  }
+
+  public void remove(String label, long itemID) {
+    lock.writeLock().lock();
+    try {
+      removeUnlocked(label, itemID);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void removeUnlocked(String label, long itemID) {
+    String[] labels = labelsOfItems.get(itemID);
+    if (labels == null) {
+      return;
+    }
+    int index = Arrays.asList(labels).indexOf(label);
+    if (index < 0) {
+      return;
+    }
+    if (labels.length == 1) {
+      labelsOfItems.remove(itemID);
+      return;
+    }
+    String[] fewerLabels = new String[labels.length - 1];
+    System.arraycopy(labels, 0, fewerLabels, 0, index);
+    System.arraycopy(labels, index + 1, fewerLabels, index, fewerLabels.length - index);
+    labelsOfItems.put(itemID, fewerLabels);
+  }
+
+  /** removes the label from all items */
+  public void removeAll(String label) {
+    lock.writeLock().lock();
+    try {
+      LongPrimitiveIterator itemIDs = labelsOfItems.keySetIterator();
+      FastIDSet itemIDsOfLabel = new FastIDSet();
+      while (itemIDs.hasNext()) {
+        long itemID = itemIDs.nextLong();
+        if (Arrays.asList(labelsOfItems.get(itemID)).contains(label)) {
+          itemIDsOfLabel.add(itemID);
+        }
+      }
+      LongPrimitiveIterator iterator = itemIDsOfLabel.iterator();
+      while (iterator.hasNext()) {
+        removeUnlocked(label, iterator.nextLong());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the labels of the item, an empty array if the item is known to have no label or null if the item is
+   *         unknown and has to be looked up
+   */
+  public String[] getLabels(long itemID) {
+    String[] labels;
+    lock.readLock().lock();
+    try {
+      labels = labelsOfItems.get(itemID);
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (labels != null) {
+      hits.incrementAndGet();
+      return labels;
+    }
+    if (unlabeledItems.getIfPresent(itemID) != null) {
+      unlabeledHits.incrementAndGet();
+      return NO_LABELS;
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /** @return the indexed labels of the item or null, without looking at the unlabeled items or counting a lookup */
+  String[] getIndexedLabels(long itemID) {
+    lock.readLock().lock();
+    try {
+      return labelsOfItems.get(itemID);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** remembers the result of a lookup of an unknown item, label is null if the item has none */
+  public void lookedUp(long itemID, String label) {
+    if (label != null) {
+      add(label, itemID);
+    } else {
+      unlabeledItems.put(itemID, Boolean.TRUE);
+    }
+  }
+
+  public int getSize() {
+    lock.readLock().lock();
+    try {
+      return labelsOfItems.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public long getUnlabeledSize() {
+    return unlabeledItems.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getUnlabeledHits() {
+    return unlabeledHits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+}
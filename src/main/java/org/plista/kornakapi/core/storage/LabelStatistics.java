@@ -0,0 +1,315 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.collect.Maps;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.common.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * keeps the items and users with preferences of every label in memory, so that the labeled data models don't need
+ * to aggregate over the whole label whenever they are asked for their numbers. Both are added to by the write path,
+ * removed candidates leave the items right away. Users who only had preferences for removed candidates or purged
+ * preferences are dropped by the periodic reconciliation with the database, which also corrects the items after
+ * purges.
+ */
+public class LabelStatistics implements Closeable {
+
+  private static final String ITEMS_WITH_PREFERENCES_QUERY =
+      "SELECT c.label, c.item_id FROM taste_candidates c " +
+      "WHERE EXISTS (SELECT 1 FROM taste_preferences p WHERE p.item_id = c.item_id)";
+
+  private static final String USERS_OF_LABELS_QUERY =
+      "SELECT DISTINCT c.label, p.user_id FROM taste_preferences p INNER JOIN taste_candidates c USING (item_id)";
+
+  private final DataSource dataSource;
+  private final ItemLabelIndex itemLabels;
+  private final ScheduledExecutorService reconciler;
+  private final Runnable reconcileTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        reconcile();
+      } catch (IOException e) {
+        failedReconciliations.incrementAndGet();
+        log.error("Unable to reconcile the statistics of the labels", e);
+      } catch (RuntimeException e) {
+        failedReconciliations.incrementAndGet();
+        log.error("Unable to reconcile the statistics of the labels", e);
+      }
+    }
+  };
+
+  /** null until the first reconciliation, guarded by this */
+  private Map<String, Counts> countsOfLabels;
+  /** modifications during a running reconciliation that its result does not reflect, guarded by this */
+  private Map<String, FastIDSet> writtenWhileReconciling;
+  private Map<String, FastIDSet> usersWrittenWhileReconciling;
+  private Map<String, FastIDSet> removedWhileReconciling;
+
+  private final AtomicLong reconciliations = new AtomicLong();
+  private final AtomicLong failedReconciliations = new AtomicLong();
+  private volatile long lastReconcileMillis;
+
+  private static final Logger log = LoggerFactory.getLogger(LabelStatistics.class);
+
+  /**
+   * @param itemLabels index that provides the labels of written items
+   * @param reconcileIntervalMillis time between two reconciliations with the database, they start right away unless
+   *                                this is zero
+   */
+  public LabelStatistics(DataSource dataSource, ItemLabelIndex itemLabels, long reconcileIntervalMillis) {
+    this.dataSource = dataSource;
+    this.itemLabels = itemLabels;
+    reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "label-statistics");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (reconcileIntervalMillis > 0) {
+      reconciler.scheduleWithFixedDelay(reconcileTask, 0, reconcileIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** records that the user has a preference for the item now */
+  public void preferenceWritten(long userID, long itemID) {
+    String[] labels = itemLabels.getIndexedLabels(itemID);
+    if (labels == null || labels.length == 0) {
+      return;
+    }
+    synchronized (this) {
+      for (String label : labels) {
+        if (countsOfLabels != null) {
+          Counts counts = countsOfLabels.get(label);
+          if (counts == null) {
+            counts = new Counts(new FastIDSet(), new FastIDSet());
+            countsOfLabels.put(label, counts);
+          }
+          counts.itemIDs.add(itemID);
+          counts.userIDs.add(userID);
+        }
+        if (writtenWhileReconciling != null) {
+          record(writtenWhileReconciling, label, itemID);
+          record(usersWrittenWhileReconciling, label, userID);
+        }
+      }
+    }
+  }
+
+  /** records that the item is no candidate of the label anymore */
+  public synchronized void candidateRemoved(String label, long itemID) {
+    if (countsOfLabels != null) {
+      Counts counts = countsOfLabels.get(label);
+      if (counts != null) {
+        counts.itemIDs.remove(itemID);
+      }
+    }
+    if (removedWhileReconciling != null) {
+      record(removedWhileReconciling, label, itemID);
+    }
+  }
+
+  /** records that the label has no candidates anymore */
+  public synchronized void allCandidatesRemoved(String label) {
+    if (countsOfLabels != null) {
+      countsOfLabels.put(label, new Counts(new FastIDSet(), new FastIDSet()));
+    }
+    if (writtenWhileReconciling != null) {
+      writtenWhileReconciling.remove(label);
+      usersWrittenWhileReconciling.remove(label);
+      removedWhileReconciling.remove(label);
+    }
+  }
+
+  /** schedules a reconciliation, for example after preferences were removed from the database */
+  public void reconcileSoon() {
+    if (!reconciler.isShutdown()) {
+      reconciler.execute(reconcileTask);
+    }
+  }
+
+  /** @return the number of items with preferences of the label or -1 if it is not known yet */
+  public synchronized int getNumItems(String label) {
+    Counts counts = countsOfLabels != null ? countsOfLabels.get(label) : null;
+    return counts != null ? counts.itemIDs.size() : -1;
+  }
+
+  /** @return the number of users with preferences for items of the label or -1 if it is not known yet */
+  public synchronized int getNumUsers(String label) {
+    Counts counts = countsOfLabels != null ? countsOfLabels.get(label) : null;
+    return counts != null ? counts.userIDs.size() : -1;
+  }
+
+  void reconcile() throws IOException {
+    long start = System.currentTimeMillis();
+    synchronized (this) {
+      writtenWhileReconciling = Maps.newHashMap();
+      usersWrittenWhileReconciling = Maps.newHashMap();
+      removedWhileReconciling = Maps.newHashMap();
+    }
+
+    Map<String, FastIDSet> itemIDsOfLabels = Maps.newHashMap();
+    Map<String, FastIDSet> userIDsOfLabels = Maps.newHashMap();
+    Connection conn = null;
+    boolean read = false;
+    try {
+      conn = dataSource.getConnection();
+      readIDsOfLabels(conn, ITEMS_WITH_PREFERENCES_QUERY, itemIDsOfLabels);
+      readIDsOfLabels(conn, USERS_OF_LABELS_QUERY, userIDsOfLabels);
+      read = true;
+    } catch (SQLException e) {
+      throw new IOException(e);
+    } finally {
+      IOUtils.quietClose(conn);
+      if (!read) {
+        synchronized (this) {
+          writtenWhileReconciling = null;
+          usersWrittenWhileReconciling = null;
+          removedWhileReconciling = null;
+        }
+      }
+    }
+
+    reconciled(itemIDsOfLabels, userIDsOfLabels);
+
+    lastReconcileMillis = System.currentTimeMillis() - start;
+    reconciliations.incrementAndGet();
+    log.info("Reconciled the statistics of {} labels in {} ms", itemIDsOfLabels.size(), lastReconcileMillis);
+  }
+
+  /** replaces the counts with the result of a reconciliation and applies the modifications that happened meanwhile */
+  synchronized void reconciled(Map<String, FastIDSet> itemIDsOfLabels, Map<String, FastIDSet> userIDsOfLabels) {
+    Map<String, Counts> reconciledCounts = Maps.newHashMap();
+    for (Map.Entry<String, FastIDSet> entry : itemIDsOfLabels.entrySet()) {
+      FastIDSet userIDs = userIDsOfLabels.get(entry.getKey());
+      reconciledCounts.put(entry.getKey(), new Counts(entry.getValue(), userIDs != null ? userIDs : new FastIDSet()));
+    }
+    if (writtenWhileReconciling != null) {
+      for (Map.Entry<String, FastIDSet> entry : writtenWhileReconciling.entrySet()) {
+        addAll(countsOf(reconciledCounts, entry.getKey()).itemIDs, entry.getValue());
+      }
+      for (Map.Entry<String, FastIDSet> entry : usersWrittenWhileReconciling.entrySet()) {
+        addAll(countsOf(reconciledCounts, entry.getKey()).userIDs, entry.getValue());
+      }
+      for (Map.Entry<String, FastIDSet> entry : removedWhileReconciling.entrySet()) {
+        Counts counts = reconciledCounts.get(entry.getKey());
+        if (counts != null) {
+          counts.itemIDs.removeAll(entry.getValue());
+        }
+      }
+    }
+    countsOfLabels = reconciledCounts;
+    writtenWhileReconciling = null;
+    usersWrittenWhileReconciling = null;
+    removedWhileReconciling = null;
+  }
+
+  private static Counts countsOf(Map<String, Counts> countsOfLabels, String label) {
+    Counts counts = countsOfLabels.get(label);
+    if (counts == null) {
+      counts = new Counts(new FastIDSet(), new FastIDSet());
+      countsOfLabels.put(label, counts);
+    }
+    return counts;
+  }
+
+  private static void addAll(FastIDSet to, FastIDSet from) {
+    LongPrimitiveIterator iterator = from.iterator();
+    while (iterator.hasNext()) {
+      to.add(iterator.nextLong());
+    }
+  }
+
+  /** reads the pairs of label and ID returned by the query */
+  private static void readIDsOfLabels(Connection conn, String query, Map<String, FastIDSet> idsOfLabels)
+      throws SQLException {
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
+      stmt.setFetchSize(Integer.MIN_VALUE);
+      rs = stmt.executeQuery();
+      while (rs.next()) {
+        record(idsOfLabels, rs.getString(1), rs.getLong(2));
+      }
+    } finally {
+      IOUtils.quietClose(rs);
+      IOUtils.quietClose(stmt);
+    }
+  }
+
+  private static void record(Map<String, FastIDSet> idsOfLabels, String label, long id) {
+    FastIDSet ids = idsOfLabels.get(label);
+    if (ids == null) {
+      ids = new FastIDSet();
+      idsOfLabels.put(label, ids);
+    }
+    ids.add(id);
+  }
+
+  @Override
+  public void close() {
+    reconciler.shutdownNow();
+  }
+
+  public long getReconciliations() {
+    return reconciliations.get();
+  }
+
+  public long getFailedReconciliations() {
+    return failedReconciliations.get();
+  }
+
+  public long getLastReconcileMillis() {
+    return lastReconcileMillis;
+  }
+
+  /** the statistics of one label */
+  private static class Counts {
+
+    private final FastIDSet itemIDs;
+    private final FastIDSet userIDs;
+
+    Counts(FastIDSet itemIDs, FastIDSet userIDs) {
+      this.itemIDs = itemIDs;
+      this.userIDs = userIDs;
+    }
+  }
+}
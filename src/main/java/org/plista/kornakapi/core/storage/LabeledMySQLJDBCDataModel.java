@@ -5,10 +5,18 @@ import javax.sql.DataSource;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.jdbc.AbstractJDBCComponent;
 import org.apache.mahout.cf.taste.impl.model.jdbc.AbstractJDBCDataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+import java.io.IOException;
 
 
 public class LabeledMySQLJDBCDataModel extends AbstractJDBCDataModel{
 
+	  private String label;
+	  private volatile UserHistoryCache userHistories;
+	  private volatile Storage candidateSource;
+	  private volatile LabelStatistics statistics;
+
 	  
 	  /**
 	   * <p>
@@ -182,6 +190,7 @@ public class LabeledMySQLJDBCDataModel extends AbstractJDBCDataModel{
 	            + userIDColumn + ") WHERE tp1." + itemIDColumn + "=? and tp2." + itemIDColumn + "=?",
 	        "SELECT MAX(" + preferenceColumn + ") FROM " + preferenceTable,
 	        "SELECT MIN(" + preferenceColumn + ") FROM " + preferenceTable);
+	    this.label = label;
 	  }
 	  
 	  /**
@@ -241,6 +250,57 @@ public class LabeledMySQLJDBCDataModel extends AbstractJDBCDataModel{
 			        
 	  }
 	  
+	  /**
+	   * serves the preferences of users from a cache of their complete histories, filtered by the candidates of the label
+	   *
+	   * @param candidateSource storage that provides the candidates of the label
+	   */
+	  public void setUserHistoryCache(UserHistoryCache userHistories, Storage candidateSource) {
+	    this.userHistories = userHistories;
+	    this.candidateSource = candidateSource;
+	  }
+
+	  /** answers the numbers of items and users of the label from the given statistics once they are known */
+	  public void setLabelStatistics(LabelStatistics statistics) {
+	    this.statistics = statistics;
+	  }
+
+	  @Override
+	  public int getNumItems() throws TasteException {
+	    LabelStatistics statistics = this.statistics;
+	    if (statistics != null && label != null) {
+	      int numItems = statistics.getNumItems(label);
+	      if (numItems >= 0) {
+	        return numItems;
+	      }
+	    }
+	    return super.getNumItems();
+	  }
+
+	  @Override
+	  public int getNumUsers() throws TasteException {
+	    LabelStatistics statistics = this.statistics;
+	    if (statistics != null && label != null) {
+	      int numUsers = statistics.getNumUsers(label);
+	      if (numUsers >= 0) {
+	        return numUsers;
+	      }
+	    }
+	    return super.getNumUsers();
+	  }
+
+	  @Override
+	  public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+	    if (userHistories == null || label == null) {
+	      return super.getPreferencesFromUser(userID);
+	    }
+	    try {
+	      return userHistories.getPreferencesFromUser(userID, candidateSource.getCandidates(label));
+	    } catch (IOException e) {
+	      throw new TasteException(e);
+	    }
+	  }
+
 	  @Override
 	  protected int getFetchSize() {
 	    // Need to return this for MySQL Connector/J to make it use streaming mode
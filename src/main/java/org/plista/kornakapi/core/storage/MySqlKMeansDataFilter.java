@@ -1,13 +1,11 @@
 package org.plista.kornakapi.core.storage;
 
-
-
-
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.Arrays;
 
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
@@ -16,137 +14,227 @@ import org.plista.kornakapi.core.config.StorageConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-
-
-
-public class MySqlKMeansDataFilter extends MySqlStorage{
-	
-
-	private static final String GET_USER = "select user_id from (SELECT user_id, COUNT(user_id) AS nums FROM taste_preferences GROUP BY user_id ORDER BY nums DESC) as ns where nums >";
-	private static final String GET_USER_ITEMS_BASE = "SELECT item_id FROM taste_preferences WHERE user_id = ";
-	private static final String GET_ALL_RATED_ITEMS = "SELECT DISTINCT(item_id) FROM taste_preferences";
-	private static final Logger log = LoggerFactory.getLogger(MySqlKMeansDataFilter.class);
-	private int minNumUserRatings;
-	//private static int initialCapacity = 2000;
-	//private static final String test = "SELECT * FROM taste_preferences";
-
-
 /**
- * 	
- * @param storageConf
+ * reads the data for clustering items by the users that rated them. A single streamed scan over the preferences,
+ * ordered by user, yields the considered users and for every item the users that rated it.
  */
-	 public MySqlKMeansDataFilter(StorageConfiguration storageConf, String label, BasicDataSource dataSource){
-			super(storageConf, label,dataSource);
-			this.minNumUserRatings = storageConf.getMinNumUserRatings();
-	  }
-	 /**
-	  * 
-	  * @return
-	  */
-	 public StreamingKMeansDataObject getData(){	
-		 /**
-		  * get all userids according to the top query
-		  */
-		 	FastIDSet userids = this.getQuery(GET_USER + String.valueOf(minNumUserRatings));
-		 	HashMap<Long, FastIDSet> userItemIds = new HashMap<Long, FastIDSet>();
-		 	FastIDSet allItems = new FastIDSet();
-		 	int dim = userids.size();
-
-		 	
-		 	/**
-		 	 * for all users: get all items
-		 	 */
-		 	for(long userid : userids.toArray()){
-		 		String getUserItems = GET_USER_ITEMS_BASE + String.valueOf(userid);
-		 		FastIDSet userItems = getQuery(getUserItems);
-		 		allItems.addAll(userItems);
-		 		userItemIds.put(userid, userItems);		 		
-		 	}
-		 	if (log.isInfoEnabled()) {
-			 	int numAllRatedItems = this.getQuery(GET_ALL_RATED_ITEMS).size();
-			 	int numAllConcideredItems = allItems.size(); 
-			 	log.info("Creating [{}] Vectors with [{}] dimensions out of [{}] items.",
-			 			new Object[] {numAllConcideredItems, dim, numAllRatedItems});
-		 	}
-		return new StreamingKMeansDataObject(allItems, userids, userItemIds, dim );
-	 }
-
-	 /**
-	  * Data object containing all important variables
-	  *
-	  */
-	 public class StreamingKMeansDataObject{
-		private FastIDSet userids;
-		private HashMap<Long, FastIDSet> userItemIds;
-		private int dim;
-		private FastIDSet allItems;
-
-		
-		public StreamingKMeansDataObject(FastIDSet allItems, FastIDSet userids, HashMap<Long, FastIDSet> userItemIds, int dim){
-			this.allItems = allItems;
-			this.userids = userids;
-			this.userItemIds = userItemIds;
-			this.dim = dim;
-		 }
-		 
-		public FastIDSet getUserIDs(){
-			return this.userids;
-		}
-		public HashMap<Long, FastIDSet> getUserItemIDs(){
-			return this.userItemIds;
-		}
-		 
-		public int getDim(){
-			return this.dim;
-		}		
-		public FastIDSet getAllItems(){
-			return this.allItems;
-		}
-
-	}
-	 
-	public FastIDSet getQuery(String query){
-		Connection conn = null;
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
-		FastIDSet candidates = new FastIDSet();
-		 
-		try {
-		      conn = dataSource.getConnection();
-		      stmt = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
-		          ResultSet.CONCUR_READ_ONLY);
-		      stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
-		      stmt.setFetchSize(1000);
-		      rs = stmt.executeQuery();
-		      while (rs.next()) {
-		        candidates.add(rs.getLong(1));
-		      }
-			
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}finally{
-		      IOUtils.quietClose(stmt);
-		      IOUtils.quietClose(conn);
-		}
-		return candidates;
-	}
-	
-	public StreamingKMeansDataObject getNewData(FastIDSet userIDs, int dim){
-	 	HashMap<Long, FastIDSet> userItemIds = new HashMap<Long, FastIDSet>();
-	 	FastIDSet allItems = new FastIDSet();
-	 	for(long userid : userIDs.toArray()){
-	 		String getUserItems = GET_USER_ITEMS_BASE + String.valueOf(userid);
-	 		FastIDSet userItems = getQuery(getUserItems);
-	 		allItems.addAll(userItems);
-	 		userItemIds.put(userid, userItems);	 		
-	 	}
-	 	if (log.isInfoEnabled()) {
-		 	int numAllRatedItems = this.getQuery(GET_ALL_RATED_ITEMS).size();
-		 	int numAllConcideredItems = allItems.size(); 
-		 	log.info("Creating [{}] Vectors with [{}] dimensions out of [{}] items.",
-		 			new Object[] {numAllConcideredItems,dim, numAllRatedItems });
-	 	}
-	 	return new StreamingKMeansDataObject(allItems, userIDs, userItemIds, dim );
-	}
+public class MySqlKMeansDataFilter extends MySqlStorage {
+
+  private static final String GET_USER_ITEMS = "SELECT user_id, item_id FROM taste_preferences ORDER BY user_id";
+
+  private static final Logger log = LoggerFactory.getLogger(MySqlKMeansDataFilter.class);
+
+  private int minNumUserRatings;
+
+  public MySqlKMeansDataFilter(StorageConfiguration storageConf, String label, BasicDataSource dataSource) {
+    super(storageConf, label, dataSource);
+    this.minNumUserRatings = storageConf.getMinNumUserRatings();
+  }
+
+  /** considers all users with more than minNumUserRatings preferences, each of them becomes a dimension */
+  public StreamingKMeansDataObject getData() throws IOException {
+    return scan(null);
+  }
+
+  /** considers the given users only, keeping the dimensions of an earlier {@link #getData()} */
+  public StreamingKMeansDataObject getNewData(long[] userIDs) throws IOException {
+    return scan(userIDs);
+  }
+
+  /**
+   * @param consideredUserIDs sorted userIDs to consider or null to consider the users with enough preferences
+   */
+  private StreamingKMeansDataObject scan(long[] consideredUserIDs) throws IOException {
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
+    try {
+      long start = System.currentTimeMillis();
+      UserItemPairs pairs = new UserItemPairs();
+      FastIDSet allRatedItems = new FastIDSet();
+
+      long[] userIDs = consideredUserIDs != null ? consideredUserIDs : new long[1024];
+      int numUsers = consideredUserIDs != null ? consideredUserIDs.length : 0;
+
+      /* the rows of the current user, kept until we know whether the user has enough of them */
+      long currentUserID = 0;
+      int currentUserIndex = -1;
+      int currentUserRows = 0;
+      int currentUserStart = 0;
+
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(GET_USER_ITEMS, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      /* makes MySQL Connector/J stream the result */
+      stmt.setFetchSize(Integer.MIN_VALUE);
+      rs = stmt.executeQuery();
+
+      while (true) {
+        boolean hasNext = rs.next();
+        long userID = hasNext ? rs.getLong(1) : 0;
+
+        if (currentUserRows > 0 && (!hasNext || userID != currentUserID)) {
+          if (consideredUserIDs == null) {
+            if (currentUserRows > minNumUserRatings) {
+              if (numUsers == userIDs.length) {
+                userIDs = Arrays.copyOf(userIDs, numUsers * 2);
+              }
+              userIDs[numUsers++] = currentUserID;
+            } else {
+              pairs.truncate(currentUserStart);
+            }
+          }
+          currentUserRows = 0;
+        }
+        if (!hasNext) {
+          break;
+        }
+
+        long itemID = rs.getLong(2);
+        allRatedItems.add(itemID);
+        if (currentUserRows == 0) {
+          currentUserID = userID;
+          currentUserStart = pairs.size();
+          currentUserIndex = consideredUserIDs != null ?
+              Arrays.binarySearch(consideredUserIDs, userID) : numUsers;
+        }
+        currentUserRows++;
+        if (currentUserIndex >= 0) {
+          pairs.add(currentUserIndex, itemID);
+        }
+      }
+
+      if (consideredUserIDs == null) {
+        userIDs = Arrays.copyOf(userIDs, numUsers);
+      }
+      StreamingKMeansDataObject data = pairs.toDataObject(userIDs);
+
+      if (log.isInfoEnabled()) {
+        log.info("Creating [{}] Vectors with [{}] dimensions out of [{}] items in {} ms.",
+            new Object[] { data.getNumItems(), data.getDim(), allRatedItems.size(),
+                System.currentTimeMillis() - start });
+      }
+      return data;
+
+    } catch (SQLException e) {
+      throw new IOException(e);
+    } finally {
+      IOUtils.quietClose(rs, stmt, conn);
+    }
+  }
+
+  /** the user-item pairs read so far, the user given as dimension */
+  static class UserItemPairs {
+
+    private int[] userIndices = new int[1024];
+    private long[] itemIDs = new long[1024];
+    private int size;
+
+    void add(int userIndex, long itemID) {
+      if (size == itemIDs.length) {
+        userIndices = Arrays.copyOf(userIndices, size * 2);
+        itemIDs = Arrays.copyOf(itemIDs, size * 2);
+      }
+      userIndices[size] = userIndex;
+      itemIDs[size] = itemID;
+      size++;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void truncate(int newSize) {
+      size = newSize;
+    }
+
+    /** groups the pairs by item, the user indices of an item stay in the order in which they were added */
+    StreamingKMeansDataObject toDataObject(long[] userIDs) {
+      long[] distinctItemIDs = Arrays.copyOf(itemIDs, size);
+      Arrays.sort(distinctItemIDs);
+      int numItems = 0;
+      for (int n = 0; n < distinctItemIDs.length; n++) {
+        if (numItems == 0 || distinctItemIDs[numItems - 1] != distinctItemIDs[n]) {
+          distinctItemIDs[numItems++] = distinctItemIDs[n];
+        }
+      }
+      distinctItemIDs = Arrays.copyOf(distinctItemIDs, numItems);
+
+      int[] itemIndices = new int[size];
+      int[] itemOffsets = new int[numItems + 1];
+      for (int n = 0; n < size; n++) {
+        itemIndices[n] = Arrays.binarySearch(distinctItemIDs, itemIDs[n]);
+        itemOffsets[itemIndices[n] + 1]++;
+      }
+      for (int item = 0; item < numItems; item++) {
+        itemOffsets[item + 1] += itemOffsets[item];
+      }
+
+      int[] itemUserIndices = new int[size];
+      int[] nextPosition = Arrays.copyOf(itemOffsets, numItems);
+      for (int n = 0; n < size; n++) {
+        int item = itemIndices[n];
+        /* the same preference can occur in several timeframes */
+        if (nextPosition[item] > itemOffsets[item] && itemUserIndices[nextPosition[item] - 1] == userIndices[n]) {
+          continue;
+        }
+        itemUserIndices[nextPosition[item]++] = userIndices[n];
+      }
+
+      return new StreamingKMeansDataObject(userIDs, distinctItemIDs, itemOffsets, nextPosition, itemUserIndices);
+    }
+  }
+
+  /**
+   * the considered users and an inverted index from the items to the users that rated them. User i is
+   * dimension i of the item vectors.
+   */
+  public static class StreamingKMeansDataObject {
+
+    private final long[] userIDs;
+    private final long[] itemIDs;
+    /** the users of item i are at itemOffsets[i] until itemEnds[i] */
+    private final int[] itemOffsets;
+    private final int[] itemEnds;
+    private final int[] itemUserIndices;
+
+    StreamingKMeansDataObject(long[] userIDs, long[] itemIDs, int[] itemOffsets, int[] itemEnds,
+        int[] itemUserIndices) {
+      this.userIDs = userIDs;
+      this.itemIDs = itemIDs;
+      this.itemOffsets = itemOffsets;
+      this.itemEnds = itemEnds;
+      this.itemUserIndices = itemUserIndices;
+    }
+
+    /** @return the sorted userIDs, in the order of the dimensions */
+    public long[] getUserIDs() {
+      return userIDs;
+    }
+
+    public int getDim() {
+      return userIDs.length;
+    }
+
+    public int getNumItems() {
+      return itemIDs.length;
+    }
+
+    public FastIDSet getAllItems() {
+      FastIDSet allItems = new FastIDSet(itemIDs.length);
+      for (long itemID : itemIDs) {
+        allItems.add(itemID);
+      }
+      return allItems;
+    }
+
+    /** @return the dimensions of the users that rated the item, in ascending order, or null if it is unknown */
+    public int[] getUsersOfItem(long itemID) {
+      int item = Arrays.binarySearch(itemIDs, itemID);
+      if (item < 0) {
+        return null;
+      }
+      return Arrays.copyOfRange(itemUserIndices, itemOffsets[item], itemEnds[item]);
+    }
+  }
 }
@@ -17,17 +17,13 @@ package org.plista.kornakapi.core.storage;
 
 
 import org.apache.commons.dbcp.BasicDataSource;
-import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.common.IOUtils;
 import org.plista.kornakapi.core.config.StorageConfiguration;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.Iterator;
 
 
 /** an implementation of {@link Storage} for MySQL 
@@ -38,13 +34,17 @@ public class MySqlMaxPersistentStorage extends MySqlStorage implements Storage {
 	      "INSERT INTO taste_preferences (user_id, item_id, preference) VALUES (?, ?, ?) " +
 	      "ON DUPLICATE KEY UPDATE preference = GREATEST(preference, VALUES(preference))";
 
- 
-  private static final Logger log = LoggerFactory.getLogger(MySqlStorage.class);
+  private static final String IMPORT_UPDATE_CLAUSE_MAX = "preference = GREATEST(preference, VALUES(preference))";
    
   public MySqlMaxPersistentStorage(StorageConfiguration storageConf, String label,BasicDataSource dataSource) {
 	super(storageConf, label, dataSource);
 
   }
+
+  public MySqlMaxPersistentStorage(StorageConfiguration storageConf, String label, BasicDataSource readDataSource,
+      BasicDataSource writeDataSource) {
+    super(storageConf, label, readDataSource, writeDataSource);
+  }
  
   @Override
   public void setPreference(long userID, long itemID, float value) throws IOException {
@@ -63,44 +63,17 @@ public class MySqlMaxPersistentStorage extends MySqlStorage implements Storage {
 	      IOUtils.quietClose(stmt);
 	      IOUtils.quietClose(conn);
 	    }
+	    written(userID, itemID, value);
   }
 
 
   @Override
-  public void batchSetPreferences(Iterator<Preference> preferences, int batchSize) throws IOException {
-    Connection conn = null;
-    PreparedStatement stmt = null;
-
-    try {
-      conn = dataSource.getConnection();
-      stmt = conn.prepareStatement(IMPORT_QUERY_MAX);
-
-      int recordsQueued = 0;
-
-      while (preferences.hasNext()) {
-        Preference preference = preferences.next();
-        stmt.setLong(1, preference.getUserID());
-        stmt.setLong(2, preference.getItemID());
-        stmt.setFloat(3, preference.getValue());
-        stmt.addBatch();
-
-        if (++recordsQueued % batchSize == 0) {
-          stmt.executeBatch();
-          log.info("imported {} records in batch", recordsQueued);
-        }
-      }
-
-      if (recordsQueued % batchSize != 0) {
-        stmt.executeBatch();
-        log.info("imported {} records in batch. done.", recordsQueued);
-      }
+  protected boolean keepsMaximum() {
+    return true;
+  }
 
-    } catch (SQLException e) {
-      throw new IOException(e);
-    } finally {
-      IOUtils.quietClose(stmt);
-      IOUtils.quietClose(conn);
-    }
+  @Override
+  protected String importUpdateClause() {
+    return IMPORT_UPDATE_CLAUSE_MAX;
   }
 }
-
@@ -6,8 +6,6 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 import org.apache.commons.dbcp.BasicDataSource;
-import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.common.IOUtils;
 import org.plista.kornakapi.core.config.StorageConfiguration;
@@ -30,42 +28,40 @@ CREATE TABLE taste_optimization(
 
 public class MySqlSplitableMaxPersistentStorage extends MySqlMaxPersistentStorage implements Storage{
 	
-	  //protected final SplitableLabeledMySQLJDBCDataModel dataModel;
-	  
+	  /** share of the preferences in the test set of a split, the test sets of the splits don't overlap */
+	  static final double TEST_FRACTION = 0.3;
+
 	  private static final String INSERT_PERFORMANCE ="INSERT INTO taste_optimization (label, features, iterations, alpha, lambda, error) VALUES (?, ?, ? , ?, ?, ?)";
 	  
 	  private static final String INSERT_TOTAL_PERFORMANCE ="UPDATE taste_optimization SET t_error = ? WHERE label = ? && features = ? && iterations = ? && alpha = ? && lambda= ? )";
 	  
 	  private static final Logger log = LoggerFactory.getLogger(MySqlSplitableMaxPersistentStorage.class);
 
+	  private final int seed;
+	  /** all preferences of the label, exported once and shared by the views of all splits */
+	  private CompactDataModel preferences;
+
 	public MySqlSplitableMaxPersistentStorage(StorageConfiguration storageConf,
 			String label, BasicDataSource dataSource, int seed) {
 		super(storageConf, label, dataSource);
-	    dataModel = new SplitableLabeledMySQLJDBCDataModel(dataSource, 
-	    		"taste_preferences",
-	            "user_id",
-	            "item_id",
-	            "preference",
-	            "timestamp",
-	            "taste_candidates",
-	            "label",
-	             label, seed);
-		// TODO Auto-generated constructor stub
-	}  
-	  public DataModel trainingData(int split) throws IOException {
-	    try {
-	      return new GenericDataModel(((SplitableLabeledMySQLJDBCDataModel) dataModel).exportTrainSetWithPrefs(split));
-	    } catch (TasteException e) {
-	      throw new IOException(e);
+		this.seed = seed;
+	}
+
+	  private synchronized CompactDataModel preferences() throws IOException {
+	    if (preferences == null) {
+	      preferences = exportTrainingData();
 	    }
+	    return preferences;
 	  }
-	  
-	  public DataModel testData(int split) throws IOException{
-		    try {
-			      return new GenericDataModel(((SplitableLabeledMySQLJDBCDataModel) dataModel).exportTestSetWithPrefs(split));
-			    } catch (TasteException e) {
-			      throw new IOException(e);
-			    }
+
+	  /** @return the preferences of the label outside of the test set of the split */
+	  public DataModel trainingData(int split) throws IOException {
+	    return preferences().hashRange(seed, split * TEST_FRACTION, (split + 1) * TEST_FRACTION, false);
+	  }
+
+	  /** @return the preferences of the label whose seeded hash falls into the test set of the split */
+	  public DataModel testData(int split) throws IOException {
+	    return preferences().hashRange(seed, split * TEST_FRACTION, (split + 1) * TEST_FRACTION, true);
 	  }
 	  
 	  public void insertPerformance(String label, int  features, int iterations, double alpha, double lambda, double error) throws IOException {
@@ -20,16 +20,17 @@ import com.google.common.collect.Sets;
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
-import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.JDBCDataModel;
 import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.common.IOUtils;
 import org.plista.kornakapi.core.Candidate;
+import org.plista.kornakapi.core.config.ConnectionPoolConfiguration;
 import org.plista.kornakapi.core.config.StorageConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.*;
 import java.util.Iterator;
@@ -68,13 +69,36 @@ import java.util.Set;
  **/
 public class MySqlStorage implements Storage {
 
+  /** pool for writes, imports and training exports */
   protected final BasicDataSource dataSource;
+  /** pool for the reads of the recommenders and the candidate lookups */
+  protected final BasicDataSource readDataSource;
+  /** serves the recommenders, uses the read pool */
   protected JDBCDataModel dataModel;
+  /** used for single preference updates and training exports, uses the write pool */
+  protected JDBCDataModel writeDataModel;
+  /** shares one export between the labels, null if every label exports its own training data */
+  protected volatile TrainingDataExporter trainingDataExporter;
+  /** records the writes for the training snapshots, null if there are none */
+  protected volatile PreferenceDeltaLog deltaLog;
+  /** training data of the label on local disk, null if it is exported in full for every training */
+  private volatile TrainingSnapshot trainingSnapshot;
+  /** histories of recently active users, null if they are always read from the database */
+  protected volatile UserHistoryCache userHistories;
+  /** counts of the labels maintained in memory, null if the data models aggregate them in the database */
+  protected volatile LabelStatistics labelStatistics;
+  protected volatile UserChangeTracker userChanges;
+  private final String label;
   private int timeWindow;
+  private final int importWriterThreads;
+  private final int exportReaderThreads;
+  private final int exportPageSize;
 
-  private static final String IMPORT_QUERY =
-      "INSERT INTO taste_preferences (user_id, item_id, preference) VALUES (?, ?, ?) " +
-      "ON DUPLICATE KEY UPDATE preference = VALUES(preference)";
+  private static final String IMPORT_UPDATE_CLAUSE = "preference = VALUES(preference)";
+
+  private static final String EXPORT_TRAINING_DATA_QUERY =
+      "SELECT DISTINCT p.user_id, p.item_id, p.preference FROM taste_preferences p " +
+      "INNER JOIN taste_candidates c USING (item_id) WHERE c.label = ? ORDER BY p.user_id";
 
   private static final String INSERT_CANDIDATE_QUERY =
       "INSERT INTO taste_candidates (label, item_id) VALUES (?, ?)";
@@ -101,46 +125,191 @@ public class MySqlStorage implements Storage {
   private static final Logger log = LoggerFactory.getLogger(MySqlStorage.class);
 
   public MySqlStorage(StorageConfiguration storageConf, String label, BasicDataSource dataSource) {
+    this(storageConf, label, dataSource, dataSource);
+  }
+
+  /**
+   * @param readDataSource pool for the reads of the recommenders and the candidate lookups
+   * @param writeDataSource pool for writes, imports and training exports, so that these can't starve the reads
+   */
+  public MySqlStorage(StorageConfiguration storageConf, String label, BasicDataSource readDataSource,
+      BasicDataSource writeDataSource) {
+
+    configure(readDataSource, storageConf, storageConf.getReadConnectionPool());
+    configure(writeDataSource, storageConf, storageConf.getWriteConnectionPool());
+
+    dataModel = createDataModel(readDataSource, label);
+    writeDataModel = readDataSource == writeDataSource ? dataModel : createDataModel(writeDataSource, label);
+    this.readDataSource = readDataSource;
+    this.dataSource = writeDataSource;
+    this.label = label;
+    this.timeWindow = storageConf.getTimeWindow();
+    this.importWriterThreads = boundedByPool(storageConf.getImportWriterThreads(), writeDataSource);
+    this.exportReaderThreads = boundedByPool(storageConf.getTrainingExportReaderThreads(), writeDataSource);
+    this.exportPageSize = storageConf.getTrainingExportPageSize();
+    if(timeWindow % 6 !=0 || timeWindow == 0){
+    	timeWindow = 24;
+    }
 
+  }
+
+  /** no more threads than the pool has connections, a pool without a positive maxActive is unbounded */
+  private static int boundedByPool(int threads, BasicDataSource dataSource) {
+    return dataSource.getMaxActive() > 0 ? Math.min(threads, dataSource.getMaxActive()) : threads;
+  }
+
+  /** sets up a pool unless it is already in use by another storage */
+  public static void configure(BasicDataSource dataSource, StorageConfiguration storageConf,
+      ConnectionPoolConfiguration poolConf) {
+    if (dataSource.getUrl() != null) {
+      return;
+    }
 
     dataSource.setDriverClassName(storageConf.getJdbcDriverClass());
     dataSource.setUrl(storageConf.getJdbcUrl());
     dataSource.setUsername(storageConf.getUsername());
     dataSource.setPassword(storageConf.getPassword());
 
-    //TODO should be made configurable
-    dataSource.setMaxActive(10);
-    dataSource.setMinIdle(5);
-    dataSource.setInitialSize(5);
+    dataSource.setMaxActive(poolConf.getMaxActive());
+    dataSource.setMaxIdle(Math.max(poolConf.getMinIdle(), poolConf.getMaxActive()));
+    dataSource.setMinIdle(poolConf.getMinIdle());
+    dataSource.setInitialSize(poolConf.getInitialSize());
+    dataSource.setMaxWait(poolConf.getMaxWaitMillis());
     dataSource.setValidationQuery("SELECT 1;");
     dataSource.setTestOnBorrow(false);
     dataSource.setTestOnReturn(false);
     dataSource.setTestWhileIdle(true);
     dataSource.setTimeBetweenEvictionRunsMillis(5000);
+  }
 
-    dataModel = new LabeledMySQLJDBCDataModel(dataSource, 
-    		"taste_preferences",
-            "user_id",
-            "item_id",
-            "preference",
-            "timestamp",
-            "taste_candidates",
-            "label",
-             label);
-    this.dataSource = dataSource;
-    this.timeWindow = storageConf.getTimeWindow();
-    if(timeWindow % 6 !=0 || timeWindow == 0){
-    	timeWindow = 24;
+  /**
+   * keeps the given cache up to date with the writes to this storage and serves the preferences of users from it
+   *
+   * @param candidateSource storage that provides the candidates of the label
+   */
+  public void setUserHistoryCache(UserHistoryCache userHistories, Storage candidateSource) {
+    this.userHistories = userHistories;
+    if (dataModel instanceof LabeledMySQLJDBCDataModel) {
+      ((LabeledMySQLJDBCDataModel) dataModel).setUserHistoryCache(userHistories, candidateSource);
+    }
+  }
+
+  /** keeps the given statistics up to date with the writes to this storage and answers the counts from them */
+  public void setLabelStatistics(LabelStatistics labelStatistics) {
+    this.labelStatistics = labelStatistics;
+    if (dataModel instanceof LabeledMySQLJDBCDataModel) {
+      ((LabeledMySQLJDBCDataModel) dataModel).setLabelStatistics(labelStatistics);
+    }
+    if (writeDataModel instanceof LabeledMySQLJDBCDataModel) {
+      ((LabeledMySQLJDBCDataModel) writeDataModel).setLabelStatistics(labelStatistics);
     }
+  }
 
+  /** records the users whose preferences are written to this storage in the given tracker */
+  public void setUserChangeTracker(UserChangeTracker userChanges) {
+    this.userChanges = userChanges;
   }
 
+  /** lets the labels share the given export of training data */
+  public void setTrainingDataExporter(TrainingDataExporter trainingDataExporter) {
+    this.trainingDataExporter = trainingDataExporter;
+  }
+
+  /**
+   * records the writes to this storage in the given log and keeps the training data of the label in the directory,
+   * so that a training only needs to read what changed since the previous one
+   *
+   * @param maxAgeMillis time after which the training data is exported in full again
+   */
+  public void enableTrainingSnapshots(PreferenceDeltaLog deltaLog, File directory, long maxAgeMillis) {
+    this.deltaLog = deltaLog;
+    trainingSnapshot = new TrainingSnapshot(new File(directory,
+        "training-" + label.replaceAll("[^A-Za-z0-9_-]", "_") + ".snapshot"), deltaLog, maxAgeMillis,
+        keepsMaximum());
+  }
+
+  private static JDBCDataModel createDataModel(BasicDataSource dataSource, String label) {
+    return new LabeledMySQLJDBCDataModel(dataSource,
+        "taste_preferences",
+        "user_id",
+        "item_id",
+        "preference",
+        "timestamp",
+        "taste_candidates",
+        "label",
+        label);
+  }
+
+  /**
+   * exports the preferences of the label into a {@link CompactDataModel}, in one stream or in parallel user ranges,
+   * or brings the snapshot of the previous training up to date. The result knows the user changes it contains.
+   */
   @Override
   public DataModel trainingData() throws IOException {
+    /* a change is recorded after its write, so everything up to here is contained in what is read afterwards */
+    UserChangeTracker userChanges = this.userChanges;
+    long includedChanges = userChanges != null ? userChanges.currentSequence() : 0;
+    if (writeDataModel.getClass() != LabeledMySQLJDBCDataModel.class) {
+      /* subclasses bring their own queries */
+      try {
+        return CompactDataModel.fromPreferences(writeDataModel.exportWithPrefs()).withIncludedChanges(includedChanges);
+      } catch (TasteException e) {
+        throw new IOException(e);
+      }
+    }
+    TrainingSnapshot trainingSnapshot = this.trainingSnapshot;
+    if (trainingSnapshot == null) {
+      /* the shared export knows the changes at its own start */
+      return trainingDataExporter != null ? trainingDataExporter.trainingData(label) :
+          exportTrainingData().withIncludedChanges(includedChanges);
+    }
+
+    FastIDSet candidates = getCandidates(label);
+    CompactDataModel trainingData = trainingSnapshot.update(candidates, dataSource);
+    if (trainingData == null) {
+      /* a shared export might be older than the current position of the delta log, so the label exports itself */
+      long position = trainingSnapshot.position();
+      trainingData = exportTrainingData();
+      trainingSnapshot.replace(trainingData, candidates, position);
+    }
+    return trainingData.withIncludedChanges(includedChanges);
+  }
+
+  /** exports all preferences of the label, bypassing the shared export and the snapshot */
+  protected CompactDataModel exportTrainingData() throws IOException {
+    if (exportReaderThreads > 1) {
+      return new ParallelPreferenceExporter(dataSource, exportReaderThreads, exportPageSize).exportPreferences(label);
+    }
+
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
     try {
-      return new GenericDataModel(dataModel.exportWithPrefs());
-    } catch (TasteException e) {
+      long start = System.currentTimeMillis();
+      CompactDataModel.Builder builder = new CompactDataModel.Builder();
+
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(EXPORT_TRAINING_DATA_QUERY, ResultSet.TYPE_FORWARD_ONLY,
+          ResultSet.CONCUR_READ_ONLY);
+      /* makes MySQL Connector/J stream the result */
+      stmt.setFetchSize(Integer.MIN_VALUE);
+      stmt.setString(1, label);
+      rs = stmt.executeQuery();
+
+      while (rs.next()) {
+        builder.add(rs.getLong(1), rs.getLong(2), rs.getFloat(3));
+      }
+
+      CompactDataModel trainingData = builder.build();
+      log.info("exported {} for label {} in {} ms",
+          new Object[] { trainingData, label, System.currentTimeMillis() - start });
+      return trainingData;
+
+    } catch (SQLException e) {
       throw new IOException(e);
+    } finally {
+      IOUtils.quietClose(rs, stmt, conn);
     }
   }
 
@@ -152,49 +321,77 @@ public class MySqlStorage implements Storage {
   @Override
   public void setPreference(long userID, long itemID, float value) throws IOException {
     try {
-      dataModel.setPreference(userID, itemID, value);
+      writeDataModel.setPreference(userID, itemID, value);
     } catch (TasteException e) {
       throw new IOException(e);
     }
+    written(userID, itemID, value);
+  }
+
+  /** keeps the user history cache, the delta log, the label statistics and the user changes up to date with a write */
+  protected void written(long userID, long itemID, float value) {
+    UserHistoryCache userHistories = this.userHistories;
+    if (userHistories != null) {
+      userHistories.setPreference(userID, itemID, value);
+    }
+    PreferenceDeltaLog deltaLog = this.deltaLog;
+    if (deltaLog != null) {
+      deltaLog.append(userID, itemID, value);
+    }
+    LabelStatistics labelStatistics = this.labelStatistics;
+    if (labelStatistics != null) {
+      labelStatistics.preferenceWritten(userID, itemID);
+    }
+    UserChangeTracker userChanges = this.userChanges;
+    if (userChanges != null) {
+      userChanges.changed(userID);
+    }
   }
 
   @Override
   public void batchSetPreferences(Iterator<Preference> preferences, int batchSize) throws IOException {
-    Connection conn = null;
-    PreparedStatement stmt = null;
-
-    try {
-      conn = dataSource.getConnection();
-      stmt = conn.prepareStatement(IMPORT_QUERY);
-
-      int recordsQueued = 0;
-
-      while (preferences.hasNext()) {
-        Preference preference = preferences.next();
-        stmt.setLong(1, preference.getUserID());
-        stmt.setLong(2, preference.getItemID());
-        stmt.setFloat(3, preference.getValue());
-        stmt.addBatch();
+    if (userHistories == null && deltaLog == null && labelStatistics == null && userChanges == null) {
+      new PreferenceImporter(dataSource, importUpdateClause(), importWriterThreads)
+          .importPreferences(preferences, batchSize);
+      return;
+    }
 
-        if (++recordsQueued % batchSize == 0) {
-          stmt.executeBatch();
-          log.info("imported {} records in batch", recordsQueued);
-        }
+    /* recorded once committed, so that a concurrent miss of the history cache cannot cache a history without them */
+    new PreferenceImporter(dataSource, importUpdateClause(), importWriterThreads, new PreferenceImporter.Listener() {
+      @Override
+      public void imported(long userID, long itemID, float value) {
+        written(userID, itemID, value);
       }
+    }).importPreferences(preferences, batchSize);
+  }
 
-      if (recordsQueued % batchSize != 0) {
-        stmt.executeBatch();
-        log.info("imported {} records in batch. done.", recordsQueued);
+  /** @param purgedUserIDs the users who lost preferences, null if unknown */
+  private void forgetPurgedPreferences(FastIDSet purgedUserIDs) {
+    if (userHistories != null) {
+      userHistories.clear();
+    }
+    if (labelStatistics != null) {
+      labelStatistics.reconcileSoon();
+    }
+    if (userChanges != null) {
+      if (purgedUserIDs != null) {
+        userChanges.changed(purgedUserIDs);
+      } else {
+        userChanges.changedAll();
       }
-
-    } catch (SQLException e) {
-      throw new IOException(e);
-    } finally {
-      IOUtils.quietClose(stmt);
-      IOUtils.quietClose(conn);
     }
   }
 
+  /** whether a preference may only be replaced by a higher value */
+  protected boolean keepsMaximum() {
+    return false;
+  }
+
+  /** the assignments applied when an imported preference already exists */
+  protected String importUpdateClause() {
+    return IMPORT_UPDATE_CLAUSE;
+  }
+
   /**
    port from PHP code:
 
@@ -230,10 +427,34 @@ public class MySqlStorage implements Storage {
 
       int indexOfPartitionToPurge = (selfHalfDay + 1) % 6;
 
+      /*
+       * the truncation goes into the delta log as removals, unless it removes more than the log can hold, and only
+       * the users who lose preferences count as changed
+       */
+      PreferenceDeltaLog deltaLog = this.deltaLog;
+      UserChangeTracker userChanges = this.userChanges;
+      PurgedPreferences purged = deltaLog != null || userChanges != null ?
+          PurgedPreferences.read(conn, indexOfPartitionToPurge, deltaLog != null ? deltaLog.getCapacity() / 4 : 0,
+              userChanges != null ? userChanges.getMaxUsers() : 0) : null;
+
       truncateStmt = conn.createStatement();
       truncateStmt.execute(TRUNCATE_PREVIOUS_PARTITION_QUERY_FRAGMENT +
                            "p" + String.valueOf(indexOfPartitionToPurge) + ";");
 
+      if (purged != null && purged.isComplete()) {
+        try {
+          purged.appendTo(deltaLog, conn);
+        } catch (SQLException e) {
+          deltaLog.reset();
+          throw e;
+        }
+      } else if (deltaLog != null) {
+        deltaLog.reset();
+      }
+
+      /* the removed preferences are still contained in the cache */
+      forgetPurgedPreferences(purged != null ? purged.userIDs() : null);
+
     } catch (SQLException e) {
       throw new IOException(e);
     } finally {
@@ -413,7 +634,7 @@ public class MySqlStorage implements Storage {
 
       FastIDSet candidates = new FastIDSet();
 
-      conn = dataSource.getConnection();
+      conn = readDataSource.getConnection();
       stmt = conn.prepareStatement(GET_CANDIDATES_QUERY, ResultSet.TYPE_FORWARD_ONLY,
           ResultSet.CONCUR_READ_ONLY);
       stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
@@ -444,7 +665,7 @@ public class MySqlStorage implements Storage {
 
       LinkedList<String> candidates = new LinkedList<String>();
 
-      conn = dataSource.getConnection();
+      conn = readDataSource.getConnection();
       stmt = conn.prepareStatement(GET_LABELS, ResultSet.TYPE_FORWARD_ONLY,
           ResultSet.CONCUR_READ_ONLY);
       stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
@@ -471,7 +692,7 @@ public class MySqlStorage implements Storage {
 
 	    try {
 
-	      conn = dataSource.getConnection();
+	      conn = readDataSource.getConnection();
 	      stmt = conn.prepareStatement(GET_ITEMSLABEL, ResultSet.TYPE_FORWARD_ONLY,
 	          ResultSet.CONCUR_READ_ONLY);
 	      stmt.setLong(1, itemid);
@@ -496,6 +717,9 @@ public class MySqlStorage implements Storage {
   public void close() throws IOException {
     try {
       dataSource.close();
+      if (readDataSource != dataSource) {
+        readDataSource.close();
+      }
     } catch (SQLException e) {
       throw new IOException("Unable to close datasource", e);
     }
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import org.apache.mahout.common.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * exports the preferences of a label over several parallel connections. The user-ID space is split into ranges,
+ * which the readers fetch page by page with keyset pagination, so no query keeps a server-side cursor open for long.
+ * The rows are added to a shared {@link CompactDataModel.Builder} as they arrive, always one complete user at a time.
+ */
+class ParallelPreferenceExporter {
+
+  /** more ranges than readers let fast readers take over the work of slow ones */
+  static final int RANGES_PER_READER = 4;
+
+  /** a user-item pair occurs at most once per timeframe partition, a page must hold more rows than that */
+  static final int MIN_PAGE_SIZE = 100;
+
+  private static final String USER_ID_BOUNDS_QUERY = "SELECT MIN(user_id), MAX(user_id) FROM taste_preferences";
+
+  private static final String PAGE_QUERY =
+      "SELECT p.user_id, p.item_id, p.preference FROM taste_preferences p " +
+      "INNER JOIN taste_candidates c USING (item_id) " +
+      "WHERE c.label = ? AND p.user_id <= ? AND (p.user_id > ? OR (p.user_id = ? AND p.item_id >= ?)) " +
+      "ORDER BY p.user_id, p.item_id LIMIT ?";
+
+  private static final Logger log = LoggerFactory.getLogger(ParallelPreferenceExporter.class);
+
+  private final DataSource dataSource;
+  private final int numReaders;
+  private final int pageSize;
+
+  ParallelPreferenceExporter(DataSource dataSource, int numReaders, int pageSize) {
+    Preconditions.checkArgument(numReaders > 0, "numReaders must be positive");
+    this.dataSource = dataSource;
+    this.numReaders = numReaders;
+    this.pageSize = Math.max(pageSize, MIN_PAGE_SIZE);
+  }
+
+  CompactDataModel exportPreferences(final String label) throws IOException {
+    long start = System.currentTimeMillis();
+    final CompactDataModel.Builder builder = new CompactDataModel.Builder();
+
+    long[] bounds = userIDBounds();
+    if (bounds == null) {
+      return builder.build();
+    }
+    final Queue<long[]> ranges = new ConcurrentLinkedQueue<long[]>(
+        ranges(bounds[0], bounds[1], numReaders * RANGES_PER_READER));
+
+    final AtomicInteger threadNumber = new AtomicInteger(0);
+    ExecutorService executor = Executors.newFixedThreadPool(numReaders, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "preference-export-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    try {
+      Future<?>[] readers = new Future<?>[numReaders];
+      for (int n = 0; n < numReaders; n++) {
+        readers[n] = executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            long[] range;
+            while ((range = ranges.poll()) != null) {
+              exportRange(label, range[0], range[1], builder);
+            }
+            return null;
+          }
+        });
+      }
+
+      for (Future<?> reader : readers) {
+        try {
+          reader.get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+          throw new IOException(cause);
+        }
+      }
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      /* stops the remaining readers in case of a failure */
+      executor.shutdownNow();
+    }
+
+    CompactDataModel trainingData = builder.build();
+    log.info("exported {} for label {} in {} ms using {} connections",
+        new Object[] { trainingData, label, System.currentTimeMillis() - start, numReaders });
+    return trainingData;
+  }
+
+  /** @return the smallest and the largest userID or null if there are no preferences */
+  private long[] userIDBounds() throws IOException {
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(USER_ID_BOUNDS_QUERY);
+      rs = stmt.executeQuery();
+      rs.next();
+      long min = rs.getLong(1);
+      if (rs.wasNull()) {
+        return null;
+      }
+      return new long[] { min, rs.getLong(2) };
+    } catch (SQLException e) {
+      throw new IOException(e);
+    } finally {
+      IOUtils.quietClose(rs, stmt, conn);
+    }
+  }
+
+  private void exportRange(String label, long fromUserID, long toUserID, CompactDataModel.Builder builder)
+      throws IOException {
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    Rows rows = new Rows(pageSize);
+
+    long lastUserID = fromUserID;
+    long lastItemID = Long.MIN_VALUE;
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(PAGE_QUERY);
+      stmt.setString(1, label);
+      stmt.setLong(2, toUserID);
+      stmt.setInt(6, pageSize);
+
+      boolean lastPage = false;
+      while (!lastPage) {
+        stmt.setLong(3, lastUserID);
+        stmt.setLong(4, lastUserID);
+        stmt.setLong(5, lastItemID);
+
+        int pageStart = rows.size();
+        ResultSet rs = stmt.executeQuery();
+        try {
+          while (rs.next()) {
+            rows.add(rs.getLong(1), rs.getLong(2), rs.getFloat(3));
+          }
+        } finally {
+          IOUtils.quietClose(rs);
+        }
+
+        lastPage = rows.size() - pageStart < pageSize;
+        if (!lastPage) {
+          /* the next page starts with the last pair again, as it might have more rows in other timeframes */
+          lastUserID = rows.lastUserID();
+          lastItemID = rows.lastItemID();
+          rows.removeLastPair();
+        }
+        rows.moveCompleteUsers(builder, lastPage);
+      }
+
+    } catch (SQLException e) {
+      throw new IOException(e);
+    } finally {
+      IOUtils.quietClose(stmt);
+      IOUtils.quietClose(conn);
+    }
+  }
+
+  /** splits [fromUserID, toUserID] into about numRanges ranges of about the same width */
+  static List<long[]> ranges(long fromUserID, long toUserID, int numRanges) {
+    /* divides before subtracting, the difference of two userIDs can overflow */
+    long width = Math.max(1, toUserID / numRanges - fromUserID / numRanges + 1);
+    List<long[]> ranges = Lists.newArrayListWithCapacity(numRanges + 1);
+    long from = fromUserID;
+    while (true) {
+      long to = from > toUserID - width ? toUserID : from + width - 1;
+      ranges.add(new long[] { from, to });
+      if (to == toUserID) {
+        return ranges;
+      }
+      from = to + 1;
+    }
+  }
+
+  /** rows of a range that have not been added to the builder yet */
+  static class Rows {
+
+    private long[] userIDs;
+    private long[] itemIDs;
+    private float[] values;
+    private int size;
+
+    Rows(int capacity) {
+      userIDs = new long[capacity];
+      itemIDs = new long[capacity];
+      values = new float[capacity];
+    }
+
+    void add(long userID, long itemID, float value) {
+      if (size == userIDs.length) {
+        userIDs = Arrays.copyOf(userIDs, size * 2);
+        itemIDs = Arrays.copyOf(itemIDs, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      userIDs[size] = userID;
+      itemIDs[size] = itemID;
+      values[size] = value;
+      size++;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long lastUserID() {
+      return userIDs[size - 1];
+    }
+
+    long lastItemID() {
+      return itemIDs[size - 1];
+    }
+
+    void removeLastPair() {
+      long userID = lastUserID();
+      long itemID = lastItemID();
+      while (size > 0 && userIDs[size - 1] == userID && itemIDs[size - 1] == itemID) {
+        size--;
+      }
+    }
+
+    /**
+     * adds all rows to the builder except those of the last user, whose remaining rows might still follow on the
+     * next page, unless this was the last page
+     */
+    void moveCompleteUsers(CompactDataModel.Builder builder, boolean lastPage) {
+      if (size == 0) {
+        return;
+      }
+      int end = size;
+      if (!lastPage) {
+        while (end > 0 && userIDs[end - 1] == userIDs[size - 1]) {
+          end--;
+        }
+      }
+      if (end == 0) {
+        return;
+      }
+      synchronized (builder) {
+        for (int n = 0; n < end; n++) {
+          builder.add(userIDs[n], itemIDs[n], values[n]);
+        }
+      }
+      size -= end;
+      System.arraycopy(userIDs, end, userIDs, 0, size);
+      System.arraycopy(itemIDs, end, itemIDs, 0, size);
+      System.arraycopy(values, end, values, 0, size);
+    }
+  }
+}
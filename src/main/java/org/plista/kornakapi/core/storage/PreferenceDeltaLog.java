@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.model.Preference;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * records the preferences written by this instance, so that {@link TrainingSnapshot}s can be brought up to date
+ * without exporting all preferences again. Readers address the log by position; once the log is full, its older half
+ * is discarded and snapshots that have not caught up need a full export.
+ */
+public class PreferenceDeltaLog {
+
+  /** the value recorded for a preference that was removed from the database, real preferences are finite */
+  static final float REMOVED = Float.NEGATIVE_INFINITY;
+
+  /** distinguishes the positions of this log from those of earlier processes */
+  private final long id = new Random().nextLong();
+  private final int capacity;
+
+  private final long[] userIDs;
+  private final long[] itemIDs;
+  private final float[] values;
+  private int size;
+  /** position of the first recorded preference */
+  private long firstPosition;
+
+  private long discarded;
+  private long resets;
+
+  public PreferenceDeltaLog(int capacity) {
+    Preconditions.checkArgument(capacity > 1, "capacity must be larger than 1");
+    this.capacity = capacity;
+    userIDs = new long[capacity];
+    itemIDs = new long[capacity];
+    values = new float[capacity];
+  }
+
+  public synchronized void append(long userID, long itemID, float value) {
+    if (size == capacity) {
+      int half = capacity / 2;
+      System.arraycopy(userIDs, half, userIDs, 0, size - half);
+      System.arraycopy(itemIDs, half, itemIDs, 0, size - half);
+      System.arraycopy(values, half, values, 0, size - half);
+      size -= half;
+      firstPosition += half;
+      discarded += half;
+    }
+    userIDs[size] = userID;
+    itemIDs[size] = itemID;
+    values[size] = value;
+    size++;
+  }
+
+  /** records that a preference was removed from the database */
+  public void appendRemoval(long userID, long itemID) {
+    append(userID, itemID, REMOVED);
+  }
+
+  /** makes all earlier positions unusable, needed whenever preferences were removed without recording it */
+  public synchronized void reset() {
+    /* skipping one position makes sure that no snapshot is up to date afterwards */
+    firstPosition += size + 1;
+    size = 0;
+    resets++;
+  }
+
+  /** @return the position of the next preference to be recorded */
+  public synchronized long position() {
+    return firstPosition + size;
+  }
+
+  long getId() {
+    return id;
+  }
+
+  /**
+   * adds the preferences recorded from position from until position to for the given items to the map of users
+   *
+   * @return false if the log no longer holds all of these preferences
+   */
+  synchronized boolean collect(long from, long to, FastIDSet itemIDsToCollect,
+      FastByIDMap<List<Preference>> preferencesOfUsers) {
+    if (from < firstPosition || to > firstPosition + size) {
+      return false;
+    }
+    for (int n = (int) (from - firstPosition); n < to - firstPosition; n++) {
+      if (itemIDsToCollect.contains(itemIDs[n])) {
+        List<Preference> preferences = preferencesOfUsers.get(userIDs[n]);
+        if (preferences == null) {
+          preferences = Lists.newArrayList();
+          preferencesOfUsers.put(userIDs[n], preferences);
+        }
+        preferences.add(new GenericPreference(userIDs[n], itemIDs[n], values[n]));
+      }
+    }
+    return true;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public synchronized int getSize() {
+    return size;
+  }
+
+  public synchronized long getDiscarded() {
+    return discarded;
+  }
+
+  public synchronized long getResets() {
+    return resets;
+  }
+}
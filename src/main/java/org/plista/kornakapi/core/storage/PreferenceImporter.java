@@ -0,0 +1,294 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.common.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * imports large amounts of preferences with multi-row INSERT statements over several parallel connections. The
+ * preferences are partitioned among the writers by userID, so all preferences of a user are written by the same
+ * connection in the order in which they were read, which keeps the semantics of the update clause intact. An optional
+ * listener learns about every preference once the statement that wrote it has been committed.
+ */
+class PreferenceImporter {
+
+  /** keeps statements well below the placeholder limit and max_allowed_packet of MySQL */
+  static final int MAX_ROWS_PER_STATEMENT = 1000;
+
+  /** number of full batches that may wait for each writer before the reading thread blocks */
+  private static final int QUEUED_BATCHES_PER_WRITER = 2;
+
+  private static final PreferenceBatch END_OF_INPUT = new PreferenceBatch(0);
+
+  private static final Logger log = LoggerFactory.getLogger(PreferenceImporter.class);
+
+  private final DataSource dataSource;
+  private final String updateClause;
+  private final int numWriters;
+  private final Listener listener;
+
+  /**
+   * @param updateClause the assignments of the ON DUPLICATE KEY UPDATE clause
+   */
+  PreferenceImporter(DataSource dataSource, String updateClause, int numWriters) {
+    this(dataSource, updateClause, numWriters, null);
+  }
+
+  /**
+   * @param listener called from the writer threads after each statement, may be null
+   */
+  PreferenceImporter(DataSource dataSource, String updateClause, int numWriters, Listener listener) {
+    Preconditions.checkArgument(numWriters > 0, "numWriters must be positive");
+    this.dataSource = dataSource;
+    this.updateClause = updateClause;
+    this.numWriters = numWriters;
+    this.listener = listener;
+  }
+
+  /** learns about the imported preferences, the preferences of a user arrive in the order in which they were read */
+  interface Listener {
+    void imported(long userID, long itemID, float value);
+  }
+
+  /**
+   * @return the number of imported preferences
+   */
+  long importPreferences(Iterator<Preference> preferences, int batchSize) throws IOException {
+
+    int rowsPerBatch = Math.max(1, batchSize);
+    int rowsPerStatement = Math.min(rowsPerBatch, MAX_ROWS_PER_STATEMENT);
+
+    final AtomicInteger threadNumber = new AtomicInteger(0);
+    ExecutorService executor = Executors.newFixedThreadPool(numWriters, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "preference-import-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    long start = System.currentTimeMillis();
+    try {
+      Writer[] writers = new Writer[numWriters];
+      for (int n = 0; n < numWriters; n++) {
+        writers[n] = new Writer(rowsPerStatement);
+        writers[n].future = executor.submit(writers[n]);
+      }
+
+      PreferenceBatch[] pending = new PreferenceBatch[numWriters];
+      while (preferences.hasNext()) {
+        Preference preference = preferences.next();
+        int partition = partition(preference.getUserID(), numWriters);
+        if (pending[partition] == null) {
+          pending[partition] = new PreferenceBatch(rowsPerBatch);
+        }
+        pending[partition].add(preference);
+        if (pending[partition].isFull()) {
+          writers[partition].enqueue(pending[partition]);
+          pending[partition] = null;
+        }
+      }
+
+      for (int n = 0; n < numWriters; n++) {
+        if (pending[n] != null) {
+          writers[n].enqueue(pending[n]);
+        }
+        writers[n].enqueue(END_OF_INPUT);
+      }
+
+      long imported = 0;
+      for (Writer writer : writers) {
+        imported += writer.await();
+      }
+
+      long duration = Math.max(1, System.currentTimeMillis() - start);
+      log.info("imported {} preferences in {} ms using {} connections ({} rows/sec)",
+          new Object[] { imported, duration, numWriters, imported * 1000 / duration });
+
+      return imported;
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } finally {
+      /* stops the remaining writers in case of a failure */
+      executor.shutdownNow();
+    }
+  }
+
+  static int partition(long userID, int numPartitions) {
+    int hash = (int) (userID ^ (userID >>> 32));
+    return (hash & Integer.MAX_VALUE) % numPartitions;
+  }
+
+  static String importQuery(int numRows, String updateClause) {
+    StringBuilder query = new StringBuilder(60 + numRows * 11 + updateClause.length());
+    query.append("INSERT INTO taste_preferences (user_id, item_id, preference) VALUES ");
+    for (int n = 0; n < numRows; n++) {
+      if (n > 0) {
+        query.append(',');
+      }
+      query.append("(?, ?, ?)");
+    }
+    query.append(" ON DUPLICATE KEY UPDATE ").append(updateClause);
+    return query.toString();
+  }
+
+  /** preferences to be written by one connection, stored in primitive arrays */
+  static class PreferenceBatch {
+
+    private final long[] userIDs;
+    private final long[] itemIDs;
+    private final float[] values;
+    private int size;
+
+    PreferenceBatch(int capacity) {
+      userIDs = new long[capacity];
+      itemIDs = new long[capacity];
+      values = new float[capacity];
+    }
+
+    void add(Preference preference) {
+      userIDs[size] = preference.getUserID();
+      itemIDs[size] = preference.getItemID();
+      values[size] = preference.getValue();
+      size++;
+    }
+
+    boolean isFull() {
+      return size == userIDs.length;
+    }
+
+    int size() {
+      return size;
+    }
+  }
+
+  /** writes the batches of one partition over its own connection */
+  private class Writer implements Callable<Long> {
+
+    private final int rowsPerStatement;
+    private final BlockingQueue<PreferenceBatch> batches =
+        new ArrayBlockingQueue<PreferenceBatch>(QUEUED_BATCHES_PER_WRITER);
+    private Future<Long> future;
+
+    Writer(int rowsPerStatement) {
+      this.rowsPerStatement = rowsPerStatement;
+    }
+
+    /** blocks while the writer is busy, fails if the writer has failed */
+    void enqueue(PreferenceBatch batch) throws IOException, InterruptedException {
+      while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+        if (future.isDone()) {
+          await();
+          throw new IllegalStateException("Writer stopped before the end of the input");
+        }
+      }
+    }
+
+    long await() throws IOException, InterruptedException {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+
+    @Override
+    public Long call() throws IOException, InterruptedException {
+      Connection conn = null;
+      PreparedStatement fullStmt = null;
+      long imported = 0;
+
+      try {
+        conn = dataSource.getConnection();
+
+        PreferenceBatch batch;
+        while ((batch = batches.take()) != END_OF_INPUT) {
+          for (int from = 0; from < batch.size(); from += rowsPerStatement) {
+            int numRows = Math.min(rowsPerStatement, batch.size() - from);
+            if (numRows == rowsPerStatement) {
+              if (fullStmt == null) {
+                fullStmt = conn.prepareStatement(importQuery(numRows, updateClause));
+              }
+              write(fullStmt, batch, from, numRows);
+            } else {
+              PreparedStatement stmt = conn.prepareStatement(importQuery(numRows, updateClause));
+              try {
+                write(stmt, batch, from, numRows);
+              } finally {
+                IOUtils.quietClose(stmt);
+              }
+            }
+          }
+          imported += batch.size();
+          log.debug("imported {} records in batch", imported);
+        }
+
+      } catch (SQLException e) {
+        throw new IOException(e);
+      } finally {
+        IOUtils.quietClose(fullStmt);
+        IOUtils.quietClose(conn);
+      }
+      return imported;
+    }
+
+    private void write(PreparedStatement stmt, PreferenceBatch batch, int from, int numRows) throws SQLException {
+      int parameterIndex = 1;
+      for (int n = from; n < from + numRows; n++) {
+        stmt.setLong(parameterIndex++, batch.userIDs[n]);
+        stmt.setLong(parameterIndex++, batch.itemIDs[n]);
+        stmt.setFloat(parameterIndex++, batch.values[n]);
+      }
+      stmt.executeUpdate();
+      /* the connections auto-commit, so the rows are visible to other connections now */
+      if (listener != null) {
+        for (int n = from; n < from + numRows; n++) {
+          listener.imported(batch.userIDs[n], batch.itemIDs[n], batch.values[n]);
+        }
+      }
+    }
+  }
+}
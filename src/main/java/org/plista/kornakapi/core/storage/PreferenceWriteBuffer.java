@@ -0,0 +1,357 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * buffers single preference updates and writes them to the storage in batches from a background thread. Repeated
+ * updates of the same user-item pair are coalesced while they wait, either keeping the latest or the highest value.
+ * Once the buffer holds its capacity of distinct pairs, writers block for a while and finally write through to the
+ * storage themselves. Preferences of a failed flush go back into the buffer as far as there is capacity for them.
+ */
+public class PreferenceWriteBuffer implements Closeable {
+
+  private final Storage storage;
+  private final boolean keepMaximum;
+  private final int flushSize;
+  private final long maxBlockMillis;
+
+  private final ConcurrentMap<PreferenceKey, Float> pending = new ConcurrentHashMap<PreferenceKey, Float>();
+  /** pairs taken by the running flush, a write through of one of them waits for the flush to complete */
+  private final ConcurrentMap<PreferenceKey, Float> inFlight = new ConcurrentHashMap<PreferenceKey, Float>();
+  /** held while a flush takes and writes its pairs */
+  private final Object flushLock = new Object();
+  /** one permit per distinct user-item pair that may still be buffered */
+  private final Semaphore capacity;
+  private final int maxPending;
+
+  private final ScheduledExecutorService flusher;
+  private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushRequested.set(false);
+      flush();
+    }
+  };
+
+  private final AtomicLong bufferedPreferences = new AtomicLong();
+  private final AtomicLong coalescedPreferences = new AtomicLong();
+  private final AtomicLong writtenThroughPreferences = new AtomicLong();
+  private final AtomicLong flushedPreferences = new AtomicLong();
+  private final AtomicLong failedPreferences = new AtomicLong();
+  private final AtomicLong droppedPreferences = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong totalFlushMillis = new AtomicLong();
+  private volatile long lastFlushMillis;
+  private volatile long maxFlushMillis;
+
+  private static final Logger log = LoggerFactory.getLogger(PreferenceWriteBuffer.class);
+
+  /**
+   * @param keepMaximum whether a buffered value may only be replaced by a higher one, like in
+   *                    {@link MySqlMaxPersistentStorage}
+   * @param capacity maximum number of distinct user-item pairs to buffer
+   * @param flushSize number of buffered pairs that triggers a flush before the flush interval has passed
+   * @param maxBlockMillis how long a writer waits for free capacity before writing through to the storage
+   */
+  public PreferenceWriteBuffer(Storage storage, boolean keepMaximum, int capacity, int flushSize,
+      long flushIntervalMillis, long maxBlockMillis) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    Preconditions.checkArgument(flushSize > 0, "flushSize must be positive");
+    Preconditions.checkArgument(flushIntervalMillis > 0, "flushIntervalMillis must be positive");
+
+    this.storage = storage;
+    this.keepMaximum = keepMaximum;
+    this.flushSize = flushSize;
+    this.maxBlockMillis = maxBlockMillis;
+    this.maxPending = capacity;
+    this.capacity = new Semaphore(capacity);
+
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "preference-write-buffer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(flushTask, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+    log.info("Buffering up to {} preferences, flushing every {} ms or after {} preferences",
+        new Object[] { capacity, flushIntervalMillis, flushSize });
+  }
+
+  public void setPreference(long userID, long itemID, float value) throws IOException {
+    PreferenceKey key = new PreferenceKey(userID, itemID);
+
+    if (flusher.isShutdown()) {
+      writeThrough(key, value);
+      return;
+    }
+
+    if (merge(key, value)) {
+      coalescedPreferences.incrementAndGet();
+      return;
+    }
+
+    boolean acquired;
+    try {
+      acquired = capacity.tryAcquire(maxBlockMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      acquired = false;
+    }
+
+    if (!acquired) {
+      writeThrough(key, value);
+      return;
+    }
+
+    if (pending.putIfAbsent(key, value) == null) {
+      bufferedPreferences.incrementAndGet();
+      if (pending.size() >= flushSize && flushRequested.compareAndSet(false, true)) {
+        flusher.execute(flushTask);
+      }
+    } else {
+      /* another writer buffered the same pair in the meantime */
+      capacity.release();
+      if (!merge(key, value)) {
+        setPreference(userID, itemID, value);
+        return;
+      }
+      coalescedPreferences.incrementAndGet();
+    }
+  }
+
+  private void writeThrough(PreferenceKey key, float value) throws IOException {
+    if (inFlight.containsKey(key)) {
+      /* the running flush writes an older value of the pair, which must not overwrite this one */
+      synchronized (flushLock) {
+        /* a failed flush put the older value back */
+        if (merge(key, value)) {
+          coalescedPreferences.incrementAndGet();
+          return;
+        }
+        writtenThroughPreferences.incrementAndGet();
+        storage.setPreference(key.userID, key.itemID, value);
+      }
+    } else {
+      writtenThroughPreferences.incrementAndGet();
+      storage.setPreference(key.userID, key.itemID, value);
+    }
+  }
+
+  /** @return false if the pair is not buffered */
+  private boolean merge(PreferenceKey key, float value) {
+    while (true) {
+      Float current = pending.get(key);
+      if (current == null) {
+        return false;
+      }
+      if (keepMaximum && current >= value) {
+        return true;
+      }
+      if (pending.replace(key, current, value)) {
+        return true;
+      }
+    }
+  }
+
+  /** writes all currently buffered preferences to the storage */
+  void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    long start = System.currentTimeMillis();
+    List<Preference> preferences;
+    synchronized (flushLock) {
+      preferences = Lists.newArrayListWithCapacity(pending.size());
+      for (Map.Entry<PreferenceKey, Float> entry : pending.entrySet()) {
+        PreferenceKey key = entry.getKey();
+        Float value = entry.getValue();
+        /* marked in flight before it leaves the buffer, so that a write through of the pair sees it in one of both */
+        inFlight.put(key, value);
+        /* a pair that was updated concurrently stays for the next flush */
+        if (pending.remove(key, value)) {
+          capacity.release();
+          preferences.add(new GenericPreference(key.userID, key.itemID, value));
+        } else {
+          inFlight.remove(key);
+        }
+      }
+
+      try {
+        storage.batchSetPreferences(preferences.iterator(), flushSize);
+        flushedPreferences.addAndGet(preferences.size());
+      } catch (IOException e) {
+        failed(preferences, e);
+      } catch (RuntimeException e) {
+        failed(preferences, e);
+      } finally {
+        inFlight.clear();
+      }
+    }
+
+    long duration = System.currentTimeMillis() - start;
+    flushes.incrementAndGet();
+    totalFlushMillis.addAndGet(duration);
+    lastFlushMillis = duration;
+    if (duration > maxFlushMillis) {
+      maxFlushMillis = duration;
+    }
+    log.debug("flushed {} buffered preferences in {} ms", preferences.size(), duration);
+  }
+
+  /**
+   * puts the preferences of a failed flush back for the next one. A pair that was buffered again in the meantime
+   * keeps its newer value, or the higher one if the maximum is kept. Pairs that find no free capacity are dropped.
+   */
+  private void failed(List<Preference> preferences, Exception e) {
+    failedPreferences.addAndGet(preferences.size());
+    int dropped = 0;
+    for (Preference preference : preferences) {
+      PreferenceKey key = new PreferenceKey(preference.getUserID(), preference.getItemID());
+      float value = preference.getValue();
+      if (keepMaximum ? merge(key, value) : pending.containsKey(key)) {
+        continue;
+      }
+      if (!capacity.tryAcquire()) {
+        dropped++;
+        continue;
+      }
+      if (pending.putIfAbsent(key, value) != null) {
+        capacity.release();
+        if (keepMaximum) {
+          merge(key, value);
+        }
+      }
+    }
+    droppedPreferences.addAndGet(dropped);
+    log.error("Unable to flush " + preferences.size() + " buffered preferences, " + dropped
+        + " of them did not fit back into the buffer and are lost", e);
+  }
+
+  /** stops the background flushes and writes the remaining preferences */
+  @Override
+  public void close() throws IOException {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(maxBlockMillis + 60000, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    log.info("Closed preference write buffer, {} preferences flushed, {} failed",
+        flushedPreferences.get(), failedPreferences.get());
+  }
+
+  public int getCapacity() {
+    return maxPending;
+  }
+
+  public int getQueueDepth() {
+    return pending.size();
+  }
+
+  public long getBufferedPreferences() {
+    return bufferedPreferences.get();
+  }
+
+  public long getCoalescedPreferences() {
+    return coalescedPreferences.get();
+  }
+
+  public long getWrittenThroughPreferences() {
+    return writtenThroughPreferences.get();
+  }
+
+  public long getFlushedPreferences() {
+    return flushedPreferences.get();
+  }
+
+  public long getFailedPreferences() {
+    return failedPreferences.get();
+  }
+
+  public long getDroppedPreferences() {
+    return droppedPreferences.get();
+  }
+
+  public long getFlushes() {
+    return flushes.get();
+  }
+
+  public long getTotalFlushMillis() {
+    return totalFlushMillis.get();
+  }
+
+  public long getLastFlushMillis() {
+    return lastFlushMillis;
+  }
+
+  public long getMaxFlushMillis() {
+    return maxFlushMillis;
+  }
+
+  static final class PreferenceKey {
+
+    private final long userID;
+    private final long itemID;
+
+    PreferenceKey(long userID, long itemID) {
+      this.userID = userID;
+      this.itemID = itemID;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PreferenceKey)) {
+        return false;
+      }
+      PreferenceKey other = (PreferenceKey) o;
+      return userID == other.userID && itemID == other.itemID;
+    }
+
+    @Override
+    public int hashCode() {
+      long hash = 31 * userID + itemID;
+      return (int) (hash ^ (hash >>> 32));
+    }
+  }
+}
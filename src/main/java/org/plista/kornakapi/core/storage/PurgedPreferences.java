@@ -0,0 +1,175 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.common.IOUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * the preferences of a timeframe that is about to be truncated, so that the truncation can be recorded in the
+ * {@link PreferenceDeltaLog} instead of making every training snapshot unusable. A preference may also exist in other
+ * timeframes, so its remaining value is read back after the truncation. Pairs and users are only kept up to a limit
+ * each, beyond that only the affected users, or nothing at all, are known.
+ */
+class PurgedPreferences {
+
+  private static final String PURGED_PREFERENCES_QUERY =
+      "SELECT DISTINCT user_id, item_id FROM taste_preferences WHERE timeframe = ?";
+
+  /** keeps the IN lists well below the placeholder limit of MySQL */
+  private static final int PAIRS_PER_QUERY = 1000;
+
+  /** the users of the purged preferences, null if there were more than the limit */
+  private FastIDSet userIDs = new FastIDSet();
+  /** the purged items per user, null if there were more pairs than the limit */
+  private FastByIDMap<FastIDSet> itemIDsOfUsers = new FastByIDMap<FastIDSet>();
+  private int numPairs;
+
+  private PurgedPreferences() {}
+
+  /** reads the preferences of the timeframe, keeping at most maxPairs of them and the users of at most maxUsers */
+  static PurgedPreferences read(Connection conn, int timeframe, int maxPairs, int maxUsers) throws SQLException {
+    PurgedPreferences purged = new PurgedPreferences();
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      stmt = conn.prepareStatement(PURGED_PREFERENCES_QUERY, ResultSet.TYPE_FORWARD_ONLY,
+          ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchSize(Integer.MIN_VALUE);
+      stmt.setInt(1, timeframe);
+      rs = stmt.executeQuery();
+      while (rs.next()) {
+        purged.add(rs.getLong(1), rs.getLong(2), maxPairs, maxUsers);
+      }
+    } finally {
+      IOUtils.quietClose(rs);
+      IOUtils.quietClose(stmt);
+    }
+    return purged;
+  }
+
+  private void add(long userID, long itemID, int maxPairs, int maxUsers) {
+    if (userIDs != null && userIDs.add(userID) && userIDs.size() > maxUsers) {
+      userIDs = null;
+    }
+    if (itemIDsOfUsers == null) {
+      return;
+    }
+    if (++numPairs > maxPairs) {
+      itemIDsOfUsers = null;
+      return;
+    }
+    FastIDSet itemIDs = itemIDsOfUsers.get(userID);
+    if (itemIDs == null) {
+      itemIDs = new FastIDSet();
+      itemIDsOfUsers.put(userID, itemIDs);
+    }
+    itemIDs.add(itemID);
+  }
+
+  /** the users who had preferences in the timeframe, null if there were too many to keep */
+  FastIDSet userIDs() {
+    return userIDs;
+  }
+
+  /** whether all purged pairs are known */
+  boolean isComplete() {
+    return itemIDsOfUsers != null;
+  }
+
+  /**
+   * records the removal of every purged pair in the log, followed by the value it still has in other timeframes, if
+   * any. To be called after the truncation.
+   */
+  void appendTo(PreferenceDeltaLog deltaLog, Connection conn) throws SQLException {
+    if (!isComplete()) {
+      throw new IllegalStateException("not all purged preferences are known");
+    }
+    long[] userIDsOfPairs = new long[numPairs];
+    long[] itemIDsOfPairs = new long[numPairs];
+    int n = 0;
+    for (Map.Entry<Long, FastIDSet> entry : itemIDsOfUsers.entrySet()) {
+      LongPrimitiveIterator itemIDs = entry.getValue().iterator();
+      while (itemIDs.hasNext()) {
+        userIDsOfPairs[n] = entry.getKey();
+        itemIDsOfPairs[n] = itemIDs.nextLong();
+        n++;
+      }
+    }
+
+    for (int from = 0; from < numPairs; from += PAIRS_PER_QUERY) {
+      int numPairsInQuery = Math.min(PAIRS_PER_QUERY, numPairs - from);
+      FastByIDMap<FastByIDMap<Float>> remaining = readRemaining(conn, userIDsOfPairs, itemIDsOfPairs, from,
+          numPairsInQuery);
+      for (int pair = from; pair < from + numPairsInQuery; pair++) {
+        deltaLog.appendRemoval(userIDsOfPairs[pair], itemIDsOfPairs[pair]);
+        FastByIDMap<Float> remainingOfUser = remaining.get(userIDsOfPairs[pair]);
+        Float value = remainingOfUser != null ? remainingOfUser.get(itemIDsOfPairs[pair]) : null;
+        if (value != null) {
+          deltaLog.append(userIDsOfPairs[pair], itemIDsOfPairs[pair], value);
+        }
+      }
+    }
+  }
+
+  private static FastByIDMap<FastByIDMap<Float>> readRemaining(Connection conn, long[] userIDs, long[] itemIDs,
+      int from, int numPairs) throws SQLException {
+    FastByIDMap<FastByIDMap<Float>> remaining = new FastByIDMap<FastByIDMap<Float>>();
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      stmt = conn.prepareStatement(remainingPreferencesQuery(numPairs));
+      int parameterIndex = 1;
+      for (int n = from; n < from + numPairs; n++) {
+        stmt.setLong(parameterIndex++, userIDs[n]);
+        stmt.setLong(parameterIndex++, itemIDs[n]);
+      }
+      rs = stmt.executeQuery();
+      while (rs.next()) {
+        long userID = rs.getLong(1);
+        FastByIDMap<Float> remainingOfUser = remaining.get(userID);
+        if (remainingOfUser == null) {
+          remainingOfUser = new FastByIDMap<Float>();
+          remaining.put(userID, remainingOfUser);
+        }
+        remainingOfUser.put(rs.getLong(2), rs.getFloat(3));
+      }
+    } finally {
+      IOUtils.quietClose(rs);
+      IOUtils.quietClose(stmt);
+    }
+    return remaining;
+  }
+
+  /** the highest value over the remaining timeframes, like the export reads it */
+  static String remainingPreferencesQuery(int numPairs) {
+    StringBuilder query = new StringBuilder(120 + numPairs * 6);
+    query.append("SELECT user_id, item_id, MAX(preference) FROM taste_preferences WHERE (user_id, item_id) IN (");
+    for (int n = 0; n < numPairs; n++) {
+      query.append(n == 0 ? "(?,?)" : ",(?,?)");
+    }
+    return query.append(") GROUP BY user_id, item_id").toString();
+  }
+}
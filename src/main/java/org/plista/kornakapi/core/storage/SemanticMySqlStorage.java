@@ -19,5 +19,6 @@ public class SemanticMySqlStorage extends MySqlStorage{
 	            "taste_candidates",
 	            "label",
 	             label);
+	    writeDataModel = dataModel;
 	}
 }
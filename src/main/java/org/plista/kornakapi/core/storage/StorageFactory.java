@@ -0,0 +1,79 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.plista.kornakapi.core.config.Configuration;
+import org.plista.kornakapi.core.config.StorageConfiguration;
+
+import java.io.File;
+
+/** creates the storages of the labels according to the configuration */
+public class StorageFactory {
+
+  private StorageFactory() {}
+
+  /**
+   * @param userHistories cache shared by all storages, may be null
+   * @param trainingDataExporter export shared by all storages, may be null
+   * @param deltaLog log of the writes shared by all storages, null if there are no training snapshots
+   * @param itemLabels index of the labels of the items shared by all storages, may be null
+   * @param labelStatistics counts of the labels shared by all storages, may be null
+   * @param embeddedStore store shared by all storages instead of MySQL, null if the preferences are kept in MySQL.
+   *                      The user history cache, the shared export, the snapshots and the label statistics only
+   *                      apply to MySQL.
+   * @param userChanges tracker of the users who changed their preferences shared by all storages, may be null. An
+   *                    embedded store records the changes itself.
+   * @param candidateCache cache of the candidate sets shared by all storages, so that modifications through one
+   *                       storage are seen by the others. A storage gets a cache of its own if null.
+   */
+  public static CandidateCacheStorageDecorator createStorage(Configuration conf, String label,
+      BasicDataSource readDataSource, BasicDataSource writeDataSource, UserHistoryCache userHistories,
+      TrainingDataExporter trainingDataExporter, PreferenceDeltaLog deltaLog, ItemLabelIndex itemLabels,
+      LabelStatistics labelStatistics, EmbeddedStore embeddedStore, UserChangeTracker userChanges,
+      CandidateCache candidateCache) {
+
+    StorageConfiguration storageConf = conf.getStorageConfiguration();
+    if (candidateCache == null) {
+      candidateCache = new CandidateCache(storageConf);
+    }
+    if (embeddedStore != null) {
+      CandidateCacheStorageDecorator cachingStorage =
+          new CandidateCacheStorageDecorator(new EmbeddedStorage(embeddedStore, label), candidateCache);
+      cachingStorage.setItemLabelIndex(itemLabels);
+      return cachingStorage;
+    }
+
+    MySqlStorage storage = conf.getMaxPersistence() ?
+        new MySqlMaxPersistentStorage(storageConf, label, readDataSource, writeDataSource) :
+        new MySqlStorage(storageConf, label, readDataSource, writeDataSource);
+
+    CandidateCacheStorageDecorator cachingStorage = new CandidateCacheStorageDecorator(storage, candidateCache);
+    if (userHistories != null) {
+      storage.setUserHistoryCache(userHistories, cachingStorage);
+    }
+    cachingStorage.setItemLabelIndex(itemLabels);
+    cachingStorage.setLabelStatistics(labelStatistics);
+    storage.setLabelStatistics(labelStatistics);
+    storage.setUserChangeTracker(userChanges);
+    storage.setTrainingDataExporter(trainingDataExporter);
+    if (deltaLog != null) {
+      storage.enableTrainingSnapshots(deltaLog, new File(storageConf.getTrainingSnapshotDirectory()),
+          storageConf.getTrainingSnapshotMaxAgeMinutes() * 60000L);
+    }
+    return cachingStorage;
+  }
+}
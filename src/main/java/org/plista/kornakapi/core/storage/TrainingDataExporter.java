@@ -0,0 +1,125 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.collect.Maps;
+
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.common.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * exports the training data of all labels in a single pass over the preferences. The per-label results are kept
+ * for a configurable window, so that all trainers that fire within this window share one scan of the table instead
+ * of running one join per label.
+ */
+public class TrainingDataExporter {
+
+  private static final String EXPORT_ALL_LABELS_QUERY =
+      "SELECT p.user_id, p.item_id, p.preference, c.label FROM taste_preferences p " +
+      "INNER JOIN taste_candidates c USING (item_id) ORDER BY p.user_id";
+
+  private final DataSource dataSource;
+  private final long windowMillis;
+  private final UserChangeTracker userChanges;
+
+  private Map<String, CompactDataModel> trainingDataOfLabels;
+  private long exportedAt;
+
+  private static final Logger log = LoggerFactory.getLogger(TrainingDataExporter.class);
+
+  /**
+   * @param windowMillis how long an export is reused
+   * @param userChanges tells the exports which user changes they contain, may be null
+   */
+  public TrainingDataExporter(DataSource dataSource, long windowMillis, UserChangeTracker userChanges) {
+    this.dataSource = dataSource;
+    this.windowMillis = windowMillis;
+    this.userChanges = userChanges;
+  }
+
+  /**
+   * @return the training data of the label, exported at most windowMillis ago. Concurrent callers wait for a
+   *         running export and share its result, which only contains the user changes up to its start.
+   */
+  public synchronized DataModel trainingData(String label) throws IOException {
+    if (trainingDataOfLabels == null || System.currentTimeMillis() - exportedAt > windowMillis) {
+      /* release the previous export before starting the next one */
+      trainingDataOfLabels = null;
+      trainingDataOfLabels = exportAllLabels();
+      exportedAt = System.currentTimeMillis();
+    }
+    CompactDataModel trainingData = trainingDataOfLabels.get(label);
+    return trainingData != null ? trainingData : new CompactDataModel.Builder().build();
+  }
+
+  private Map<String, CompactDataModel> exportAllLabels() throws IOException {
+    long includedChanges = userChanges != null ? userChanges.currentSequence() : 0;
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
+    try {
+      long start = System.currentTimeMillis();
+      Map<String, CompactDataModel.Builder> builders = Maps.newHashMap();
+
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(EXPORT_ALL_LABELS_QUERY, ResultSet.TYPE_FORWARD_ONLY,
+          ResultSet.CONCUR_READ_ONLY);
+      /* makes MySQL Connector/J stream the result */
+      stmt.setFetchSize(Integer.MIN_VALUE);
+      rs = stmt.executeQuery();
+
+      long numRows = 0;
+      while (rs.next()) {
+        String label = rs.getString(4);
+        CompactDataModel.Builder builder = builders.get(label);
+        if (builder == null) {
+          builder = new CompactDataModel.Builder();
+          builders.put(label, builder);
+        }
+        builder.add(rs.getLong(1), rs.getLong(2), rs.getFloat(3));
+        numRows++;
+      }
+
+      Map<String, CompactDataModel> trainingDataOfLabels = Maps.newHashMapWithExpectedSize(builders.size());
+      for (Map.Entry<String, CompactDataModel.Builder> entry : builders.entrySet()) {
+        trainingDataOfLabels.put(entry.getKey(), entry.getValue().build().withIncludedChanges(includedChanges));
+        /* lets the collected rows of the label become garbage */
+        entry.setValue(null);
+      }
+
+      log.info("exported {} rows for {} labels in {} ms",
+          new Object[] { numRows, trainingDataOfLabels.size(), System.currentTimeMillis() - start });
+      return trainingDataOfLabels;
+
+    } catch (SQLException e) {
+      throw new IOException(e);
+    } finally {
+      IOUtils.quietClose(rs, stmt, conn);
+    }
+  }
+}
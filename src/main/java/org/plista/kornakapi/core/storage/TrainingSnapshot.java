@@ -0,0 +1,293 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.collect.Lists;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.common.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * the training data of a label, kept in a binary file on local disk between trainings. A training only reads the
+ * preferences that were written since the snapshot was taken from the {@link PreferenceDeltaLog} and the preferences
+ * of items that became candidates from the database, instead of exporting the whole label again. Logged preferences
+ * are applied in the order they were written, with the semantics of the storage: the latest value wins unless the
+ * maximum is kept, and a logged removal drops the preference.
+ */
+class TrainingSnapshot {
+
+  private static final int VERSION = 1;
+
+  /** keeps the IN lists well below the placeholder limit of MySQL */
+  private static final int ITEM_IDS_PER_QUERY = 1000;
+
+  private static final Logger log = LoggerFactory.getLogger(TrainingSnapshot.class);
+
+  private final File file;
+  private final PreferenceDeltaLog deltaLog;
+  private final long maxAgeMillis;
+  private final boolean keepMaximum;
+
+  /** the candidates and the position in the delta log the file corresponds to, null if there is no usable file */
+  private FastIDSet candidates;
+  private long position;
+  private long exportedAt;
+
+  /**
+   * @param maxAgeMillis time after which the training data is exported in full again, to catch up with writes
+   *                     of other instances
+   * @param keepMaximum whether a preference may only be replaced by a higher value, like in
+   *                    {@link MySqlMaxPersistentStorage}
+   */
+  TrainingSnapshot(File file, PreferenceDeltaLog deltaLog, long maxAgeMillis, boolean keepMaximum) {
+    this.file = file;
+    this.deltaLog = deltaLog;
+    this.maxAgeMillis = maxAgeMillis;
+    this.keepMaximum = keepMaximum;
+  }
+
+  /** @return the position in the delta log to pass to {@link #replace} for an export that starts now */
+  long position() {
+    return deltaLog.position();
+  }
+
+  /** @return the snapshot brought up to date, null if a full export is needed */
+  synchronized CompactDataModel update(FastIDSet currentCandidates, DataSource dataSource) throws IOException {
+    if (candidates == null || !file.exists() || System.currentTimeMillis() - exportedAt > maxAgeMillis) {
+      return null;
+    }
+
+    long start = System.currentTimeMillis();
+    long newPosition = deltaLog.position();
+    FastByIDMap<List<Preference>> deltas = new FastByIDMap<List<Preference>>();
+    if (!deltaLog.collect(position, newPosition, currentCandidates, deltas)) {
+      return null;
+    }
+    int numLoggedUsers = deltas.size();
+
+    FastIDSet addedCandidates = new FastIDSet();
+    LongPrimitiveIterator candidateIDs = currentCandidates.iterator();
+    while (candidateIDs.hasNext()) {
+      long itemID = candidateIDs.nextLong();
+      if (!candidates.contains(itemID)) {
+        addedCandidates.add(itemID);
+      }
+    }
+    CompactDataModel snapshot = read();
+    if (snapshot == null) {
+      log.warn("Snapshot {} does not match its delta log", file.getName());
+      return null;
+    }
+    FastByIDMap<List<Preference>> preferencesOfAddedCandidates = new FastByIDMap<List<Preference>>();
+    readPreferencesForItems(addedCandidates, dataSource, preferencesOfAddedCandidates);
+
+    CompactDataModel trainingData =
+        merge(snapshot, currentCandidates, deltas, addedCandidates, preferencesOfAddedCandidates);
+    write(trainingData, newPosition);
+    candidates = currentCandidates;
+    position = newPosition;
+
+    log.info("updated snapshot {} with preferences of {} users and {} new candidates in {} ms",
+        new Object[] { file.getName(), numLoggedUsers, addedCandidates.size(), System.currentTimeMillis() - start });
+    return trainingData;
+  }
+
+  /** replaces the snapshot with a full export that started at the given position of the delta log */
+  synchronized void replace(CompactDataModel trainingData, FastIDSet exportedCandidates, long exportPosition)
+      throws IOException {
+    write(trainingData, exportPosition);
+    candidates = exportedCandidates;
+    position = exportPosition;
+    exportedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * @param deltas the logged preferences per user, in the order they were written
+   * @param addedCandidates items whose preferences are read from the database instead of the log
+   */
+  private CompactDataModel merge(CompactDataModel snapshot, FastIDSet candidates,
+      FastByIDMap<List<Preference>> deltas, FastIDSet addedCandidates,
+      FastByIDMap<List<Preference>> preferencesOfAddedCandidates) throws IOException {
+    CompactDataModel.Builder builder = new CompactDataModel.Builder();
+    try {
+      LongPrimitiveIterator userIDs = snapshot.getUserIDs();
+      while (userIDs.hasNext()) {
+        long userID = userIDs.nextLong();
+        add(builder, userID, snapshot.getPreferencesFromUser(userID), candidates, deltas.remove(userID),
+            addedCandidates, preferencesOfAddedCandidates.remove(userID));
+      }
+    } catch (NoSuchUserException e) {
+      throw new IOException(e);
+    }
+    for (Map.Entry<Long, List<Preference>> entry : deltas.entrySet()) {
+      long userID = entry.getKey();
+      add(builder, userID, null, candidates, entry.getValue(), addedCandidates,
+          preferencesOfAddedCandidates.remove(userID));
+    }
+    for (Map.Entry<Long, List<Preference>> entry : preferencesOfAddedCandidates.entrySet()) {
+      add(builder, entry.getKey(), null, candidates, null, addedCandidates, entry.getValue());
+    }
+    return builder.build();
+  }
+
+  private void add(CompactDataModel.Builder builder, long userID, PreferenceArray snapshotPreferences,
+      FastIDSet candidates, List<Preference> loggedPreferences, FastIDSet addedCandidates,
+      List<Preference> preferencesOfAddedCandidates) {
+    FastByIDMap<Float> values = new FastByIDMap<Float>();
+    if (snapshotPreferences != null) {
+      for (int n = 0; n < snapshotPreferences.length(); n++) {
+        if (candidates.contains(snapshotPreferences.getItemID(n))) {
+          values.put(snapshotPreferences.getItemID(n), snapshotPreferences.getValue(n));
+        }
+      }
+    }
+    if (loggedPreferences != null) {
+      for (Preference preference : loggedPreferences) {
+        long itemID = preference.getItemID();
+        if (addedCandidates.contains(itemID)) {
+          /* already contained in what was read from the database */
+          continue;
+        }
+        Float current = values.get(itemID);
+        if (preference.getValue() == PreferenceDeltaLog.REMOVED) {
+          values.remove(itemID);
+        } else if (current == null || !keepMaximum || preference.getValue() > current) {
+          values.put(itemID, preference.getValue());
+        }
+      }
+    }
+    if (preferencesOfAddedCandidates != null) {
+      /* the highest value, like the export does for the timeframes of a preference */
+      for (Preference preference : preferencesOfAddedCandidates) {
+        Float current = values.get(preference.getItemID());
+        if (current == null || preference.getValue() > current) {
+          values.put(preference.getItemID(), preference.getValue());
+        }
+      }
+    }
+    for (Map.Entry<Long, Float> entry : values.entrySet()) {
+      builder.add(userID, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private static void readPreferencesForItems(FastIDSet itemIDs, DataSource dataSource,
+      FastByIDMap<List<Preference>> preferencesOfUsers) throws IOException {
+    if (itemIDs.isEmpty()) {
+      return;
+    }
+    long[] itemIDsArray = itemIDs.toArray();
+
+    Connection conn = null;
+    try {
+      conn = dataSource.getConnection();
+      for (int from = 0; from < itemIDsArray.length; from += ITEM_IDS_PER_QUERY) {
+        int numItems = Math.min(ITEM_IDS_PER_QUERY, itemIDsArray.length - from);
+        PreparedStatement stmt = conn.prepareStatement(preferencesForItemsQuery(numItems));
+        ResultSet rs = null;
+        try {
+          for (int n = 0; n < numItems; n++) {
+            stmt.setLong(n + 1, itemIDsArray[from + n]);
+          }
+          rs = stmt.executeQuery();
+          while (rs.next()) {
+            long userID = rs.getLong(1);
+            List<Preference> preferences = preferencesOfUsers.get(userID);
+            if (preferences == null) {
+              preferences = Lists.newArrayList();
+              preferencesOfUsers.put(userID, preferences);
+            }
+            preferences.add(new GenericPreference(userID, rs.getLong(2), rs.getFloat(3)));
+          }
+        } finally {
+          IOUtils.quietClose(rs);
+          IOUtils.quietClose(stmt);
+        }
+      }
+    } catch (SQLException e) {
+      throw new IOException(e);
+    } finally {
+      IOUtils.quietClose(conn);
+    }
+  }
+
+  static String preferencesForItemsQuery(int numItems) {
+    StringBuilder query = new StringBuilder(80 + numItems * 3);
+    query.append("SELECT user_id, item_id, preference FROM taste_preferences WHERE item_id IN (");
+    for (int n = 0; n < numItems; n++) {
+      query.append(n == 0 ? "?" : ",?");
+    }
+    return query.append(')').toString();
+  }
+
+  private void write(CompactDataModel trainingData, long snapshotPosition) throws IOException {
+    File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeInt(VERSION);
+      out.writeLong(deltaLog.getId());
+      out.writeLong(snapshotPosition);
+      trainingData.writeTo(out);
+    } finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(file)) {
+      /* renameTo does not replace existing files on every platform */
+      if (!file.delete() || !tempFile.renameTo(file)) {
+        throw new IOException("Unable to replace " + file);
+      }
+    }
+  }
+
+  /** @return the snapshot, null if it was not written at the current position of this log */
+  private CompactDataModel read() throws IOException {
+    RandomAccessFile snapshotFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = snapshotFile.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != VERSION || buffer.getLong() != deltaLog.getId() || buffer.getLong() != position) {
+        return null;
+      }
+      return CompactDataModel.readFrom(buffer);
+    } finally {
+      snapshotFile.close();
+    }
+  }
+}
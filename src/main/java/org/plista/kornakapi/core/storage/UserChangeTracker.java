@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * remembers when the most recently active users last changed their preferences, shared by all labels. Changes are
+ * numbered by a sequence instead of the clock, so a reader can tell which changes happened after a point of its
+ * choice. Once a user is forgotten, the tracker answers conservatively with the latest forgotten change.
+ */
+public class UserChangeTracker {
+
+  private final int maxUsers;
+  private final Map<Long, Long> lastChanges;
+  /** guarded by lastChanges */
+  private long sequence;
+  /** latest change of a user that is no longer tracked, or of all users, guarded by lastChanges */
+  private long forgottenSequence;
+
+  public UserChangeTracker(final int maxUsers) {
+    Preconditions.checkArgument(maxUsers > 0, "maxUsers must be positive");
+    this.maxUsers = maxUsers;
+    lastChanges = new LinkedHashMap<Long, Long>(16, 0.75f, false) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+        if (size() > maxUsers) {
+          forgottenSequence = Math.max(forgottenSequence, eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /** records a change of the preferences of the user */
+  public void changed(long userID) {
+    synchronized (lastChanges) {
+      /* re-inserting moves the user to the end of the insertion order */
+      lastChanges.remove(userID);
+      lastChanges.put(userID, ++sequence);
+    }
+  }
+
+  /** records a change of the preferences of all given users, or of all users if there are more than it can track */
+  public void changed(FastIDSet userIDs) {
+    synchronized (lastChanges) {
+      if (userIDs.size() > maxUsers) {
+        changedAll();
+        return;
+      }
+      LongPrimitiveIterator iterator = userIDs.iterator();
+      while (iterator.hasNext()) {
+        changed(iterator.nextLong());
+      }
+    }
+  }
+
+  /** records a change of all users, needed whenever it is unknown whose preferences were removed */
+  public void changedAll() {
+    synchronized (lastChanges) {
+      lastChanges.clear();
+      forgottenSequence = ++sequence;
+    }
+  }
+
+  /** @return the sequence number of the latest change of any user */
+  public long currentSequence() {
+    synchronized (lastChanges) {
+      return sequence;
+    }
+  }
+
+  /** @return the sequence number of the latest change of the user, 0 if the user never changed */
+  public long lastChange(long userID) {
+    synchronized (lastChanges) {
+      Long lastChange = lastChanges.get(userID);
+      return Math.max(lastChange != null ? lastChange : 0, forgottenSequence);
+    }
+  }
+
+  public int getMaxUsers() {
+    return maxUsers;
+  }
+
+  public int getSize() {
+    synchronized (lastChanges) {
+      return lastChanges.size();
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.common.IOUtils;
+
+import javax.sql.DataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * a bounded cache of the complete preference histories of the most recently active users, shared by all labels.
+ * Each history is kept as sorted primitive arrays and is replaced on every change, so it can be read without locking.
+ * Changes and loads of a user only synchronize on the stripe of the user, so the labels do not contend on one lock.
+ * The labeled data models filter the histories by their current candidates, so changes of the candidate sets never
+ * make the cache stale. Writes to the storage update cached histories, purges clear the cache.
+ */
+public class UserHistoryCache {
+
+  private static final String GET_USER_HISTORY_QUERY =
+      "SELECT item_id, preference FROM taste_preferences WHERE user_id = ? ORDER BY item_id";
+
+  /** number of stripes used to detect writes that race with loading a history, and to order the changes of a user */
+  private static final int NUM_VERSION_STRIPES = 1024;
+
+  private final DataSource dataSource;
+  private final boolean keepMaximum;
+  private final int maxUsers;
+
+  private final Cache<Long, UserHistory> histories;
+  private final AtomicLongArray versions = new AtomicLongArray(NUM_VERSION_STRIPES);
+  /** guard the changes of the cached histories and the versions of their stripe */
+  private final Object[] stripeLocks = new Object[NUM_VERSION_STRIPES];
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param dataSource pool to load histories from
+   * @param keepMaximum whether a preference may only be replaced by a higher value, like in
+   *                    {@link MySqlMaxPersistentStorage}
+   */
+  public UserHistoryCache(DataSource dataSource, boolean keepMaximum, int maxUsers) {
+    Preconditions.checkArgument(maxUsers > 0, "maxUsers must be positive");
+    this.dataSource = dataSource;
+    this.keepMaximum = keepMaximum;
+    this.maxUsers = maxUsers;
+    histories = CacheBuilder.newBuilder().maximumSize(maxUsers).build();
+    for (int stripe = 0; stripe < NUM_VERSION_STRIPES; stripe++) {
+      stripeLocks[stripe] = new Object();
+    }
+  }
+
+  /**
+   * @param candidates the items to keep, null to keep all
+   * @throws NoSuchUserException if the user has no preferences for the candidates
+   */
+  public PreferenceArray getPreferencesFromUser(long userID, FastIDSet candidates) throws TasteException {
+    UserHistory history = getHistory(userID);
+
+    int numPreferences = 0;
+    for (long itemID : history.itemIDs) {
+      if (candidates == null || candidates.contains(itemID)) {
+        numPreferences++;
+      }
+    }
+    if (numPreferences == 0) {
+      throw new NoSuchUserException(userID);
+    }
+
+    PreferenceArray preferences = new GenericUserPreferenceArray(numPreferences);
+    preferences.setUserID(0, userID);
+    int index = 0;
+    for (int n = 0; n < history.itemIDs.length; n++) {
+      if (candidates == null || candidates.contains(history.itemIDs[n])) {
+        preferences.setItemID(index, history.itemIDs[n]);
+        preferences.setValue(index, history.values[n]);
+        index++;
+      }
+    }
+    return preferences;
+  }
+
+  UserHistory getHistory(long userID) throws TasteException {
+    UserHistory history = histories.getIfPresent(userID);
+    if (history != null) {
+      hits.incrementAndGet();
+      return history;
+    }
+
+    misses.incrementAndGet();
+    int stripe = stripe(userID);
+    long version = versions.get(stripe);
+    history = load(userID);
+    synchronized (stripeLocks[stripe]) {
+      /* a concurrent write might be missing from what we loaded */
+      if (versions.get(stripe) == version) {
+        histories.put(userID, history);
+      }
+    }
+    return history;
+  }
+
+  /** applies a preference that was written to the storage */
+  public void setPreference(long userID, long itemID, float value) {
+    int stripe = stripe(userID);
+    synchronized (stripeLocks[stripe]) {
+      versions.incrementAndGet(stripe);
+      UserHistory history = histories.getIfPresent(userID);
+      if (history != null) {
+        histories.put(userID, history.with(itemID, value, keepMaximum));
+      }
+    }
+  }
+
+  /** forgets all histories, needed whenever preferences are removed from the storage */
+  public void clear() {
+    /* loads that checked their version before the increment installed their history before the invalidation */
+    for (int stripe = 0; stripe < NUM_VERSION_STRIPES; stripe++) {
+      synchronized (stripeLocks[stripe]) {
+        versions.incrementAndGet(stripe);
+      }
+    }
+    histories.invalidateAll();
+  }
+
+  private UserHistory load(long userID) throws TasteException {
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(GET_USER_HISTORY_QUERY, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setLong(1, userID);
+      rs = stmt.executeQuery();
+
+      long[] itemIDs = new long[16];
+      float[] values = new float[16];
+      int size = 0;
+      while (rs.next()) {
+        long itemID = rs.getLong(1);
+        float value = rs.getFloat(2);
+        /* the same item can occur in several time partitions */
+        if (size > 0 && itemIDs[size - 1] == itemID) {
+          values[size - 1] = Math.max(values[size - 1], value);
+          continue;
+        }
+        if (size == itemIDs.length) {
+          itemIDs = Arrays.copyOf(itemIDs, size * 2);
+          values = Arrays.copyOf(values, size * 2);
+        }
+        itemIDs[size] = itemID;
+        values[size] = value;
+        size++;
+      }
+      return new UserHistory(Arrays.copyOf(itemIDs, size), Arrays.copyOf(values, size));
+
+    } catch (SQLException e) {
+      throw new TasteException(e);
+    } finally {
+      IOUtils.quietClose(rs, stmt, conn);
+    }
+  }
+
+  private static int stripe(long userID) {
+    int hash = (int) (userID ^ (userID >>> 32));
+    return (hash & Integer.MAX_VALUE) % NUM_VERSION_STRIPES;
+  }
+
+  public int getMaxUsers() {
+    return maxUsers;
+  }
+
+  public int getSize() {
+    return (int) histories.size();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** the preferences of a user, sorted by itemID */
+  static final class UserHistory {
+
+    final long[] itemIDs;
+    final float[] values;
+
+    UserHistory(long[] itemIDs, float[] values) {
+      this.itemIDs = itemIDs;
+      this.values = values;
+    }
+
+    UserHistory with(long itemID, float value, boolean keepMaximum) {
+      int index = Arrays.binarySearch(itemIDs, itemID);
+      if (index >= 0) {
+        if (values[index] == value || (keepMaximum && values[index] >= value)) {
+          return this;
+        }
+        float[] changedValues = values.clone();
+        changedValues[index] = value;
+        return new UserHistory(itemIDs, changedValues);
+      }
+
+      int insertAt = -index - 1;
+      long[] grownItemIDs = new long[itemIDs.length + 1];
+      float[] grownValues = new float[values.length + 1];
+      System.arraycopy(itemIDs, 0, grownItemIDs, 0, insertAt);
+      System.arraycopy(values, 0, grownValues, 0, insertAt);
+      grownItemIDs[insertAt] = itemID;
+      grownValues[insertAt] = value;
+      System.arraycopy(itemIDs, insertAt, grownItemIDs, insertAt + 1, itemIDs.length - insertAt);
+      System.arraycopy(values, insertAt, grownValues, insertAt + 1, values.length - insertAt);
+      return new UserHistory(grownItemIDs, grownValues);
+    }
+  }
+}
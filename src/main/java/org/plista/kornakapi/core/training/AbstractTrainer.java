@@ -18,6 +18,8 @@ package org.plista.kornakapi.core.training;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.plista.kornakapi.core.config.RecommenderConfig;
+import org.plista.kornakapi.core.recommender.FoldingFactorizationBasedRecommender;
+import org.plista.kornakapi.core.storage.CompactDataModel;
 import org.plista.kornakapi.core.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,9 +43,16 @@ public abstract class AbstractTrainer implements Trainer {
 
     File targetFile = new File(modelDirectory, recommenderName + "-training.model");
 
-    doTrain(targetFile, storage.trainingData(), numProcessors);
+    DataModel trainingData = storage.trainingData();
+    doTrain(targetFile, trainingData, numProcessors);
 
     boolean fileRenamed = targetFile.renameTo(new File(modelDirectory, recommenderName + ".model"));
+    if (fileRenamed && recommender instanceof FoldingFactorizationBasedRecommender
+        && trainingData instanceof CompactDataModel) {
+      /* users who changed after the training data was read are folded in */
+      ((FoldingFactorizationBasedRecommender) recommender).setIncludedChanges(
+          ((CompactDataModel) trainingData).getIncludedChanges());
+    }
     
     if (log.isInfoEnabled()) {
   	  log.info("Using new model {}", fileRenamed);
@@ -18,9 +18,9 @@ package org.plista.kornakapi.core.training;
 
 import org.apache.mahout.cf.taste.impl.recommender.svd.ALSWRFactorizer;
 import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
-import org.apache.mahout.cf.taste.impl.recommender.svd.FilePersistenceStrategy;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.plista.kornakapi.core.config.FactorizationbasedRecommenderConfig;
+import org.plista.kornakapi.core.recommender.MappedPersistenceStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,7 +53,7 @@ public class FactorizationbasedInMemoryTrainer extends AbstractTrainer {
 	    	  log.info("Model trained in {} ms", estimateDuration);
 	      }
 	
-	      new FilePersistenceStrategy(targetFile).maybePersist(factorization);
+	      new MappedPersistenceStrategy(targetFile).maybePersist(factorization);
     	}
     } catch (Exception e) {
       throw new IOException(e);
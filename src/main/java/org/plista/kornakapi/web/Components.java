@@ -16,11 +16,20 @@
 package org.plista.kornakapi.web;
 
 import com.google.common.base.Preconditions;
-import org.apache.commons.dbcp.BasicDataSource;
 import org.plista.kornakapi.KornakapiRecommender;
 import org.plista.kornakapi.core.config.Configuration;
+import org.plista.kornakapi.core.recommender.EstimationExecutor;
 import org.plista.kornakapi.core.storage.CandidateCacheStorageDecorator;
+import org.plista.kornakapi.core.storage.InstrumentedDataSource;
 import org.plista.kornakapi.core.storage.MySqlStorage;
+import org.plista.kornakapi.core.storage.PreferenceWriteBuffer;
+import org.plista.kornakapi.core.storage.EmbeddedStore;
+import org.plista.kornakapi.core.storage.ItemLabelIndex;
+import org.plista.kornakapi.core.storage.LabelStatistics;
+import org.plista.kornakapi.core.storage.PreferenceDeltaLog;
+import org.plista.kornakapi.core.storage.TrainingDataExporter;
+import org.plista.kornakapi.core.storage.UserChangeTracker;
+import org.plista.kornakapi.core.storage.UserHistoryCache;
 import org.plista.kornakapi.core.training.Trainer;
 import org.plista.kornakapi.core.training.preferencechanges.DelegatingPreferenceChangeListenerForLabel;
 import org.plista.kornakapi.KornakapiRecommender;
@@ -45,14 +54,29 @@ public class Components {
 
   private final DelegatingPreferenceChangeListenerForLabel preferenceChangeListener;
   private final LinkedList<String> labels;
-  private final BasicDataSource dataSource;
+  private final InstrumentedDataSource readDataSource;
+  private final InstrumentedDataSource writeDataSource;
   private final CandidateCacheStorageDecorator domainIndependetStorage;
   private final TaskScheduler scheduler;
+  private final Map<String, EstimationExecutor> estimationExecutors;
+  private final PreferenceWriteBuffer preferenceWriteBuffer;
+  private final UserHistoryCache userHistoryCache;
+  private final TrainingDataExporter trainingDataExporter;
+  private final PreferenceDeltaLog preferenceDeltaLog;
+  private final ItemLabelIndex itemLabelIndex;
+  private final LabelStatistics labelStatistics;
+  private final EmbeddedStore embeddedStore;
+  private final UserChangeTracker userChangeTracker;
 
   private static Components INSTANCE;
 
   private Components(Configuration conf, HashMap<String,CandidateCacheStorageDecorator> storages, Map<String, KornakapiRecommender> recommenders,
-        Map<String, Trainer> trainers, TaskScheduler scheduler, DelegatingPreferenceChangeListenerForLabel preferenceChangeListener, LinkedList<String>labels, BasicDataSource dataSource, CandidateCacheStorageDecorator domainIndependetStorage) {
+        Map<String, Trainer> trainers, TaskScheduler scheduler, DelegatingPreferenceChangeListenerForLabel preferenceChangeListener, LinkedList<String>labels, InstrumentedDataSource readDataSource, InstrumentedDataSource writeDataSource,
+        CandidateCacheStorageDecorator domainIndependetStorage,
+        Map<String, EstimationExecutor> estimationExecutors, PreferenceWriteBuffer preferenceWriteBuffer,
+      UserHistoryCache userHistoryCache, TrainingDataExporter trainingDataExporter,
+      PreferenceDeltaLog preferenceDeltaLog, ItemLabelIndex itemLabelIndex, LabelStatistics labelStatistics,
+      EmbeddedStore embeddedStore, UserChangeTracker userChangeTracker) {
 
     this.conf = conf;
     this.storages = storages;
@@ -61,17 +85,36 @@ public class Components {
     this.scheduler = scheduler;
     this.preferenceChangeListener = preferenceChangeListener;
     this.labels = labels;
-    this.dataSource = dataSource;
+    this.readDataSource = readDataSource;
+    this.writeDataSource = writeDataSource;
     this.domainIndependetStorage = domainIndependetStorage;
+    this.estimationExecutors = estimationExecutors;
+    this.preferenceWriteBuffer = preferenceWriteBuffer;
+    this.userHistoryCache = userHistoryCache;
+    this.trainingDataExporter = trainingDataExporter;
+    this.preferenceDeltaLog = preferenceDeltaLog;
+    this.itemLabelIndex = itemLabelIndex;
+    this.labelStatistics = labelStatistics;
+    this.embeddedStore = embeddedStore;
+    this.userChangeTracker = userChangeTracker;
   }
 
 
   public static synchronized void init(Configuration conf, HashMap<String,CandidateCacheStorageDecorator> storages,
       Map<String, KornakapiRecommender> recommenders, Map<String, Trainer> trainers, TaskScheduler scheduler,
-      DelegatingPreferenceChangeListenerForLabel preferenceChangeListener2, LinkedList<String> labels, BasicDataSource dataSource, CandidateCacheStorageDecorator domainIndependetStorage) {
+      DelegatingPreferenceChangeListenerForLabel preferenceChangeListener2, LinkedList<String> labels, InstrumentedDataSource readDataSource, InstrumentedDataSource writeDataSource,
+        CandidateCacheStorageDecorator domainIndependetStorage,
+      Map<String, EstimationExecutor> estimationExecutors, PreferenceWriteBuffer preferenceWriteBuffer,
+      UserHistoryCache userHistoryCache, TrainingDataExporter trainingDataExporter,
+      PreferenceDeltaLog preferenceDeltaLog, ItemLabelIndex itemLabelIndex, LabelStatistics labelStatistics,
+      EmbeddedStore embeddedStore, UserChangeTracker userChangeTracker) {
 
     Preconditions.checkState(INSTANCE == null);
-    INSTANCE = new Components(conf, storages, recommenders, trainers, scheduler, preferenceChangeListener2, labels, dataSource, domainIndependetStorage);
+    INSTANCE = new Components(conf, storages, recommenders, trainers, scheduler, preferenceChangeListener2, labels, readDataSource, writeDataSource,
+        domainIndependetStorage,
+        estimationExecutors, preferenceWriteBuffer, userHistoryCache,
+        trainingDataExporter, preferenceDeltaLog, itemLabelIndex, labelStatistics, embeddedStore,
+        userChangeTracker);
   }
 
   public static Components instance() {
@@ -114,11 +157,66 @@ public class Components {
     return preferenceChangeListener;
   }
   
-  public BasicDataSource getDataSource(){
-	  return dataSource;
+  /** @return the pool for the reads of the recommenders and the candidate lookups */
+  public InstrumentedDataSource getReadDataSource() {
+    return readDataSource;
+  }
+
+  /** @return the pool for writes, imports and training exports */
+  public InstrumentedDataSource getWriteDataSource() {
+    return writeDataSource;
   }
   
   public LinkedList<String> getLabels(){
 	  return this.labels;
   }
+
+  /** @return the shared estimation executor of a factorization based recommender configuration, may be null */
+  public EstimationExecutor estimationExecutor(String factorizationbasedRecommenderName) {
+    return estimationExecutors.get(factorizationbasedRecommenderName);
+  }
+
+  public Map<String, EstimationExecutor> estimationExecutors() {
+    return estimationExecutors;
+  }
+
+  /** @return the buffer for single preference updates, null if they are written immediately */
+  public PreferenceWriteBuffer preferenceWriteBuffer() {
+    return preferenceWriteBuffer;
+  }
+
+  /** @return the cache of user histories shared by all storages, null if they are always read from the database */
+  public UserHistoryCache userHistoryCache() {
+    return userHistoryCache;
+  }
+
+  /** @return the export of training data shared by all labels, null if every label exports its own */
+  public TrainingDataExporter trainingDataExporter() {
+    return trainingDataExporter;
+  }
+
+  /** @return the log of the writes for the training snapshots, null if there are none */
+  public PreferenceDeltaLog preferenceDeltaLog() {
+    return preferenceDeltaLog;
+  }
+
+  /** @return the index of the labels of the items */
+  public ItemLabelIndex itemLabelIndex() {
+    return itemLabelIndex;
+  }
+
+  /** @return the counts of the labels maintained in memory, null if the preferences are not kept in MySQL */
+  public LabelStatistics labelStatistics() {
+    return labelStatistics;
+  }
+
+  /** @return the store that replaces MySQL, null if the preferences are kept in MySQL */
+  public EmbeddedStore embeddedStore() {
+    return embeddedStore;
+  }
+
+  /** @return the tracker of the users who changed their preferences recently */
+  public UserChangeTracker userChangeTracker() {
+    return userChangeTracker;
+  }
 }
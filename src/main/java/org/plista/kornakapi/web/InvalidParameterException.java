@@ -18,6 +18,10 @@ package org.plista.kornakapi.web;
 /** signals invalid parameters */
 public class InvalidParameterException extends RuntimeException {
 
+  public InvalidParameterException(String message) {
+    super(message);
+  }
+
   public InvalidParameterException(String message, Throwable cause) {
     super(message, cause);
   }
@@ -28,6 +28,10 @@ public class Parameters {
   public static final String BATCH_SIZE = "batchSize";
   public static final String LABEL = "label";
   public static final String Text = "text";
+  public static final String FORMAT = "format";
+  public static final String SESSION_ID = "sessionID";
+
+  public static final String FORMAT_BINARY = "binary";
   
   // Semantic Context Enhancement, Abstract Level 1 and 2
   public static final String SCE_AL1 = "sce_al1";
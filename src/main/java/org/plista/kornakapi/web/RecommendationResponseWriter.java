@@ -0,0 +1,297 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.web;
+
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * encodes recommendations into a reused per-thread byte buffer without creating intermediate strings, and writes
+ * them as JSON or, if requested via the format parameter, in a compact binary format: the number of items as a
+ * 4 byte int followed by an 8 byte itemID and a 4 byte value per item, all big-endian
+ */
+public class RecommendationResponseWriter {
+
+  /** responses smaller than this are not worth compressing */
+  static final int MIN_GZIP_SIZE = 1024;
+  /** buffers that grew beyond this size are not kept for the next request */
+  static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<ResponseBuffer> BUFFERS = new ThreadLocal<ResponseBuffer>() {
+    @Override
+    protected ResponseBuffer initialValue() {
+      return new ResponseBuffer(4096);
+    }
+  };
+
+  private RecommendationResponseWriter() {}
+
+  public static void write(HttpServletRequest request, HttpServletResponse response,
+      List<RecommendedItem> recommendedItems) throws IOException {
+
+    ResponseBuffer buffer = BUFFERS.get();
+    if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+      buffer = new ResponseBuffer(4096);
+      BUFFERS.set(buffer);
+    }
+    buffer.reset();
+
+    if (Parameters.FORMAT_BINARY.equals(request.getParameter(Parameters.FORMAT))) {
+      response.setContentType("application/octet-stream");
+      encodeBinary(recommendedItems, buffer);
+    } else {
+      response.setContentType("application/json");
+      encodeJson(recommendedItems, buffer);
+    }
+
+    /* caches in front of us must not serve a compressed body to clients that did not ask for it */
+    response.setHeader("Vary", "Accept-Encoding");
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (buffer.size() >= MIN_GZIP_SIZE && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      response.setHeader("Content-Encoding", "gzip");
+      GZIPOutputStream out = new GZIPOutputStream(response.getOutputStream(), buffer.size());
+      buffer.writeTo(out);
+      out.finish();
+    } else {
+      response.setContentLength(buffer.size());
+      buffer.writeTo(response.getOutputStream());
+    }
+  }
+
+  /**
+   * writes the recommendations for one user of a batch as a single line of JSON
+   *
+   * @param userID null for anonymous users
+   */
+  public static void writeJsonLine(OutputStream out, int index, Long userID, List<RecommendedItem> recommendedItems)
+      throws IOException {
+    ResponseBuffer buffer = BUFFERS.get();
+    buffer.reset();
+    buffer.appendAscii("{\"index\":");
+    buffer.append((long) index);
+    if (userID != null) {
+      buffer.appendAscii(",\"userID\":");
+      buffer.append(userID.longValue());
+    }
+    buffer.appendAscii(",\"recommendedItems\":");
+    encodeJson(recommendedItems, buffer);
+    buffer.appendAscii("}\n");
+    buffer.writeTo(out);
+  }
+
+  /** writes one line of JSON for a user of a batch request that missed the deadline of the request */
+  public static void writeTimedOutJsonLine(OutputStream out, int index, Long userID) throws IOException {
+    ResponseBuffer buffer = BUFFERS.get();
+    buffer.reset();
+    buffer.appendAscii("{\"index\":");
+    buffer.append((long) index);
+    if (userID != null) {
+      buffer.appendAscii(",\"userID\":");
+      buffer.append(userID.longValue());
+    }
+    buffer.appendAscii(",\"timedOut\":true}\n");
+    buffer.writeTo(out);
+  }
+
+  static void encodeJson(List<RecommendedItem> recommendedItems, ResponseBuffer buffer) {
+    buffer.append('[');
+    for (int n = 0; n < recommendedItems.size(); n++) {
+      RecommendedItem recommendedItem = recommendedItems.get(n);
+      if (n > 0) {
+        buffer.append(',');
+      }
+      buffer.appendAscii("{\"itemID\":");
+      buffer.append(recommendedItem.getItemID());
+      buffer.appendAscii(",\"value\":");
+      buffer.append(recommendedItem.getValue());
+      buffer.append('}');
+    }
+    buffer.append(']');
+  }
+
+  static void encodeBinary(List<RecommendedItem> recommendedItems, ResponseBuffer buffer) {
+    buffer.appendInt(recommendedItems.size());
+    for (RecommendedItem recommendedItem : recommendedItems) {
+      buffer.appendLong(recommendedItem.getItemID());
+      buffer.appendInt(Float.floatToIntBits(recommendedItem.getValue()));
+    }
+  }
+
+  /** a growable byte buffer that formats numbers without allocating */
+  static class ResponseBuffer {
+
+    /** float has at most 9 significant decimal digits, 7 are enough for a score */
+    private static final int SIGNIFICANT_DIGITS = 7;
+    private static final long MAX_DIGITS = 10000000L;
+
+    private byte[] bytes;
+    private int size;
+    private final byte[] digits = new byte[20];
+
+    ResponseBuffer(int capacity) {
+      bytes = new byte[capacity];
+    }
+
+    int size() {
+      return size;
+    }
+
+    int capacity() {
+      return bytes.length;
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(bytes, 0, size);
+    }
+
+    private void ensureCapacity(int additional) {
+      if (size + additional > bytes.length) {
+        byte[] grown = new byte[Math.max(bytes.length * 2, size + additional)];
+        System.arraycopy(bytes, 0, grown, 0, size);
+        bytes = grown;
+      }
+    }
+
+    void append(char c) {
+      ensureCapacity(1);
+      bytes[size++] = (byte) c;
+    }
+
+    void appendAscii(String s) {
+      ensureCapacity(s.length());
+      for (int n = 0; n < s.length(); n++) {
+        bytes[size++] = (byte) s.charAt(n);
+      }
+    }
+
+    void append(long value) {
+      if (value == Long.MIN_VALUE) {
+        appendAscii("-9223372036854775808");
+        return;
+      }
+      if (value < 0) {
+        append('-');
+        value = -value;
+      }
+      int numDigits = 0;
+      do {
+        digits[numDigits++] = (byte) ('0' + value % 10);
+        value /= 10;
+      } while (value > 0);
+      ensureCapacity(numDigits);
+      while (numDigits > 0) {
+        bytes[size++] = digits[--numDigits];
+      }
+    }
+
+    /** writes the value with 7 significant digits, in scientific notation if it is very small or large */
+    void append(float value) {
+      if (Float.isNaN(value) || Float.isInfinite(value)) {
+        /* not representable in JSON */
+        appendAscii("null");
+        return;
+      }
+      if (value == 0) {
+        appendAscii("0.0");
+        return;
+      }
+      if (value < 0) {
+        append('-');
+        value = -value;
+      }
+
+      int exponent = (int) Math.floor(Math.log10(value));
+      long significand = Math.round(value * Math.pow(10, SIGNIFICANT_DIGITS - 1 - exponent));
+      /* log10 may be off by one close to powers of ten */
+      if (significand < MAX_DIGITS / 10) {
+        exponent--;
+        significand = Math.round(value * Math.pow(10, SIGNIFICANT_DIGITS - 1 - exponent));
+      }
+      if (significand >= MAX_DIGITS) {
+        significand /= 10;
+        exponent++;
+      }
+      for (int n = SIGNIFICANT_DIGITS - 1; n >= 0; n--) {
+        digits[n] = (byte) ('0' + significand % 10);
+        significand /= 10;
+      }
+      int lastDigit = SIGNIFICANT_DIGITS - 1;
+      while (lastDigit > 0 && digits[lastDigit] == '0') {
+        lastDigit--;
+      }
+
+      ensureCapacity(SIGNIFICANT_DIGITS + 8);
+      if (exponent >= -3 && exponent < SIGNIFICANT_DIGITS) {
+        if (exponent < 0) {
+          bytes[size++] = '0';
+          bytes[size++] = '.';
+          for (int n = exponent + 1; n < 0; n++) {
+            bytes[size++] = '0';
+          }
+          for (int n = 0; n <= lastDigit; n++) {
+            bytes[size++] = digits[n];
+          }
+        } else {
+          for (int n = 0; n <= exponent; n++) {
+            bytes[size++] = digits[n];
+          }
+          bytes[size++] = '.';
+          if (lastDigit <= exponent) {
+            bytes[size++] = '0';
+          }
+          for (int n = exponent + 1; n <= lastDigit; n++) {
+            bytes[size++] = digits[n];
+          }
+        }
+      } else {
+        bytes[size++] = digits[0];
+        bytes[size++] = '.';
+        if (lastDigit == 0) {
+          bytes[size++] = '0';
+        }
+        for (int n = 1; n <= lastDigit; n++) {
+          bytes[size++] = digits[n];
+        }
+        bytes[size++] = 'E';
+        append((long) exponent);
+      }
+    }
+
+    void appendInt(int value) {
+      ensureCapacity(4);
+      bytes[size++] = (byte) (value >>> 24);
+      bytes[size++] = (byte) (value >>> 16);
+      bytes[size++] = (byte) (value >>> 8);
+      bytes[size++] = (byte) value;
+    }
+
+    void appendLong(long value) {
+      appendInt((int) (value >>> 32));
+      appendInt((int) value);
+    }
+  }
+}
@@ -15,21 +15,23 @@
 
 package org.plista.kornakapi.web.servlets;
 
-import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
-import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
-import org.apache.mahout.cf.taste.impl.recommender.svd.FilePersistenceStrategy;
-import org.apache.mahout.cf.taste.impl.recommender.svd.PersistenceStrategy;
 import org.apache.mahout.cf.taste.model.DataModel;
-import org.apache.mahout.cf.taste.recommender.CandidateItemsStrategy;
 import org.plista.kornakapi.KornakapiRecommender;
 
-import org.plista.kornakapi.core.recommender.CachingAllUnknownItemsCandidateItemsStrategy;
+import org.plista.kornakapi.core.recommender.EstimationExecutor;
 import org.plista.kornakapi.core.recommender.FoldingFactorizationBasedRecommender;
+import org.plista.kornakapi.core.recommender.factory.FFBRFactory;
 import org.plista.kornakapi.core.storage.CandidateCacheStorageDecorator;
-import org.plista.kornakapi.core.storage.MySqlMaxPersistentStorage;
-import org.plista.kornakapi.core.storage.MySqlStorage;
+import org.plista.kornakapi.core.storage.InstrumentedDataSource;
+import org.plista.kornakapi.core.storage.PreferenceWriteBuffer;
+import org.plista.kornakapi.core.storage.StorageFactory;
+import org.plista.kornakapi.core.storage.EmbeddedStore;
+import org.plista.kornakapi.core.storage.ItemLabelIndex;
+import org.plista.kornakapi.core.storage.LabelStatistics;
+import org.plista.kornakapi.core.storage.PreferenceDeltaLog;
+import org.plista.kornakapi.core.storage.UserChangeTracker;
+import org.plista.kornakapi.core.storage.UserHistoryCache;
 import org.plista.kornakapi.core.training.FactorizationbasedInMemoryTrainer;
 import org.plista.kornakapi.core.training.Trainer;
 import org.plista.kornakapi.core.training.preferencechanges.DelegatingPreferenceChangeListenerForLabel;
@@ -50,10 +52,10 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /** base class for all servlets */
@@ -74,8 +76,12 @@ public abstract class BaseServlet extends HttpServlet {
 	  getComponents().setRecommender(name, recommender);
   }
   
-  protected BasicDataSource getDataSource(){
-	  return getComponents().getDataSource();
+  protected InstrumentedDataSource getReadDataSource() {
+    return getComponents().getReadDataSource();
+  }
+
+  protected InstrumentedDataSource getWriteDataSource() {
+    return getComponents().getWriteDataSource();
   }
 
   protected KornakapiRecommender recommender(String name) {
@@ -101,6 +107,40 @@ public abstract class BaseServlet extends HttpServlet {
     return getComponents().preferenceChangeListener();
   }
 
+  protected Map<String, EstimationExecutor> estimationExecutors() {
+    return getComponents().estimationExecutors();
+  }
+
+  /** @return null if preferences are written immediately */
+  protected PreferenceWriteBuffer preferenceWriteBuffer() {
+    return getComponents().preferenceWriteBuffer();
+  }
+
+  /** @return null if user histories are always read from the database */
+  protected UserHistoryCache userHistoryCache() {
+    return getComponents().userHistoryCache();
+  }
+
+  protected PreferenceDeltaLog preferenceDeltaLog() {
+    return getComponents().preferenceDeltaLog();
+  }
+
+  protected ItemLabelIndex itemLabelIndex() {
+    return getComponents().itemLabelIndex();
+  }
+
+  protected LabelStatistics labelStatistics() {
+    return getComponents().labelStatistics();
+  }
+
+  protected EmbeddedStore embeddedStore() {
+    return getComponents().embeddedStore();
+  }
+
+  protected UserChangeTracker userChangeTracker() {
+    return getComponents().userChangeTracker();
+  }
+
   protected boolean hasParameter(HttpServletRequest request, String name) {
     return request.getParameter(name) != null;
   }
@@ -171,28 +211,17 @@ public abstract class BaseServlet extends HttpServlet {
       FactorizationbasedRecommenderConfig factorizationbasedConf =factorizationbasedConfs.get(0);
 
       String name = factorizationbasedConf.getName() +"_"+ label;
-      if(conf.getMaxPersistence()){
-      	storages().put(label, new CandidateCacheStorageDecorator(new MySqlMaxPersistentStorage(conf.getStorageConfiguration(), label,getDataSource())));
-      }else{
-    		storages().put(label,  new CandidateCacheStorageDecorator(new MySqlStorage(conf.getStorageConfiguration(), label,getDataSource())));
-
-      }
-
-      File modelFile = new File(conf.getModelDirectory(), name + ".model");
-
-      PersistenceStrategy persistence = new FilePersistenceStrategy(modelFile);
-
-      if (!modelFile.exists()) {
-        createEmptyFactorization(persistence);
-      }
+      storages().put(label, StorageFactory.createStorage(conf, label, getReadDataSource(), getWriteDataSource(),
+          getComponents().userHistoryCache(), getComponents().trainingDataExporter(),
+          getComponents().preferenceDeltaLog(), getComponents().itemLabelIndex(),
+          getComponents().labelStatistics(), getComponents().embeddedStore(),
+          getComponents().userChangeTracker(), getDomainIndependetStorage().candidateCache()));
 
       DataModel persistenData = storages().get(label).recommenderData();
-      
-      CandidateItemsStrategy allUnknownItemsStrategy =
-          new CachingAllUnknownItemsCandidateItemsStrategy(persistenData);
 
-      FoldingFactorizationBasedRecommender svdRecommender = new FoldingFactorizationBasedRecommender(persistenData,
-          allUnknownItemsStrategy, persistence, conf.getFactorizationbasedRecommenders().get(0).getNumberOfThreadsForEstimation());
+      FoldingFactorizationBasedRecommender svdRecommender = new FFBRFactory().getRecommender(conf, factorizationbasedConf,
+          persistenData, label, name, getComponents().estimationExecutor(factorizationbasedConf.getName()),
+          getComponents().userChangeTracker());
 
       setRecommender(name, svdRecommender);
       setTrainer(name, new FactorizationbasedInMemoryTrainer(factorizationbasedConf));
@@ -220,10 +249,6 @@ public abstract class BaseServlet extends HttpServlet {
           new Object[] { name, factorizationbasedConf.getNumberOfFeatures(),
               factorizationbasedConf.getNumberOfIterations() , label});
 }
-private void createEmptyFactorization(PersistenceStrategy strategy) throws IOException {
-	    strategy.maybePersist(new Factorization(new FastByIDMap<Integer>(0), new FastByIDMap<Integer>(0),
-	        new double[0][0], new double[0][0]));
-	  }
 /**
  * Method maps ids into int range
  * @param id
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.web.servlets;
+
+import com.google.common.collect.Lists;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.plista.kornakapi.KornakapiRecommender;
+import org.plista.kornakapi.core.recommender.FixedCandidatesIDRescorer;
+import org.plista.kornakapi.core.recommender.FoldingFactorizationBasedRecommender;
+import org.plista.kornakapi.web.InvalidParameterException;
+import org.plista.kornakapi.web.Parameters;
+import org.plista.kornakapi.web.RecommendationResponseWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * servlet to request recommendations for many users of a label at once. The body contains one user per line, either
+ * as userID, as userID;itemID,itemID,... to supply the history or as ;itemID,itemID,... for anonymous users. The
+ * results are streamed back as one line of JSON per user, in the order of the request. Users who could not be scored
+ * within the timeout of the estimation executor get a line that marks them as timed out.
+ */
+public class BatchRecommendServlet extends BaseServlet {
+
+  /** the response is flushed after this many users */
+  private static final int FLUSH_EVERY = 32;
+  /** keeps a single request from occupying the estimation executor for long */
+  static final int MAX_USERS = 10000;
+
+  private static final Pattern HISTORY_SEPARATOR = Pattern.compile(";");
+  private static final Pattern ITEM_ID_SEPARATOR = Pattern.compile(",");
+
+  private static final Logger log = LoggerFactory.getLogger(BatchRecommendServlet.class);
+
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+    int howMany = getParameterAsInt(request, Parameters.HOW_MANY, Parameters.DEFAULT_HOW_MANY);
+    String label = getParameter(request, Parameters.LABEL, true);
+    String recommenderName = getParameter(request, Parameters.RECOMMENDER, true) + "_" + label;
+
+    if (!containsTrainer(recommenderName)) {
+      try {
+        createRecommenderForLabel(label);
+      } catch (TasteException e) {
+        throw new ServletException(e);
+      }
+    }
+
+    KornakapiRecommender recommender = recommender(recommenderName);
+    if (!(recommender instanceof FoldingFactorizationBasedRecommender)) {
+      throw new InvalidParameterException("Recommender [" + recommenderName + "] does not support batch requests");
+    }
+
+    List<Long> userIDs = Lists.newArrayList();
+    List<long[]> itemIDs = Lists.newArrayList();
+    parseUsers(request.getReader(), userIDs, itemIDs);
+
+    final long[] userIDsArray = new long[userIDs.size()];
+    for (int n = 0; n < userIDsArray.length; n++) {
+      userIDsArray[n] = userIDs.get(n);
+    }
+
+    FixedCandidatesIDRescorer rescorer = new FixedCandidatesIDRescorer(storages().get(label).getCandidates(label));
+
+    response.setContentType("application/x-ndjson");
+    final OutputStream out = response.getOutputStream();
+
+    long start = System.currentTimeMillis();
+    try {
+      ((FoldingFactorizationBasedRecommender) recommender).recommend(userIDsArray,
+          itemIDs.toArray(new long[itemIDs.size()][]), howMany, rescorer,
+          new FoldingFactorizationBasedRecommender.BatchRecommendationListener() {
+            @Override
+            public void recommended(int index, List<RecommendedItem> recommendedItems) throws IOException {
+              RecommendationResponseWriter.writeJsonLine(out, index, userID(index), recommendedItems);
+              maybeFlush(index);
+            }
+
+            @Override
+            public void timedOut(int index) throws IOException {
+              RecommendationResponseWriter.writeTimedOutJsonLine(out, index, userID(index));
+              maybeFlush(index);
+            }
+
+            private Long userID(int index) {
+              long userID = userIDsArray[index];
+              return userID == FoldingFactorizationBasedRecommender.ANONYMOUS ? null : userID;
+            }
+
+            private void maybeFlush(int index) throws IOException {
+              if ((index + 1) % FLUSH_EVERY == 0) {
+                out.flush();
+              }
+            }
+          });
+    } catch (TasteException e) {
+      throw new ServletException(e);
+    }
+    out.flush();
+
+    if (log.isInfoEnabled()) {
+      log.info("{} batch recommendations for label {} in {} ms",
+          new Object[] { userIDs.size(), label, System.currentTimeMillis() - start });
+    }
+  }
+
+  private void parseUsers(BufferedReader reader, List<Long> userIDs, List<long[]> itemIDs) throws IOException {
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      if (userIDs.size() == MAX_USERS) {
+        throw new InvalidParameterException("At most " + MAX_USERS + " users per request are supported");
+      }
+      try {
+        String[] tokens = HISTORY_SEPARATOR.split(line, 2);
+        userIDs.add(tokens[0].isEmpty() ? FoldingFactorizationBasedRecommender.ANONYMOUS : Long.parseLong(tokens[0]));
+        if (tokens.length > 1 && !tokens[1].isEmpty()) {
+          String[] itemIDTokens = ITEM_ID_SEPARATOR.split(tokens[1]);
+          long[] history = new long[itemIDTokens.length];
+          for (int n = 0; n < history.length; n++) {
+            history[n] = Long.parseLong(itemIDTokens[n].trim());
+          }
+          itemIDs.add(history);
+        } else if (tokens[0].isEmpty()) {
+          throw new InvalidParameterException("Anonymous user without items in line " + lineNumber);
+        } else {
+          itemIDs.add(null);
+        }
+      } catch (NumberFormatException e) {
+        throw new InvalidParameterException("Unable to parse line " + lineNumber, e);
+      }
+    }
+  }
+}
@@ -28,19 +28,30 @@ import org.apache.mahout.cf.taste.recommender.CandidateItemsStrategy;
 import org.plista.kornakapi.KornakapiRecommender;
 import org.plista.kornakapi.core.config.RecommenderConfig;
 import org.plista.kornakapi.core.recommender.CachingAllUnknownItemsCandidateItemsStrategy;
+import org.plista.kornakapi.core.recommender.EstimationExecutor;
 import org.plista.kornakapi.core.recommender.FoldingFactorizationBasedRecommender;
 import org.plista.kornakapi.core.recommender.LDATopicRecommender;
 import org.plista.kornakapi.core.config.Configuration;
 import org.plista.kornakapi.core.config.FactorizationbasedRecommenderConfig;
 import org.plista.kornakapi.core.config.ItembasedRecommenderConfig;
 import org.plista.kornakapi.core.config.LDARecommenderConfig;
+import org.plista.kornakapi.core.config.StorageConfiguration;
 import org.plista.kornakapi.core.recommender.ItemSimilarityBasedRecommender;
 import org.plista.kornakapi.core.recommender.factory.FFBRFactory;
 import org.plista.kornakapi.core.recommender.factory.ISBRFactory;
+import org.plista.kornakapi.core.storage.CandidateCache;
 import org.plista.kornakapi.core.storage.CandidateCacheStorageDecorator;
-import org.plista.kornakapi.core.storage.MySqlMaxPersistentStorage;
-import org.plista.kornakapi.core.storage.MySqlStorage;
+import org.plista.kornakapi.core.storage.InstrumentedDataSource;
+import org.plista.kornakapi.core.storage.PreferenceWriteBuffer;
 import org.plista.kornakapi.core.storage.SemanticMySqlStorage;
+import org.plista.kornakapi.core.storage.EmbeddedStore;
+import org.plista.kornakapi.core.storage.ItemLabelIndex;
+import org.plista.kornakapi.core.storage.LabelStatistics;
+import org.plista.kornakapi.core.storage.PreferenceDeltaLog;
+import org.plista.kornakapi.core.storage.StorageFactory;
+import org.plista.kornakapi.core.storage.TrainingDataExporter;
+import org.plista.kornakapi.core.storage.UserChangeTracker;
+import org.plista.kornakapi.core.storage.UserHistoryCache;
 import org.plista.kornakapi.core.training.AbstractTrainer;
 import org.plista.kornakapi.core.training.FactorizationbasedInMemoryTrainer;
 import org.plista.kornakapi.core.training.LDATrainer;
@@ -78,8 +89,18 @@ public class BigBangServletContextListener implements ServletContextListener {
   HashMap<String, CandidateCacheStorageDecorator> storages;
   LinkedList<String> labels;
   Configuration conf;
-  BasicDataSource dataSource;
+  InstrumentedDataSource readDataSource;
+  InstrumentedDataSource writeDataSource;
   CandidateCacheStorageDecorator domainIndependetStorage;
+  Map<String, EstimationExecutor> estimationExecutors;
+  PreferenceWriteBuffer preferenceWriteBuffer;
+  UserHistoryCache userHistoryCache;
+  TrainingDataExporter trainingDataExporter;
+  PreferenceDeltaLog preferenceDeltaLog;
+  ItemLabelIndex itemLabelIndex;
+  LabelStatistics labelStatistics;
+  EmbeddedStore embeddedStore;
+  UserChangeTracker userChangeTracker;
   
 
 
@@ -100,21 +121,57 @@ public class BigBangServletContextListener implements ServletContextListener {
 	      domainIndependetStorage = null;
 	      labels = null;
 	
-	      dataSource = new BasicDataSource();
+	      readDataSource = new InstrumentedDataSource("read");
+	      writeDataSource = new InstrumentedDataSource("write");
 	      storages = new HashMap<String, CandidateCacheStorageDecorator>();
-	      if(conf.getMaxPersistence()){
-	    	  domainIndependetStorage = new CandidateCacheStorageDecorator( new MySqlMaxPersistentStorage(conf.getStorageConfiguration(), "",dataSource));
-	          labels = domainIndependetStorage.getAllLabels();
-	    	  for(String label: labels){
-	    		  storages.put(label, new CandidateCacheStorageDecorator(new MySqlMaxPersistentStorage(conf.getStorageConfiguration(), label,dataSource)));
-	    	  }
-	      }else{
-	    	  domainIndependetStorage = new CandidateCacheStorageDecorator( new MySqlStorage(conf.getStorageConfiguration(), "",dataSource));
-	          labels = domainIndependetStorage.getAllLabels();
-	    	  for(String label: labels){
-	    		  storages.put(label,  new CandidateCacheStorageDecorator(new MySqlStorage(conf.getStorageConfiguration(), label,dataSource)));
-	    	  }
-	      }   
+	      StorageConfiguration storageConf = conf.getStorageConfiguration();
+	      if (storageConf.getEmbeddedStorageDirectory() != null) {
+	        embeddedStore = new EmbeddedStore(new File(storageConf.getEmbeddedStorageDirectory()),
+	            conf.getMaxPersistence(), storageConf.getTimeWindow(),
+	            storageConf.getEmbeddedStorageCompactionIntervalMinutes() * 60000L);
+	      }
+	      userChangeTracker = new UserChangeTracker(storageConf.getUserChangeTrackerSize());
+	      if (embeddedStore != null) {
+	        embeddedStore.setUserChangeTracker(userChangeTracker);
+	      }
+	      boolean mySql = embeddedStore == null;
+	      if (mySql && storageConf.getUserHistoryCacheSize() > 0) {
+	        userHistoryCache = new UserHistoryCache(readDataSource, conf.getMaxPersistence(),
+	            storageConf.getUserHistoryCacheSize());
+	      }
+	      if (mySql && storageConf.getTrainingExportWindowSeconds() > 0) {
+	        trainingDataExporter = new TrainingDataExporter(writeDataSource,
+	            storageConf.getTrainingExportWindowSeconds() * 1000L, userChangeTracker);
+	      }
+	      if (mySql && storageConf.getTrainingSnapshotDirectory() != null) {
+	        File snapshotDirectory = new File(storageConf.getTrainingSnapshotDirectory());
+	        Preconditions.checkState(snapshotDirectory.isDirectory() || snapshotDirectory.mkdirs(),
+	            "unable to create directory for training snapshots " + snapshotDirectory);
+	        preferenceDeltaLog = new PreferenceDeltaLog(storageConf.getTrainingSnapshotDeltaLogCapacity());
+	      }
+	      itemLabelIndex = new ItemLabelIndex(storageConf.getUnlabeledItemCacheSize(),
+	          storageConf.getUnlabeledItemCacheExpireAfterSeconds());
+	      if (mySql) {
+	        labelStatistics = new LabelStatistics(writeDataSource, itemLabelIndex,
+	            storageConf.getLabelStatisticsReconcileMinutes() * 60000L);
+	      }
+	      /* one cache, so that candidates modified through any storage are seen by all of them */
+	      CandidateCache candidateCache = new CandidateCache(storageConf);
+	      domainIndependetStorage = StorageFactory.createStorage(conf, "", readDataSource, writeDataSource,
+	          userHistoryCache, trainingDataExporter, preferenceDeltaLog, itemLabelIndex, labelStatistics,
+	          embeddedStore, userChangeTracker, candidateCache);
+	      labels = domainIndependetStorage.getAllLabels();
+	      for(String label: labels){
+	        storages.put(label, StorageFactory.createStorage(conf, label, readDataSource, writeDataSource,
+	            userHistoryCache, trainingDataExporter, preferenceDeltaLog, itemLabelIndex, labelStatistics,
+	            embeddedStore, userChangeTracker, candidateCache));
+	        itemLabelIndex.addAll(label, storages.get(label).getCandidates(label));
+	      }
+	      if (storageConf.getWriteBehindCapacity() > 0) {
+	        preferenceWriteBuffer = new PreferenceWriteBuffer(domainIndependetStorage, conf.getMaxPersistence(),
+	            storageConf.getWriteBehindCapacity(), storageConf.getWriteBehindFlushSize(),
+	            storageConf.getWriteBehindFlushIntervalMillis(), storageConf.getWriteBehindMaxBlockMillis());
+	      }
 		  persitentDatas = new HashMap<String, DataModel>();
 		  for(String label: labels){
 		      persitentDatas.put(label, storages.get(label).recommenderData());
@@ -129,6 +186,7 @@ public class BigBangServletContextListener implements ServletContextListener {
 	
 	      recommenders = Maps.newHashMap();
 	      trainers = Maps.newHashMap();
+	      estimationExecutors = Maps.newHashMap();
 	
 	      preferenceChangeListener = new DelegatingPreferenceChangeListenerForLabel();
 	      
@@ -161,9 +219,14 @@ public class BigBangServletContextListener implements ServletContextListener {
       log.info("Setup FactorizationBasedRecommders");
       FFBRFactory ffbrFactory = new FFBRFactory();
       for (FactorizationbasedRecommenderConfig factorizationbasedConf : conf.getFactorizationbasedRecommenders()) {
+    	  EstimationExecutor estimationExecutor = FFBRFactory.createEstimationExecutor(factorizationbasedConf);
+    	  if (estimationExecutor != null) {
+    	    estimationExecutors.put(factorizationbasedConf.getName(), estimationExecutor);
+    	  }
     	  for(String label: labels){
     	  	String name = factorizationbasedConf.getName() +"_"+ label;
-    	    FoldingFactorizationBasedRecommender svdRecommender = ffbrFactory.getRecommender(conf, factorizationbasedConf, persitentDatas.get(label), label, name);
+    	    FoldingFactorizationBasedRecommender svdRecommender = ffbrFactory.getRecommender(conf, factorizationbasedConf, persitentDatas.get(label), label, name,
+    	        estimationExecutor, userChangeTracker);
     	    putRecommender(svdRecommender,  name);
     	    putTrainer(new FactorizationbasedInMemoryTrainer(factorizationbasedConf), factorizationbasedConf, name, label);
 	        log.info("Created FactorizationBasedRecommender [{}] using [{}] features and [{}] iterations",
@@ -172,19 +235,24 @@ public class BigBangServletContextListener implements ServletContextListener {
     	  }
   
       }
-      log.info("Setup LDARecommender");
-      String name = "lda";
-      LDARecommenderConfig ldaconf = (LDARecommenderConfig) conf.getLDARecommender();
-	  BasicDataSource dataSource = new BasicDataSource();
-	  CandidateCacheStorageDecorator dec =new CandidateCacheStorageDecorator(new SemanticMySqlStorage(conf.getStorageConfiguration(), name,dataSource)); 
-	  DataModel dmodel = dec.recommenderData();
-	  CandidateItemsStrategy allUnknownItemsStrategy =
-		           new CachingAllUnknownItemsCandidateItemsStrategy(dmodel);
-	  LDATopicRecommender recommender = new LDATopicRecommender(dmodel, allUnknownItemsStrategy , ldaconf);
-	  putRecommender(recommender,  name);
-	  putTrainer(new LDATrainer(conf.getLDARecommender()), conf.getLDARecommender(), name, "doesNotMatter");
-      log.info("Created LDARecommender");
-      storages.put(name,  dec);
+      if (embeddedStore == null) {
+        log.info("Setup LDARecommender");
+        String name = "lda";
+        LDARecommenderConfig ldaconf = (LDARecommenderConfig) conf.getLDARecommender();
+        BasicDataSource dataSource = new BasicDataSource();
+        CandidateCacheStorageDecorator dec =new CandidateCacheStorageDecorator(new SemanticMySqlStorage(conf.getStorageConfiguration(), name,dataSource), conf.getStorageConfiguration()); 
+        DataModel dmodel = dec.recommenderData();
+        CandidateItemsStrategy allUnknownItemsStrategy =
+                     new CachingAllUnknownItemsCandidateItemsStrategy(dmodel);
+        LDATopicRecommender recommender = new LDATopicRecommender(dmodel, allUnknownItemsStrategy , ldaconf);
+        putRecommender(recommender,  name);
+        putTrainer(new LDATrainer(conf.getLDARecommender()), conf.getLDARecommender(), name, "doesNotMatter");
+        log.info("Created LDARecommender");
+        storages.put(name,  dec);
+      } else {
+        /* the semantic storage has its own tables in MySQL */
+        log.info("Skipping LDARecommender, it needs MySQL");
+      }
 	  
 	  
       
@@ -230,7 +298,11 @@ public class BigBangServletContextListener implements ServletContextListener {
       
       
       log.info("Initialize Components");
-      Components.init(conf, storages, recommenders, trainers, scheduler, preferenceChangeListener, labels, dataSource, domainIndependetStorage);
+      Components.init(conf, storages, recommenders, trainers, scheduler, preferenceChangeListener, labels, readDataSource, writeDataSource,
+          domainIndependetStorage,
+          estimationExecutors, preferenceWriteBuffer, userHistoryCache,
+          trainingDataExporter, preferenceDeltaLog, itemLabelIndex, labelStatistics, embeddedStore,
+          userChangeTracker);
       log.info("Start Scheduler");
       scheduler.start();
 
@@ -243,12 +315,23 @@ public class BigBangServletContextListener implements ServletContextListener {
   @Override
   public void contextDestroyed(ServletContextEvent event) {
     Components components = Components.instance();
+    /* pending preferences must be written before the storages are closed */
+    if (components.preferenceWriteBuffer() != null) {
+      Closeables.closeQuietly(components.preferenceWriteBuffer());
+    }
     LinkedList<String> labels = components.getLabels();
     for(String label: labels){
         Closeables.closeQuietly(components.storages().get(label));
     }
     Closeables.closeQuietly(components.scheduler());
+    Closeables.closeQuietly(components.labelStatistics());
+    for (EstimationExecutor estimationExecutor : components.estimationExecutors().values()) {
+        Closeables.closeQuietly(estimationExecutor);
+    }
     Closeables.closeQuietly(components.getDomainIndependetStorage());
+    if (components.embeddedStore() != null) {
+      Closeables.closeQuietly(components.embeddedStore());
+    }
   }
   private void putRecommender(KornakapiRecommender recommender, String recommenderName) {
       recommenders.put(recommenderName, recommender);
@@ -25,9 +25,11 @@ import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.plista.kornakapi.KornakapiRecommender;
 import org.plista.kornakapi.core.config.LDARecommenderConfig;
 import org.plista.kornakapi.core.recommender.FixedCandidatesIDRescorer;
+import org.plista.kornakapi.core.recommender.FoldingFactorizationBasedRecommender;
 import org.plista.kornakapi.core.storage.CandidateCacheStorageDecorator;
 import org.plista.kornakapi.core.training.DocumentTopicInferenceTrainer;
 import org.plista.kornakapi.web.Parameters;
+import org.plista.kornakapi.web.RecommendationResponseWriter;
 import org.quartz.SchedulerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +39,6 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.List;
 
 /** servlet to request recommendations */
@@ -73,22 +74,7 @@ public class RecommendServlet extends BaseServlet {
 			}
   
 	    
-	      PrintWriter writer = response.getWriter();
-
-	      response.setContentType("application/json");
-
-	      String separator = "";
-	      writer.write("[");
-	      for (RecommendedItem recommendedItem : recommendedItems) {
-	        writer.write(separator);
-	        writer.write("{\"itemID\":");
-	        writer.write(String.valueOf(recommendedItem.getItemID()));
-	        writer.write(",\"value\":");
-	        writer.write(String.valueOf(recommendedItem.getValue()));
-	        writer.write("}");
-	        separator = ",";
-	      }
-	      writer.write("]");
+	      RecommendationResponseWriter.write(request, response, recommendedItems);
 	    } catch (NoSuchUserException e) {
 		    if (log.isInfoEnabled()) {
 		        log.info("Unkown User: {}", e.getMessage());
@@ -150,7 +136,12 @@ public class RecommendServlet extends BaseServlet {
         itemIDs = getParameterAsLongArray(request, Parameters.ITEM_IDS);
 
         long start = System.currentTimeMillis();
-        recommendedItems = recommender.recommendToAnonymous(itemIDs, howMany, rescorer);
+        if (hasParameter(request, Parameters.SESSION_ID) && recommender instanceof FoldingFactorizationBasedRecommender) {
+          recommendedItems = ((FoldingFactorizationBasedRecommender) recommender).recommendToAnonymous(
+              getParameter(request, Parameters.SESSION_ID, true), itemIDs, howMany, rescorer);
+        } else {
+          recommendedItems = recommender.recommendToAnonymous(itemIDs, howMany, rescorer);
+        }
         long duration = System.currentTimeMillis() - start;
         
         if (log.isInfoEnabled()) {
@@ -162,22 +153,7 @@ public class RecommendServlet extends BaseServlet {
       }
 
 
-      PrintWriter writer = response.getWriter();
-
-      response.setContentType("application/json");
-
-      String separator = "";
-      writer.write("[");
-      for (RecommendedItem recommendedItem : recommendedItems) {
-        writer.write(separator);
-        writer.write("{\"itemID\":");
-        writer.write(String.valueOf(recommendedItem.getItemID()));
-        writer.write(",\"value\":");
-        writer.write(String.valueOf(recommendedItem.getValue()));
-        writer.write("}");
-        separator = ",";
-      }
-      writer.write("]");
+      RecommendationResponseWriter.write(request, response, recommendedItems);
 
     } catch (NoSuchUserException e) {
 	    if (log.isInfoEnabled()) {
@@ -16,6 +16,7 @@
 package org.plista.kornakapi.web.servlets;
 
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.plista.kornakapi.core.storage.PreferenceWriteBuffer;
 import org.plista.kornakapi.web.MissingParameterException;
 import org.plista.kornakapi.web.Parameters;
 import org.slf4j.Logger;
@@ -58,7 +59,12 @@ public class SetPreferenceServlet extends BaseServlet {
             log.debug("Fetched label {} from db for item {} ", label, itemID);
          }
     }
-    this.getDomainIndependetStorage().setPreference(userID, itemID, value);  
+    PreferenceWriteBuffer preferenceWriteBuffer = preferenceWriteBuffer();
+    if (preferenceWriteBuffer != null) {
+      preferenceWriteBuffer.setPreference(userID, itemID, value);
+    } else {
+      this.getDomainIndependetStorage().setPreference(userID, itemID, value);
+    }
     try{
     	preferenceChangeListener().notifyOfPreferenceChange(label);
     }catch(NullPointerException e){
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.web.servlets;
+
+import com.google.common.cache.CacheStats;
+
+import org.plista.kornakapi.core.recommender.EstimationExecutor;
+import org.plista.kornakapi.core.storage.CandidateCache;
+import org.plista.kornakapi.core.storage.CandidateCacheStorageDecorator;
+import org.plista.kornakapi.core.storage.InstrumentedDataSource;
+import org.plista.kornakapi.core.storage.PreferenceWriteBuffer;
+import org.plista.kornakapi.core.storage.EmbeddedStore;
+import org.plista.kornakapi.core.storage.ItemLabelIndex;
+import org.plista.kornakapi.core.storage.LabelStatistics;
+import org.plista.kornakapi.core.storage.PreferenceDeltaLog;
+import org.plista.kornakapi.core.storage.UserChangeTracker;
+import org.plista.kornakapi.core.storage.UserHistoryCache;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/** servlet to export runtime statistics of the shared components as JSON */
+public class StatsServlet extends BaseServlet {
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+    PrintWriter writer = response.getWriter();
+
+    response.setContentType("application/json");
+
+    writer.write("{\"estimationExecutors\":{");
+    String separator = "";
+    for (EstimationExecutor executor : estimationExecutors().values()) {
+      writer.write(separator);
+      writeName(writer, executor.getName());
+      writer.write(":{");
+      writeField(writer, "threads", executor.getNumThreads(), "");
+      writeField(writer, "activeThreads", executor.getActiveThreads(), ",");
+      writeField(writer, "queueDepth", executor.getQueueDepth(), ",");
+      writeField(writer, "submittedTasks", executor.getSubmittedTasks(), ",");
+      writeField(writer, "rejectedTasks", executor.getRejectedTasks(), ",");
+      writeField(writer, "timedOutTasks", executor.getTimedOutTasks(), ",");
+      writer.write("}");
+      separator = ",";
+    }
+    /* the storages of the labels share one cache, only storages with a cache of their own are listed separately */
+    CandidateCache sharedCache = getDomainIndependetStorage().candidateCache();
+    writer.write("},\"candidateCaches\":{\"shared\":{");
+    writeCacheStats(writer, sharedCache);
+    writer.write("}");
+    for (Map.Entry<String, CandidateCacheStorageDecorator> entry : storages().entrySet()) {
+      CandidateCache cache = entry.getValue().candidateCache();
+      if (cache != sharedCache) {
+        writer.write(",");
+        writeName(writer, entry.getKey());
+        writer.write(":{");
+        writeCacheStats(writer, cache);
+        writer.write("}");
+      }
+    }
+    writer.write("},\"connectionPools\":{");
+    writePoolStats(writer, getReadDataSource(), "");
+    writePoolStats(writer, getWriteDataSource(), ",");
+    writer.write("}");
+    UserHistoryCache userHistoryCache = userHistoryCache();
+    if (userHistoryCache != null) {
+      writer.write(",\"userHistoryCache\":{");
+      writeField(writer, "maxUsers", userHistoryCache.getMaxUsers(), "");
+      writeField(writer, "size", userHistoryCache.getSize(), ",");
+      writeField(writer, "hits", userHistoryCache.getHits(), ",");
+      writeField(writer, "misses", userHistoryCache.getMisses(), ",");
+      writer.write("}");
+    }
+    ItemLabelIndex itemLabelIndex = itemLabelIndex();
+    writer.write(",\"itemLabelIndex\":{");
+    writeField(writer, "size", itemLabelIndex.getSize(), "");
+    writeField(writer, "unlabeledSize", itemLabelIndex.getUnlabeledSize(), ",");
+    writeField(writer, "hits", itemLabelIndex.getHits(), ",");
+    writeField(writer, "unlabeledHits", itemLabelIndex.getUnlabeledHits(), ",");
+    writeField(writer, "misses", itemLabelIndex.getMisses(), ",");
+    writer.write("}");
+    LabelStatistics labelStatistics = labelStatistics();
+    if (labelStatistics != null) {
+      writer.write(",\"labelStatistics\":{");
+      writeField(writer, "reconciliations", labelStatistics.getReconciliations(), "");
+      writeField(writer, "failedReconciliations", labelStatistics.getFailedReconciliations(), ",");
+      writeField(writer, "lastReconcileMillis", labelStatistics.getLastReconcileMillis(), ",");
+      writer.write("}");
+    }
+    EmbeddedStore embeddedStore = embeddedStore();
+    if (embeddedStore != null) {
+      writer.write(",\"embeddedStorage\":{");
+      writeField(writer, "preferences", embeddedStore.getNumPreferences(), "");
+      writeField(writer, "candidates", embeddedStore.getNumCandidates(), ",");
+      writeField(writer, "logRecords", embeddedStore.getLogRecords(), ",");
+      writeField(writer, "compactions", embeddedStore.getCompactions(), ",");
+      writeField(writer, "lastCompactionMillis", embeddedStore.getLastCompactionMillis(), ",");
+      writer.write("}");
+    }
+    UserChangeTracker userChangeTracker = userChangeTracker();
+    if (userChangeTracker != null) {
+      writer.write(",\"userChangeTracker\":{");
+      writeField(writer, "maxUsers", userChangeTracker.getMaxUsers(), "");
+      writeField(writer, "size", userChangeTracker.getSize(), ",");
+      writeField(writer, "changes", userChangeTracker.currentSequence(), ",");
+      writer.write("}");
+    }
+    PreferenceDeltaLog preferenceDeltaLog = preferenceDeltaLog();
+    if (preferenceDeltaLog != null) {
+      writer.write(",\"preferenceDeltaLog\":{");
+      writeField(writer, "capacity", preferenceDeltaLog.getCapacity(), "");
+      writeField(writer, "size", preferenceDeltaLog.getSize(), ",");
+      writeField(writer, "discarded", preferenceDeltaLog.getDiscarded(), ",");
+      writeField(writer, "resets", preferenceDeltaLog.getResets(), ",");
+      writer.write("}");
+    }
+    PreferenceWriteBuffer preferenceWriteBuffer = preferenceWriteBuffer();
+    if (preferenceWriteBuffer != null) {
+      writer.write(",\"preferenceWriteBuffer\":{");
+      writeField(writer, "capacity", preferenceWriteBuffer.getCapacity(), "");
+      writeField(writer, "queueDepth", preferenceWriteBuffer.getQueueDepth(), ",");
+      writeField(writer, "bufferedPreferences", preferenceWriteBuffer.getBufferedPreferences(), ",");
+      writeField(writer, "coalescedPreferences", preferenceWriteBuffer.getCoalescedPreferences(), ",");
+      writeField(writer, "writtenThroughPreferences", preferenceWriteBuffer.getWrittenThroughPreferences(), ",");
+      writeField(writer, "flushedPreferences", preferenceWriteBuffer.getFlushedPreferences(), ",");
+      writeField(writer, "failedPreferences", preferenceWriteBuffer.getFailedPreferences(), ",");
+      writeField(writer, "droppedPreferences", preferenceWriteBuffer.getDroppedPreferences(), ",");
+      writeField(writer, "flushes", preferenceWriteBuffer.getFlushes(), ",");
+      writeField(writer, "totalFlushMillis", preferenceWriteBuffer.getTotalFlushMillis(), ",");
+      writeField(writer, "lastFlushMillis", preferenceWriteBuffer.getLastFlushMillis(), ",");
+      writeField(writer, "maxFlushMillis", preferenceWriteBuffer.getMaxFlushMillis(), ",");
+      writer.write("}");
+    }
+    writer.write("}");
+  }
+
+  private void writeCacheStats(PrintWriter writer, CandidateCache cache) {
+    CacheStats stats = cache.stats();
+    writeField(writer, "size", cache.size(), "");
+    writeField(writer, "hits", stats.hitCount(), ",");
+    writeField(writer, "misses", stats.missCount(), ",");
+    writeField(writer, "loads", stats.loadCount(), ",");
+    writeField(writer, "loadExceptions", stats.loadExceptionCount(), ",");
+    writeField(writer, "totalLoadTimeMillis", stats.totalLoadTime() / 1000000, ",");
+    writeField(writer, "evictions", stats.evictionCount(), ",");
+  }
+
+  private void writePoolStats(PrintWriter writer, InstrumentedDataSource pool, String separator) {
+    writer.write(separator);
+    writeName(writer, pool.getName());
+    writer.write(":{");
+    writeField(writer, "maxActive", pool.getMaxActive(), "");
+    writeField(writer, "active", pool.getNumActive(), ",");
+    writeField(writer, "idle", pool.getNumIdle(), ",");
+    writeField(writer, "borrows", pool.getBorrows(), ",");
+    writeField(writer, "borrowTimeouts", pool.getBorrowTimeouts(), ",");
+    writeField(writer, "totalWaitMillis", pool.getTotalBorrowWaitMillis(), ",");
+    writeField(writer, "maxWaitMillis", pool.getMaxBorrowWaitMillis(), ",");
+    writer.write("}");
+  }
+
+  private void writeField(PrintWriter writer, String name, long value, String separator) {
+    writer.write(separator);
+    writeName(writer, name);
+    writer.write(":");
+    writer.write(String.valueOf(value));
+  }
+
+  /** writes a name as a JSON string, labels and configured names may contain quotes or control characters */
+  private void writeName(PrintWriter writer, String name) {
+    writer.write('"');
+    for (int n = 0; n < name.length(); n++) {
+      char c = name.charAt(n);
+      switch (c) {
+        case '"':
+          writer.write("\\\"");
+          break;
+        case '\\':
+          writer.write("\\\\");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            writer.write(String.format("\\u%04x", (int) c));
+          } else {
+            writer.write(c);
+          }
+      }
+    }
+    writer.write('"');
+  }
+}
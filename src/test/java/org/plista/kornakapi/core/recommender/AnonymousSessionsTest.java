@@ -0,0 +1,95 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AnonymousSessionsTest {
+
+  @Test
+  public void extendsCachedPrefixes() throws Exception {
+    FoldingFactorization foldingFactorization = foldingFactorization();
+    AnonymousSessions sessions = new AnonymousSessions(foldingFactorization, 100);
+
+    /* item 99 is unknown */
+    long[] itemIDs = { 3, 1, 99, 4, 2 };
+    for (int length = 1; length <= itemIDs.length; length++) {
+      long[] prefix = Arrays.copyOf(itemIDs, length);
+      assertArrayEquals(foldingFactorization.foldInAnonymousUser(prefix), sessions.foldIn(null, prefix), 1e-9);
+    }
+    /* every request but the first one extends the previous one */
+    assertEquals(itemIDs.length - 1, sessions.stats().hitCount());
+
+    long[] otherItemIDs = { 2, 4 };
+    assertArrayEquals(foldingFactorization.foldInAnonymousUser(otherItemIDs), sessions.foldIn(null, otherItemIDs),
+        1e-9);
+  }
+
+  @Test
+  public void sessionToken() throws Exception {
+    FoldingFactorization foldingFactorization = foldingFactorization();
+    AnonymousSessions sessions = new AnonymousSessions(foldingFactorization, 100);
+
+    sessions.foldIn("session", new long[] { 1 });
+    long[] itemIDs = { 1, 2, 3 };
+    assertArrayEquals(foldingFactorization.foldInAnonymousUser(itemIDs), sessions.foldIn("session", itemIDs), 1e-9);
+    assertEquals(1, sessions.stats().hitCount());
+
+    /* a session that starts over is folded in from scratch */
+    long[] restartedItemIDs = { 4 };
+    assertArrayEquals(foldingFactorization.foldInAnonymousUser(restartedItemIDs),
+        sessions.foldIn("session", restartedItemIDs), 1e-9);
+    assertEquals(1, sessions.size());
+  }
+
+  @Test
+  public void batchRowsAreNotCached() throws Exception {
+    FoldingFactorization foldingFactorization = foldingFactorization();
+    AnonymousSessions sessions = new AnonymousSessions(foldingFactorization, 100);
+
+    sessions.foldIn(null, new long[] { 1 });
+    long[] itemIDs = { 1, 2 };
+    assertArrayEquals(foldingFactorization.foldInAnonymousUser(itemIDs), sessions.foldInWithoutCaching(itemIDs), 1e-9);
+    /* the cached prefix is used, but the row does not take the place of a session */
+    assertEquals(1, sessions.stats().hitCount());
+    assertEquals(1, sessions.size());
+  }
+
+  @Test(expected = NoSuchItemException.class)
+  public void unknownItems() throws Exception {
+    new AnonymousSessions(foldingFactorization(), 100).foldIn(null, new long[] { 98, 99 });
+  }
+
+  private static FoldingFactorization foldingFactorization() {
+    FastByIDMap<Integer> userIDMapping = new FastByIDMap<Integer>();
+    userIDMapping.put(1, 0);
+    FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>();
+    for (int item = 1; item <= 4; item++) {
+      itemIDMapping.put(item, item - 1);
+    }
+    double[][] userFeatures = { { 1, 1, 1 } };
+    double[][] itemFeatures = { { 1, -2, 0.5 }, { 0, 1, 3 }, { 2, 2, -1 }, { -1, 0, 4 } };
+    return new FoldingFactorization(new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures));
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ArrayTopItemsTest {
+
+  @Test
+  public void batchMatchesSingleUsers() {
+    int numItems = 1000;
+    int numFeatures = 6;
+    int numUsers = 5;
+    Random random = new Random(7);
+
+    FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>();
+    double[][] itemFeatures = new double[numItems][numFeatures];
+    FastIDSet itemIDs = new FastIDSet();
+    for (int index = 0; index < numItems; index++) {
+      itemIDMapping.put(index, index);
+      itemIDs.add(index);
+      for (int feature = 0; feature < numFeatures; feature++) {
+        itemFeatures[index][feature] = random.nextGaussian();
+      }
+    }
+    PackedItemFeatures packed = new PackedItemFeatures(
+        new Factorization(new FastByIDMap<Integer>(), itemIDMapping, new double[0][0], itemFeatures));
+    int[] rows = packed.rows(itemIDs, null);
+
+    float[][] users = new float[numUsers][numFeatures];
+    FastIDSet[] excluded = new FastIDSet[numUsers];
+    for (int user = 0; user < numUsers; user++) {
+      for (int feature = 0; feature < numFeatures; feature++) {
+        users[user][feature] = (float) random.nextGaussian();
+      }
+    }
+    /* the first user is unknown, the second one has seen its best item */
+    users[0] = null;
+    List<RecommendedItem> bestOfSecond = ArrayTopItems.getTopItems(1, packed, users[1], rows, 0, rows.length, null);
+    excluded[1] = new FastIDSet();
+    excluded[1].add(bestOfSecond.get(0).getItemID());
+
+    List<List<RecommendedItem>> batch = ArrayTopItems.getTopItems(10, packed, users, excluded, rows, null);
+
+    assertEquals(numUsers, batch.size());
+    assertTrue(batch.get(0).isEmpty());
+    assertFalse(batch.get(1).contains(bestOfSecond.get(0)));
+    for (int user = 2; user < numUsers; user++) {
+      assertEquals(ArrayTopItems.getTopItems(10, packed, users[user], rows, 0, rows.length, null), batch.get(user));
+    }
+  }
+}
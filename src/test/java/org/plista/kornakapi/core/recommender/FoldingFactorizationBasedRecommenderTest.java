@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.recommender.AllUnknownItemsCandidateItemsStrategy;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.PersistenceStrategy;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Test;
+import org.plista.kornakapi.core.storage.UserChangeTracker;
+
+import static org.junit.Assert.*;
+
+public class FoldingFactorizationBasedRecommenderTest {
+
+  @Test
+  public void foldsInUnknownAndChangedUsers() throws Exception {
+    FastByIDMap<Integer> userIDMapping = new FastByIDMap<Integer>();
+    userIDMapping.put(10, 0);
+    FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>();
+    for (int item = 1; item <= 5; item++) {
+      itemIDMapping.put(item, item - 1);
+    }
+    double[][] userFeatures = { { 1, 0 } };
+    double[][] itemFeatures = { { 1, 0 }, { 0, 1 }, { 1, 1 }, { 2, 0 }, { 0, 3 } };
+    final Factorization factorization = new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures);
+
+    FastByIDMap<PreferenceArray> preferences = new FastByIDMap<PreferenceArray>();
+    preferences.put(10, history(10, 2));
+    preferences.put(20, history(20, 2, 42));
+    preferences.put(30, history(30, 1, 3, 4, 5));
+    GenericDataModel dataModel = new GenericDataModel(preferences);
+
+    UserChangeTracker userChanges = new UserChangeTracker(100);
+    FoldingFactorizationBasedRecommender recommender = new FoldingFactorizationBasedRecommender(dataModel,
+        new AllUnknownItemsCandidateItemsStrategy(), new PersistenceStrategy() {
+          @Override
+          public Factorization load() {
+            return factorization;
+          }
+
+          @Override
+          public void maybePersist(Factorization factorization) {}
+        }, null, 0, 0, userChanges);
+
+    /* the known user is served from the factorization */
+    assertEquals(1f, recommender.estimatePreference(10, 1), 1e-6f);
+
+    /* the user unknown to the factorization is folded in from the known items of the history */
+    assertEquals(-1 / 65f, recommender.estimatePreference(20, 1), 1e-6f);
+    assertFalse(recommender.recommend(20, 3, null).isEmpty());
+
+    /* after a change the known user is folded in as well */
+    userChanges.changed(10);
+    assertEquals(-1 / 65f, recommender.estimatePreference(10, 1), 1e-6f);
+
+    /* a model that is not known to contain the change still folds the user in */
+    recommender.refresh(null);
+    assertEquals(-1 / 65f, recommender.estimatePreference(10, 1), 1e-6f);
+
+    /* the trainer reports that the next model was trained after the change */
+    recommender.setIncludedChanges(userChanges.currentSequence());
+    recommender.refresh(null);
+    assertEquals(1f, recommender.estimatePreference(10, 1), 1e-6f);
+
+    try {
+      recommender.estimatePreference(40, 1);
+      fail();
+    } catch (NoSuchUserException e) {
+      /* expected */
+    }
+  }
+
+  private static PreferenceArray history(long userID, long... itemIDs) {
+    PreferenceArray preferences = new GenericUserPreferenceArray(itemIDs.length);
+    preferences.setUserID(0, userID);
+    for (int n = 0; n < itemIDs.length; n++) {
+      preferences.setItemID(n, itemIDs[n]);
+      preferences.setValue(n, 1);
+    }
+    return preferences;
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class InnerProductIndexTest {
+
+  @Test
+  public void exactSearchMatchesExhaustiveScan() {
+    int numItems = 5000;
+    int numFeatures = 10;
+    Random random = new Random(42);
+
+    FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>();
+    double[][] itemFeatures = new double[numItems][numFeatures];
+    for (int index = 0; index < numItems; index++) {
+      itemIDMapping.put(index, index);
+      for (int feature = 0; feature < numFeatures; feature++) {
+        itemFeatures[index][feature] = random.nextGaussian();
+      }
+    }
+    FastByIDMap<Integer> userIDMapping = new FastByIDMap<Integer>();
+    userIDMapping.put(1L, 0);
+    double[][] userFeatures = new double[1][numFeatures];
+    for (int feature = 0; feature < numFeatures; feature++) {
+      userFeatures[0][feature] = random.nextGaussian();
+    }
+
+    PackedItemFeatures packed =
+        new PackedItemFeatures(new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures));
+    InnerProductIndex index = new InnerProductIndex(packed, 50);
+
+    /* only the even items are possible, the candidates exclude every third item */
+    FastIDSet possibleItemIDs = new FastIDSet();
+    FastIDSet candidates = new FastIDSet();
+    for (long itemID = 0; itemID < numItems; itemID++) {
+      if (itemID % 2 == 0) {
+        possibleItemIDs.add(itemID);
+      }
+      if (itemID % 3 != 0) {
+        candidates.add(itemID);
+      }
+    }
+    FixedCandidatesIDRescorer rescorer = new FixedCandidatesIDRescorer(candidates);
+    float[] user = PackedItemFeatures.toFloats(userFeatures[0]);
+
+    int[] rows = packed.rows(possibleItemIDs, rescorer);
+    List<RecommendedItem> exhaustive = ArrayTopItems.getTopItems(10, packed, user, rows, 0, rows.length, rescorer);
+    /* the odd items are excluded like the history of a user */
+    FastIDSet excludedItemIDs = new FastIDSet();
+    for (long itemID = 1; itemID < numItems; itemID += 2) {
+      excludedItemIDs.add(itemID);
+    }
+    List<RecommendedItem> indexed = index.getTopItems(10, user, candidates, excludedItemIDs, 0);
+
+    assertEquals(10, indexed.size());
+    for (int n = 0; n < 10; n++) {
+      assertEquals(exhaustive.get(n).getItemID(), indexed.get(n).getItemID());
+      assertTrue(indexed.get(n).getItemID() % 2 == 0 && indexed.get(n).getItemID() % 3 != 0);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.io.Files;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.impl.recommender.svd.FilePersistenceStrategy;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MappedPersistenceStrategyTest {
+
+  @Test
+  public void roundTrip() throws Exception {
+    File file = new File(Files.createTempDir(), "test.model");
+    Factorization factorization = factorization();
+
+    new MappedPersistenceStrategy(file).maybePersist(factorization);
+    assertTrue(MappedFactorization.isMapped(file));
+
+    assertSameFeatures(factorization, new MappedPersistenceStrategy(file).load());
+  }
+
+  @Test
+  public void convertsStreamFormat() throws Exception {
+    File file = new File(Files.createTempDir(), "test.model");
+    Factorization factorization = factorization();
+
+    new FilePersistenceStrategy(file).maybePersist(factorization);
+    assertFalse(MappedFactorization.isMapped(file));
+
+    Factorization loaded = new MappedPersistenceStrategy(file).load();
+
+    assertTrue(MappedFactorization.isMapped(file));
+    assertSameFeatures(factorization, loaded);
+  }
+
+  @Test
+  public void emptyFactorization() throws Exception {
+    File file = new File(Files.createTempDir(), "test.model");
+
+    new MappedPersistenceStrategy(file).maybePersist(new Factorization(new FastByIDMap<Integer>(0),
+        new FastByIDMap<Integer>(0), new double[0][0], new double[0][0]));
+    Factorization loaded = new MappedPersistenceStrategy(file).load();
+
+    assertEquals(0, loaded.numUsers());
+    assertEquals(0, loaded.numItems());
+  }
+
+  private static Factorization factorization() {
+    FastByIDMap<Integer> userIDMapping = new FastByIDMap<Integer>();
+    userIDMapping.put(30, 0);
+    userIDMapping.put(-5, 1);
+    userIDMapping.put(12, 2);
+    FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>();
+    itemIDMapping.put(7, 0);
+    itemIDMapping.put(3, 1);
+    double[][] userFeatures = { { 1, 2 }, { 3, 4 }, { 5, 6 } };
+    double[][] itemFeatures = { { 0.5, -0.5 }, { 0.25, 2 } };
+    return new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures);
+  }
+
+  private static void assertSameFeatures(Factorization expected, Factorization actual) throws Exception {
+    assertEquals(expected.numFeatures(), actual.numFeatures());
+    assertEquals(expected.numUsers(), actual.numUsers());
+    assertEquals(expected.numItems(), actual.numItems());
+    for (Map.Entry<Long, Integer> mapping : expected.getUserIDMappings()) {
+      assertArrayEquals(expected.getUserFeatures(mapping.getKey()), actual.getUserFeatures(mapping.getKey()), 1e-6);
+    }
+    for (Map.Entry<Long, Integer> mapping : expected.getItemIDMappings()) {
+      assertArrayEquals(expected.getItemFeatures(mapping.getKey()), actual.getItemFeatures(mapping.getKey()), 1e-6);
+    }
+    try {
+      actual.getUserFeatures(31);
+      fail();
+    } catch (NoSuchUserException e) {
+      /* expected */
+    }
+  }
+}
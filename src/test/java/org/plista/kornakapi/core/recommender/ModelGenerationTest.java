@@ -0,0 +1,69 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ModelGenerationTest {
+
+  @Test
+  public void buildsAndWarmsUp() throws Exception {
+    int numItems = 200;
+    int numFeatures = 4;
+    Random random = new Random(11);
+
+    FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>();
+    double[][] itemFeatures = new double[numItems][numFeatures];
+    for (int index = 0; index < numItems; index++) {
+      itemIDMapping.put(100 + index, index);
+      for (int feature = 0; feature < numFeatures; feature++) {
+        itemFeatures[index][feature] = random.nextGaussian();
+      }
+    }
+    /* the number of features is taken from the users */
+    FastByIDMap<Integer> userIDMapping = new FastByIDMap<Integer>();
+    userIDMapping.put(1, 0);
+    Factorization factorization =
+        new Factorization(userIDMapping, itemIDMapping, new double[1][numFeatures], itemFeatures);
+
+    ModelGeneration generation = ModelGeneration.build(3, factorization, 4, 0, 0);
+
+    assertEquals(3, generation.generation());
+    assertSame(factorization, generation.foldingFactorization().factorization());
+    assertEquals(numItems, generation.foldingFactorization().itemFeatures().numItems());
+    assertEquals(numFeatures, generation.foldingFactorization().itemFeatures().numFeatures());
+    assertNotNull(generation.foldingFactorization().itemIndex());
+    assertTrue(generation.buildMillis() >= 0);
+  }
+
+  @Test
+  public void buildsWithoutItems() {
+    Factorization factorization = new Factorization(new FastByIDMap<Integer>(), new FastByIDMap<Integer>(),
+        new double[0][0], new double[0][0]);
+
+    ModelGeneration generation = ModelGeneration.build(1, factorization, 0, 0, 0);
+
+    assertEquals(0, generation.foldingFactorization().itemFeatures().numItems());
+    assertNull(generation.foldingFactorization().itemIndex());
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.recommender;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.recommender.TopItems;
+import org.apache.mahout.cf.taste.impl.recommender.svd.Factorization;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelTopItemsTest {
+
+  private EstimationExecutor executor;
+
+  @Before
+  public void createExecutor() {
+    executor = new EstimationExecutor("test", 4, 2, 5000);
+  }
+
+  @After
+  public void closeExecutor() throws Exception {
+    executor.close();
+  }
+
+  @Test
+  public void topItemsOverAllSlices() throws TasteException {
+    FastIDSet itemIDs = new FastIDSet();
+    for (long itemID = 1; itemID <= 10 * ParallelTopItems.MIN_SLICE_SIZE; itemID++) {
+      itemIDs.add(itemID);
+    }
+
+    List<RecommendedItem> topItems = ParallelTopItems.getTopItems(3, executor, itemIDs, null, new IdentityEstimator());
+
+    assertEquals(3, topItems.size());
+    assertEquals(10 * ParallelTopItems.MIN_SLICE_SIZE, topItems.get(0).getItemID());
+    assertEquals(10 * ParallelTopItems.MIN_SLICE_SIZE - 1, topItems.get(1).getItemID());
+    assertEquals(10 * ParallelTopItems.MIN_SLICE_SIZE - 2, topItems.get(2).getItemID());
+  }
+
+  @Test
+  public void smallCandidateSetsAreNotForked() throws TasteException {
+    FastIDSet itemIDs = new FastIDSet();
+    itemIDs.add(1L);
+    itemIDs.add(2L);
+
+    List<RecommendedItem> topItems = ParallelTopItems.getTopItems(5, executor, itemIDs, null, new IdentityEstimator());
+
+    assertEquals(2, topItems.size());
+    assertEquals(2L, topItems.get(0).getItemID());
+    assertEquals(0, executor.getSubmittedTasks());
+  }
+
+  @Test
+  public void packedTopItemsMatchDotProducts() throws TasteException {
+    int numItems = 4 * ParallelTopItems.MIN_SLICE_SIZE;
+    int numFeatures = 7;
+    FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>();
+    double[][] itemFeatures = new double[numItems][numFeatures];
+    FastIDSet itemIDs = new FastIDSet();
+    for (int index = 0; index < numItems; index++) {
+      itemIDMapping.put(100L + index, index);
+      itemIDs.add(100L + index);
+      for (int feature = 0; feature < numFeatures; feature++) {
+        itemFeatures[index][feature] = ((index * 31 + feature * 17) % 101) / 101.0;
+      }
+    }
+    FastByIDMap<Integer> userIDMapping = new FastByIDMap<Integer>();
+    userIDMapping.put(1L, 0);
+    double[][] userFeatures = { { 0.5, -0.25, 1, 0.125, -1, 0.75, 0.3 } };
+
+    PackedItemFeatures packed =
+        new PackedItemFeatures(new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures));
+    int[] rows = packed.rows(itemIDs, null);
+    assertEquals(numItems, rows.length);
+
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (int index = 0; index < numItems; index++) {
+      double score = 0;
+      for (int feature = 0; feature < numFeatures; feature++) {
+        score += userFeatures[0][feature] * itemFeatures[index][feature];
+      }
+      bestScore = Math.max(bestScore, score);
+    }
+
+    List<RecommendedItem> topItems = ParallelTopItems.getTopItems(1, executor, packed,
+        PackedItemFeatures.toFloats(userFeatures[0]), rows, null);
+
+    assertEquals(1, topItems.size());
+    assertEquals(bestScore, topItems.get(0).getValue(), 1e-4);
+  }
+
+  static class IdentityEstimator implements TopItems.Estimator<Long> {
+    @Override
+    public double estimate(Long itemID) {
+      return itemID;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.recommender;
+
+import com.google.common.collect.Lists;
+
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TopItemsQueueTest {
+
+  @Test
+  public void mergesSlicesIntoTopItems() {
+    Random random = new Random(11);
+    float[] values = new float[1000];
+    List<TopItemsQueue> slices = Lists.newArrayList();
+    for (int slice = 0; slice < 4; slice++) {
+      slices.add(new TopItemsQueue(10));
+    }
+    for (int itemID = 0; itemID < values.length; itemID++) {
+      values[itemID] = random.nextFloat();
+      slices.get(itemID % slices.size()).offer(itemID, values[itemID]);
+    }
+    slices.get(0).offer(-1, Double.NaN);
+
+    List<RecommendedItem> topItems = TopItemsQueue.merge(slices, 10);
+
+    float[] sorted = values.clone();
+    Arrays.sort(sorted);
+    assertEquals(10, topItems.size());
+    for (int n = 0; n < 10; n++) {
+      RecommendedItem item = topItems.get(n);
+      assertEquals(sorted[sorted.length - 1 - n], item.getValue(), 0f);
+      assertEquals(values[(int) item.getItemID()], item.getValue(), 0f);
+    }
+    assertEquals(10, slices.get(1).toList().size());
+    assertTrue(new TopItemsQueue(0).toList().isEmpty());
+  }
+}
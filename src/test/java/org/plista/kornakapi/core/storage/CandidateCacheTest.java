@@ -0,0 +1,109 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.junit.Test;
+import org.plista.kornakapi.core.config.StorageConfiguration;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CandidateCacheTest {
+
+  @Test
+  public void sharedBetweenDecorators() throws Exception {
+    CandidateCache cache = new CandidateCache(new StorageConfiguration());
+    CandidateCacheStorageDecorator labelStorage = new CandidateCacheStorageDecorator(new FixedStorage(), cache);
+    CandidateCacheStorageDecorator domainIndependentStorage =
+        new CandidateCacheStorageDecorator(new FixedStorage(), cache);
+
+    assertEquals(1, labelStorage.getCandidates("a").size());
+    domainIndependentStorage.addCandidate("a", 5);
+
+    assertTrue(labelStorage.getCandidates("a").contains(5));
+    domainIndependentStorage.deleteAllCandidates("a");
+    assertEquals(0, labelStorage.getCandidates("a").size());
+  }
+
+  @Test
+  public void discardsCandidatesRetrievedBeforeAModification() throws Exception {
+    final CountDownLatch retrieving = new CountDownLatch(1);
+    final CountDownLatch modified = new CountDownLatch(1);
+    final AtomicInteger retrievals = new AtomicInteger();
+    final CandidateCache cache = new CandidateCache(new StorageConfiguration());
+    final Storage storage = new FixedStorage() {
+      @Override
+      public FastIDSet getCandidates(String label) {
+        FastIDSet candidates = super.getCandidates(label);
+        if (retrievals.incrementAndGet() == 1) {
+          /* the first retrieval reads the database before item 2 is added */
+          retrieving.countDown();
+          try {
+            modified.await();
+          } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+          }
+        } else {
+          candidates.add(2);
+        }
+        return candidates;
+      }
+    };
+
+    final AtomicReference<FastIDSet> read = new AtomicReference<FastIDSet>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          read.set(cache.get("a", storage));
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    reader.start();
+    retrieving.await();
+    cache.update("a", Collections.singletonList(2L), Collections.<Long>emptyList());
+    modified.countDown();
+    reader.join();
+
+    assertTrue(read.get().contains(2));
+    assertTrue(cache.get("a", storage).contains(2));
+    assertEquals(2, retrievals.get());
+  }
+
+  static class FixedStorage extends PreferenceWriteBufferTest.RecordingStorage {
+
+    @Override
+    public void addCandidate(String label, long itemID) {}
+
+    @Override
+    public void deleteAllCandidates(String label) {}
+
+    @Override
+    public FastIDSet getCandidates(String label) {
+      FastIDSet candidates = new FastIDSet();
+      candidates.add(1);
+      return candidates;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompactDataModelTest {
+
+  @Test
+  public void matchesGenericDataModel() throws TasteException {
+    Random random = new Random(11);
+    FastByIDMap<PreferenceArray> preferencesOfUsers = new FastByIDMap<PreferenceArray>();
+    for (long userID = 0; userID < 200; userID++) {
+      int numPreferences = 1 + random.nextInt(20);
+      PreferenceArray preferences = new GenericUserPreferenceArray(numPreferences);
+      preferences.setUserID(0, userID * 7);
+      long itemID = random.nextInt(5);
+      for (int n = 0; n < numPreferences; n++) {
+        itemID += 1 + random.nextInt(5);
+        preferences.setItemID(n, itemID);
+        preferences.setValue(n, random.nextFloat());
+      }
+      preferencesOfUsers.put(userID * 7, preferences);
+    }
+
+    DataModel expected = new GenericDataModel(preferencesOfUsers);
+    CompactDataModel compact = CompactDataModel.fromPreferences(preferencesOfUsers);
+
+    assertEquals(expected.getNumUsers(), compact.getNumUsers());
+    assertEquals(expected.getNumItems(), compact.getNumItems());
+    assertEquals(expected.getMaxPreference(), compact.getMaxPreference(), 0f);
+
+    LongPrimitiveIterator userIDs = expected.getUserIDs();
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      assertPreferencesEqual(expected.getPreferencesFromUser(userID), compact.getPreferencesFromUser(userID));
+      assertEquals(expected.getItemIDsFromUser(userID), compact.getItemIDsFromUser(userID));
+    }
+
+    LongPrimitiveIterator itemIDs = expected.getItemIDs();
+    long previousItemID = -1;
+    while (itemIDs.hasNext()) {
+      long itemID = itemIDs.nextLong();
+      assertPreferencesEqual(expected.getPreferencesForItem(itemID), compact.getPreferencesForItem(itemID));
+      assertEquals(expected.getNumUsersWithPreferenceFor(itemID), compact.getNumUsersWithPreferenceFor(itemID));
+      if (previousItemID >= 0) {
+        assertEquals(expected.getNumUsersWithPreferenceFor(itemID, previousItemID),
+            compact.getNumUsersWithPreferenceFor(itemID, previousItemID));
+      }
+      assertEquals(expected.getPreferenceValue(0, itemID), compact.getPreferenceValue(0, itemID));
+      previousItemID = itemID;
+    }
+  }
+
+  @Test
+  public void keepsHighestValueOfDuplicates() throws TasteException {
+    CompactDataModel.Builder builder = new CompactDataModel.Builder();
+    builder.add(2, 5, 1f);
+    builder.add(2, 3, 2f);
+    builder.add(2, 5, 4f);
+    builder.add(1, 5, 3f);
+    CompactDataModel compact = builder.build();
+
+    assertEquals(3, compact.getNumPreferences());
+    assertEquals(4f, compact.getPreferenceValue(2, 5), 0f);
+    assertEquals(2, compact.getNumUsersWithPreferenceFor(5));
+    assertEquals(1L, compact.getPreferencesForItem(5).getUserID(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void usersMustBeGrouped() {
+    CompactDataModel.Builder builder = new CompactDataModel.Builder();
+    builder.add(1, 5, 1f);
+    builder.add(2, 5, 1f);
+    builder.add(1, 6, 1f);
+  }
+
+  private static void assertPreferencesEqual(PreferenceArray expected, PreferenceArray actual) {
+    assertEquals(expected.length(), actual.length());
+    for (int n = 0; n < expected.length(); n++) {
+      assertEquals(expected.getUserID(n), actual.getUserID(n));
+      assertEquals(expected.getItemID(n), actual.getItemID(n));
+      assertEquals(expected.getValue(n), actual.getValue(n), 0f);
+    }
+  }
+
+  @Test
+  public void splitsByHashRanges() throws TasteException {
+    CompactDataModel.Builder builder = new CompactDataModel.Builder();
+    for (long userID = 0; userID < 100; userID++) {
+      for (long itemID = 0; itemID < 30; itemID++) {
+        builder.add(userID, itemID, userID + itemID);
+      }
+    }
+    CompactDataModel dataModel = builder.build();
+
+    int numTestPreferences = 0;
+    for (int split = 0; split < 3; split++) {
+      DataModel training = dataModel.hashRange(42, split * 0.3, (split + 1) * 0.3, false);
+      DataModel test = dataModel.hashRange(42, split * 0.3, (split + 1) * 0.3, true);
+
+      int numTest = countPreferences(test);
+      assertEquals(3000, countPreferences(training) + numTest);
+      assertTrue(numTest > 800 && numTest < 1000);
+      numTestPreferences += numTest;
+
+      LongPrimitiveIterator userIDs = test.getUserIDs();
+      while (userIDs.hasNext()) {
+        long userID = userIDs.nextLong();
+        PreferenceArray preferences = test.getPreferencesFromUser(userID);
+        for (int n = 0; n < preferences.length(); n++) {
+          assertNull(training.getPreferenceValue(userID, preferences.getItemID(n)));
+          assertEquals(test.getPreferenceValue(userID, preferences.getItemID(n)), preferences.getValue(n), 0f);
+        }
+      }
+    }
+    /* the test sets of the splits are disjoint */
+    assertEquals(numTestPreferences, countPreferences(dataModel.hashRange(42, 0, 0.9, true)));
+  }
+
+  private static int countPreferences(DataModel dataModel) throws TasteException {
+    int count = 0;
+    LongPrimitiveIterator itemIDs = dataModel.getItemIDs();
+    while (itemIDs.hasNext()) {
+      count += dataModel.getPreferencesForItem(itemIDs.nextLong()).length();
+    }
+    return count;
+  }
+}
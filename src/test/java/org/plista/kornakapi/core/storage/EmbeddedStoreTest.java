@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.junit.Test;
+import org.plista.kornakapi.core.io.CSVCandidateFileIterator;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EmbeddedStoreTest {
+
+  @Test
+  public void servesLabelsAndSurvivesReopening() throws Exception {
+    File directory = Files.createTempDir();
+    EmbeddedStore store = new EmbeddedStore(directory, true, 24, 0);
+    store.addCandidate("news", 10);
+    store.addCandidate("news", 11);
+    store.addCandidate("sports", 20);
+    store.setPreference(1, 10, 3f);
+    store.setPreference(1, 10, 2f);
+    List<Preference> preferences = Lists.newArrayList();
+    preferences.add(new GenericPreference(1, 20, 1f));
+    preferences.add(new GenericPreference(2, 11, 4f));
+    preferences.add(new GenericPreference(2, 99, 5f));
+    store.batchSetPreferences(preferences.iterator(), 2);
+
+    assertTrainingData(store);
+    DataModel news = store.recommenderData("news");
+    assertEquals(2, news.getNumUsers());
+    assertEquals(2, news.getNumItems());
+    assertEquals(1, news.getPreferencesFromUser(1).length());
+    assertEquals("news", store.getItemsLabel(11));
+    assertNull(store.getItemsLabel(99));
+
+    store.deleteCandidate("news", 11);
+    store.compact();
+    store.close();
+
+    EmbeddedStore reopened = new EmbeddedStore(directory, true, 24, 0);
+    assertEquals(4, reopened.getNumPreferences());
+    assertEquals(2, reopened.getNumCandidates());
+    assertEquals(1, reopened.trainingData("news").getNumPreferences());
+    reopened.close();
+  }
+
+  private static void assertTrainingData(EmbeddedStore store) throws Exception {
+    CompactDataModel news = store.trainingData("news");
+    assertEquals(2, news.getNumPreferences());
+    assertEquals(3f, news.getPreferenceValue(1, 10), 0f);
+    assertEquals(4f, news.getPreferenceValue(2, 11), 0f);
+    assertEquals(1, store.trainingData("sports").getNumPreferences());
+  }
+
+  @Test
+  public void appliesEveryCandidateOfAFile() throws Exception {
+    File directory = Files.createTempDir();
+    EmbeddedStore store = new EmbeddedStore(directory, false, 24, 0);
+    store.batchAddCandidates(new CSVCandidateFileIterator(
+        new ByteArrayInputStream("news,10\nnews,11\nsports,20\n".getBytes("UTF-8"))));
+    assertEquals(3, store.getNumCandidates());
+    assertEquals(2, store.getCandidates("news").size());
+    store.batchDeleteCandidates(new CSVCandidateFileIterator(
+        new ByteArrayInputStream("news,10\nsports,20\n".getBytes("UTF-8"))));
+    store.close();
+
+    EmbeddedStore reopened = new EmbeddedStore(directory, false, 24, 0);
+    assertEquals(1, reopened.getNumCandidates());
+    assertTrue(reopened.getCandidates("news").contains(11));
+    reopened.close();
+  }
+
+  @Test
+  public void purgesOldestTimeframe() throws Exception {
+    File directory = Files.createTempDir();
+    EmbeddedStore store = new EmbeddedStore(directory, false, 24, 0);
+    UserChangeTracker userChanges = new UserChangeTracker(100);
+    store.setUserChangeTracker(userChanges);
+    store.addCandidate("news", 10);
+    store.addCandidate("news", 11);
+    store.setPreference(1, 10, 1f);
+    store.setPreference(2, 10, 1f);
+    store.purge(1);
+    /* a later write moves the pair into the current timeframe */
+    store.setPreference(1, 10, 1f);
+    store.setPreference(1, 11, 1f);
+    store.purge(5);
+    assertEquals(2, store.getNumPreferences());
+    store.setPreference(3, 11, 1f);
+    long changesBeforePurge = userChanges.currentSequence();
+    store.purge(0);
+    assertEquals(1, store.getNumPreferences());
+    /* only the users who lost preferences count as changed */
+    assertTrue(userChanges.lastChange(1) > changesBeforePurge);
+    assertTrue(userChanges.lastChange(3) <= changesBeforePurge);
+    assertEquals(userChanges.currentSequence(), store.trainingData("news").getIncludedChanges());
+    assertEquals(1, store.trainingData("news").getNumUsersWithPreferenceFor(11));
+    store.close();
+
+    /* an incomplete record at the end of the log is dropped */
+    FileOutputStream out = new FileOutputStream(new File(directory, EmbeddedStore.LOG_FILE_NAME), true);
+    out.write(new byte[] { 1, 0, 0 });
+    out.close();
+    EmbeddedStore reopened = new EmbeddedStore(directory, false, 24, 0);
+    assertEquals(1, reopened.getNumPreferences());
+    reopened.setPreference(3, 10, 1f);
+    reopened.close();
+    EmbeddedStore appended = new EmbeddedStore(directory, false, 24, 0);
+    assertEquals(2, appended.getNumPreferences());
+    appended.close();
+  }
+}
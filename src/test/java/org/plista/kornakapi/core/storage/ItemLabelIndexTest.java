@@ -0,0 +1,56 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ItemLabelIndexTest {
+
+  @Test
+  public void tracksLabelsOfItems() {
+    ItemLabelIndex index = new ItemLabelIndex(10, 60);
+    FastIDSet itemIDs = new FastIDSet();
+    itemIDs.add(1);
+    itemIDs.add(2);
+    index.addAll("news", itemIDs);
+    index.add("sports", 2);
+
+    assertArrayEquals(new String[] { "news" }, index.getLabels(1));
+    assertArrayEquals(new String[] { "news", "sports" }, index.getLabels(2));
+
+    index.remove("news", 2);
+    assertArrayEquals(new String[] { "sports" }, index.getLabels(2));
+    index.removeAll("news");
+    assertNull(index.getLabels(1));
+    assertEquals(1, index.getSize());
+  }
+
+  @Test
+  public void remembersUnlabeledItems() {
+    ItemLabelIndex index = new ItemLabelIndex(10, 60);
+    assertNull(index.getLabels(3));
+    index.lookedUp(3, null);
+    assertEquals(0, index.getLabels(3).length);
+
+    index.add("news", 3);
+    assertArrayEquals(new String[] { "news" }, index.getLabels(3));
+    assertEquals(1, index.getMisses());
+    assertEquals(1, index.getUnlabeledHits());
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.collect.Maps;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LabelStatisticsTest {
+
+  @Test
+  public void maintainsCountsBetweenReconciliations() {
+    ItemLabelIndex itemLabels = new ItemLabelIndex(10, 60);
+    itemLabels.add("news", 1);
+    itemLabels.add("news", 2);
+    itemLabels.add("sports", 2);
+    LabelStatistics statistics = new LabelStatistics(null, itemLabels, 0);
+
+    statistics.preferenceWritten(100, 1);
+    assertEquals(-1, statistics.getNumItems("news"));
+
+    Map<String, FastIDSet> itemIDsOfLabels = Maps.newHashMap();
+    FastIDSet itemIDs = new FastIDSet();
+    itemIDs.add(1);
+    itemIDsOfLabels.put("news", itemIDs);
+    Map<String, FastIDSet> userIDsOfLabels = Maps.newHashMap();
+    FastIDSet userIDs = new FastIDSet();
+    userIDs.add(100);
+    userIDs.add(101);
+    userIDsOfLabels.put("news", userIDs);
+    statistics.reconciled(itemIDsOfLabels, userIDsOfLabels);
+
+    assertEquals(1, statistics.getNumItems("news"));
+    assertEquals(2, statistics.getNumUsers("news"));
+    assertEquals(-1, statistics.getNumItems("sports"));
+
+    statistics.preferenceWritten(100, 2);
+    statistics.preferenceWritten(102, 2);
+    statistics.preferenceWritten(102, 3);
+    assertEquals(2, statistics.getNumItems("news"));
+    assertEquals(3, statistics.getNumUsers("news"));
+    assertEquals(1, statistics.getNumItems("sports"));
+    assertEquals(2, statistics.getNumUsers("sports"));
+
+    statistics.candidateRemoved("news", 1);
+    assertEquals(1, statistics.getNumItems("news"));
+    statistics.allCandidatesRemoved("sports");
+    assertEquals(0, statistics.getNumItems("sports"));
+
+    statistics.close();
+  }
+}
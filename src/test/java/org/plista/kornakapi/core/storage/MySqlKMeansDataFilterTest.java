@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MySqlKMeansDataFilterTest {
+
+  @Test
+  public void invertsUserItemPairs() {
+    MySqlKMeansDataFilter.UserItemPairs pairs = new MySqlKMeansDataFilter.UserItemPairs();
+    pairs.add(0, 20);
+    pairs.add(0, 10);
+    pairs.add(1, 10);
+    /* the same preference in another timeframe */
+    pairs.add(1, 10);
+    pairs.add(2, 30);
+    pairs.truncate(4);
+    pairs.add(2, 20);
+
+    MySqlKMeansDataFilter.StreamingKMeansDataObject data = pairs.toDataObject(new long[] { 5, 6, 7 });
+
+    assertEquals(3, data.getDim());
+    assertEquals(2, data.getNumItems());
+    assertArrayEquals(new int[] { 0, 1 }, data.getUsersOfItem(10));
+    assertArrayEquals(new int[] { 0, 2 }, data.getUsersOfItem(20));
+    assertNull(data.getUsersOfItem(30));
+    assertTrue(data.getAllItems().contains(20));
+  }
+}
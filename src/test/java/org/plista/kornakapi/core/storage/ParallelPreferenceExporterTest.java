@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelPreferenceExporterTest {
+
+  @Test
+  public void rangesCoverAllUserIDs() {
+    List<long[]> ranges = ParallelPreferenceExporter.ranges(-5, 94, 4);
+    assertEquals(-5, ranges.get(0)[0]);
+    assertEquals(94, ranges.get(ranges.size() - 1)[1]);
+    for (int n = 1; n < ranges.size(); n++) {
+      assertEquals(ranges.get(n - 1)[1] + 1, ranges.get(n)[0]);
+    }
+    assertTrue(ranges.size() <= 5);
+
+    List<long[]> extreme = ParallelPreferenceExporter.ranges(Long.MIN_VALUE, Long.MAX_VALUE, 8);
+    assertEquals(Long.MAX_VALUE, extreme.get(extreme.size() - 1)[1]);
+
+    assertEquals(1, ParallelPreferenceExporter.ranges(7, 7, 4).size());
+  }
+
+  @Test
+  public void keepsUsersTogetherAcrossPages() throws Exception {
+    CompactDataModel.Builder builder = new CompactDataModel.Builder();
+    ParallelPreferenceExporter.Rows rows = new ParallelPreferenceExporter.Rows(2);
+
+    /* the first page ends within the rows of user 2 */
+    rows.add(1, 10, 1f);
+    rows.add(2, 10, 1f);
+    rows.add(2, 11, 1f);
+    rows.removeLastPair();
+    rows.moveCompleteUsers(builder, false);
+    assertEquals(1, rows.size());
+
+    /* rows of another range arrive in between */
+    synchronized (builder) {
+      builder.add(100, 10, 5f);
+    }
+
+    rows.add(2, 11, 3f);
+    rows.add(2, 12, 1f);
+    rows.moveCompleteUsers(builder, true);
+    assertEquals(0, rows.size());
+
+    DataModel dataModel = builder.build();
+    assertEquals(3, dataModel.getNumUsers());
+    assertEquals(3, dataModel.getPreferencesFromUser(2).length());
+    assertEquals(3f, dataModel.getPreferenceValue(2, 11), 0f);
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.collect.Maps;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.junit.Test;
+import org.plista.kornakapi.core.Candidate;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PreferenceWriteBufferTest {
+
+  @Test
+  public void keepsMaximum() throws IOException {
+    RecordingStorage storage = new RecordingStorage();
+    PreferenceWriteBuffer buffer = new PreferenceWriteBuffer(storage, true, 100, 100, 60000, 10);
+
+    buffer.setPreference(1, 10, 3f);
+    buffer.setPreference(1, 10, 5f);
+    buffer.setPreference(1, 10, 4f);
+    buffer.setPreference(2, 10, 1f);
+    assertEquals(2, buffer.getQueueDepth());
+    assertEquals(2, buffer.getCoalescedPreferences());
+
+    buffer.close();
+
+    assertEquals(2, storage.preferences.size());
+    assertEquals(5f, storage.preferences.get("1,10"), 0f);
+    assertEquals(1f, storage.preferences.get("2,10"), 0f);
+    assertEquals(0, buffer.getQueueDepth());
+    assertEquals(2, buffer.getFlushedPreferences());
+  }
+
+  @Test
+  public void keepsLatestAndWritesThroughWhenFull() throws IOException {
+    RecordingStorage storage = new RecordingStorage();
+    PreferenceWriteBuffer buffer = new PreferenceWriteBuffer(storage, false, 1, 100, 60000, 10);
+
+    buffer.setPreference(1, 10, 3f);
+    buffer.setPreference(1, 10, 2f);
+    buffer.setPreference(1, 11, 1f);
+    assertEquals(1, buffer.getWrittenThroughPreferences());
+    assertEquals(1f, storage.preferences.get("1,11"), 0f);
+
+    buffer.close();
+
+    assertEquals(2f, storage.preferences.get("1,10"), 0f);
+  }
+
+  @Test
+  public void keepsPreferencesOfAFailedFlush() throws IOException {
+    RecordingStorage storage = new RecordingStorage();
+    storage.failures = 1;
+    PreferenceWriteBuffer buffer = new PreferenceWriteBuffer(storage, false, 100, 100, 60000, 10);
+
+    buffer.setPreference(1, 10, 3f);
+    buffer.setPreference(2, 10, 1f);
+    buffer.flush();
+    assertEquals(2, buffer.getFailedPreferences());
+    assertEquals(0, buffer.getDroppedPreferences());
+    assertEquals(2, buffer.getQueueDepth());
+
+    buffer.setPreference(1, 10, 2f);
+    buffer.close();
+
+    assertEquals(2f, storage.preferences.get("1,10"), 0f);
+    assertEquals(1f, storage.preferences.get("2,10"), 0f);
+  }
+
+  static class RecordingStorage implements Storage {
+
+    final Map<String, Float> preferences = Maps.newHashMap();
+    /** number of batch writes that fail before the next one succeeds */
+    int failures;
+
+    @Override
+    public synchronized void setPreference(long userID, long itemID, float value) {
+      preferences.put(userID + "," + itemID, value);
+    }
+
+    @Override
+    public synchronized void batchSetPreferences(Iterator<Preference> preferences, int batchSize)
+        throws IOException {
+      if (failures > 0) {
+        failures--;
+        throw new IOException("unavailable");
+      }
+      while (preferences.hasNext()) {
+        Preference preference = preferences.next();
+        setPreference(preference.getUserID(), preference.getItemID(), preference.getValue());
+      }
+    }
+
+    @Override
+    public DataModel trainingData() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DataModel recommenderData() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void purgeOldPreferences() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void addCandidate(String label, long itemID) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterable<String> batchAddCandidates(Iterator<Candidate> candidates, int batchSize) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteCandidate(String label, long itemID) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterable<String> batchDeleteCandidates(Iterator<Candidate> candidates, int batchSize) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteAllCandidates(String label) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FastIDSet getCandidates(String label) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import com.google.common.io.Files;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TrainingSnapshotTest {
+
+  @Test
+  public void appliesDeltas() throws Exception {
+    File directory = Files.createTempDir();
+    PreferenceDeltaLog deltaLog = new PreferenceDeltaLog(100);
+    TrainingSnapshot snapshot = new TrainingSnapshot(new File(directory, "training.snapshot"), deltaLog, 60000, false);
+
+    CompactDataModel.Builder builder = new CompactDataModel.Builder();
+    builder.add(1, 10, 1f);
+    builder.add(1, 11, 2f);
+    builder.add(2, 11, 3f);
+    FastIDSet candidates = new FastIDSet();
+    candidates.add(10);
+    candidates.add(11);
+    snapshot.replace(builder.build(), candidates, snapshot.position());
+
+    deltaLog.append(1, 10, 4f);
+    deltaLog.append(3, 10, 1f);
+    deltaLog.append(3, 12, 1f);
+    FastIDSet withoutItem11 = new FastIDSet();
+    withoutItem11.add(10);
+
+    CompactDataModel trainingData = snapshot.update(withoutItem11, null);
+    assertEquals(2, trainingData.getNumUsers());
+    assertEquals(1, trainingData.getNumItems());
+    assertEquals(4f, trainingData.getPreferenceValue(1, 10), 0f);
+    assertEquals(1f, trainingData.getPreferenceValue(3, 10), 0f);
+
+    /* a second update starts from the written snapshot */
+    deltaLog.append(2, 10, 5f);
+    trainingData = snapshot.update(withoutItem11, null);
+    assertEquals(3, trainingData.getNumUsers());
+    assertEquals(5f, trainingData.getPreferenceValue(2, 10), 0f);
+
+    deltaLog.reset();
+    assertNull(snapshot.update(withoutItem11, null));
+  }
+
+  @Test
+  public void appliesDeltasWithTheSemanticsOfTheStorage() throws Exception {
+    assertUpdated(false, 3f);
+    assertUpdated(true, 5f);
+  }
+
+  private static void assertUpdated(boolean keepMaximum, float expectedValue) throws Exception {
+    File directory = Files.createTempDir();
+    PreferenceDeltaLog deltaLog = new PreferenceDeltaLog(100);
+    TrainingSnapshot snapshot =
+        new TrainingSnapshot(new File(directory, "training.snapshot"), deltaLog, 60000, keepMaximum);
+
+    CompactDataModel.Builder builder = new CompactDataModel.Builder();
+    builder.add(1, 10, 5f);
+    builder.add(1, 11, 4f);
+    builder.add(1, 12, 2f);
+    FastIDSet candidates = new FastIDSet();
+    candidates.add(10);
+    candidates.add(11);
+    candidates.add(12);
+    snapshot.replace(builder.build(), candidates, snapshot.position());
+
+    deltaLog.append(1, 10, 3f);
+    /* a purge removed item 11, which still has a lower value in another timeframe, and item 12 entirely */
+    deltaLog.appendRemoval(1, 11);
+    deltaLog.append(1, 11, 1f);
+    deltaLog.appendRemoval(1, 12);
+
+    CompactDataModel trainingData = snapshot.update(candidates, null);
+    assertEquals(expectedValue, trainingData.getPreferenceValue(1, 10), 0f);
+    assertEquals(1f, trainingData.getPreferenceValue(1, 11), 0f);
+    assertNull(trainingData.getPreferenceValue(1, 12));
+  }
+}
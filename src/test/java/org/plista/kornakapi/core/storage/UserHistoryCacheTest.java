@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.core.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UserHistoryCacheTest {
+
+  @Test
+  public void historiesStaySorted() {
+    UserHistoryCache.UserHistory history =
+        new UserHistoryCache.UserHistory(new long[] { 3L, 7L }, new float[] { 1f, 2f });
+
+    history = history.with(5L, 4f, false).with(1L, 3f, false).with(9L, 5f, false);
+
+    assertArrayEquals(new long[] { 1L, 3L, 5L, 7L, 9L }, history.itemIDs);
+    assertArrayEquals(new float[] { 3f, 1f, 4f, 2f, 5f }, history.values, 0f);
+  }
+
+  @Test
+  public void keepsMaximumOrLatest() {
+    UserHistoryCache.UserHistory history =
+        new UserHistoryCache.UserHistory(new long[] { 3L }, new float[] { 2f });
+
+    assertSame(history, history.with(3L, 1f, true));
+    assertEquals(5f, history.with(3L, 5f, true).values[0], 0f);
+    assertEquals(1f, history.with(3L, 1f, false).values[0], 0f);
+    assertEquals(2f, history.values[0], 0f);
+  }
+}
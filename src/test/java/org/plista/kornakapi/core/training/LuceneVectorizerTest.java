@@ -62,7 +62,7 @@ public class LuceneVectorizerTest {
 
 	     BasicDataSource dataSource = new BasicDataSource();
 	     String label = "123235";
-	     CandidateCacheStorageDecorator dec =new CandidateCacheStorageDecorator(new SemanticMySqlStorage(conf.getStorageConfiguration(), label,dataSource)); 
+	     CandidateCacheStorageDecorator dec =new CandidateCacheStorageDecorator(new SemanticMySqlStorage(conf.getStorageConfiguration(), label,dataSource), conf.getStorageConfiguration()); 
 	     DataModel dmodel = dec.recommenderData();
 	     CandidateItemsStrategy allUnknownItemsStrategy =
 		            new CachingAllUnknownItemsCandidateItemsStrategy(dmodel);
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 plista GmbH  (http://www.plista.com/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the License.
+ */
+
+package org.plista.kornakapi.web;
+
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RecommendationResponseWriterTest {
+
+  @Test
+  public void json() throws IOException {
+    List<RecommendedItem> items = Arrays.<RecommendedItem>asList(new GenericRecommendedItem(12345L, 0.5f),
+        new GenericRecommendedItem(-7L, 1.25e-6f), new GenericRecommendedItem(Long.MAX_VALUE, 1000f));
+
+    assertEquals("[{\"itemID\":12345,\"value\":0.5},{\"itemID\":-7,\"value\":1.25E-6}," +
+        "{\"itemID\":9223372036854775807,\"value\":1000.0}]", encodeJson(items));
+  }
+
+  @Test
+  public void floatsSurviveTheRoundTrip() throws IOException {
+    Random random = new Random(13);
+    RecommendationResponseWriter.ResponseBuffer buffer = new RecommendationResponseWriter.ResponseBuffer(16);
+    for (int n = 0; n < 10000; n++) {
+      float value = (float) (random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10));
+      buffer.reset();
+      buffer.append(value);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      buffer.writeTo(out);
+      float parsed = Float.parseFloat(out.toString("US-ASCII"));
+      assertEquals(out.toString("US-ASCII"), value, parsed, Math.abs(value) * 1e-6);
+    }
+  }
+
+  private static String encodeJson(List<RecommendedItem> items) throws IOException {
+    RecommendationResponseWriter.ResponseBuffer buffer = new RecommendationResponseWriter.ResponseBuffer(4);
+    RecommendationResponseWriter.encodeJson(items, buffer);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    return out.toString("US-ASCII");
+  }
+}